@@ -1,54 +1,159 @@
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.Math;
 
 public class Bayespam {
     // This defines the two types of messages we have.
     static enum MessageType { NORMAL, SPAM }
 
-    /// This defines the epsilon.
-    public final static int EPSILON = 1;
+    /// This defines the epsilon, set with -Dbayespam.epsilon=E (1 by
+    /// default). CrossValidation searches a grid of values for it.
+    public final static double EPSILON =
+            Double.parseDouble(System.getProperty("bayespam.epsilon", "1"));
+
+    /// This defines the minimal word size, set with -Dbayespam.wordsize=N
+    /// (4 by default).
+    public final static int MINIMAL_WORD_SIZE = Integer.getInteger("bayespam.wordsize", 4);
+
+    /// This defines the frequency filtering parameter of the words, set
+    /// with -Dbayespam.frequencylimit=N (1 by default, no filtering).
+    public final static int FREQUENCY_LIMIT = Integer.getInteger("bayespam.frequencylimit", 1);
+
+    /// This defines the number of worker threads used for training.
+    /// It can be set with -Dbayespam.threads=N, 1 keeps training sequential.
+    public final static int TRAINING_THREADS =
+            Integer.getInteger("bayespam.threads", 1);
+
+    /// This defines the number of training files that are read at the same
+    /// time by CorpusIngester, set with -Dbayespam.openfiles=N. With 0 the
+    /// files are read by readMessages().
+    public final static int OPEN_FILES = Integer.getInteger("bayespam.openfiles", 0);
+
+    /// This defines the directory of the token cache, set with
+    /// -Dbayespam.cache=DIR. Without it every run tokenises the messages.
+    public final static String TOKEN_CACHE = System.getProperty("bayespam.cache");
+
+    /// This defines the number of threads that classify the test set,
+    /// set with -Dbayespam.evalthreads=N. With more than one thread the
+    /// throughput and the margin histograms are printed to System.err.
+    public final static int EVALUATION_THREADS =
+            Integer.getInteger("bayespam.evalthreads", 1);
+
+    /// This defines whether messages are tokenised with the ASCII fast
+    /// path of Tokeniser.tokeniseBytes(), set with -Dbayespam.ascii=true.
+    public final static boolean ASCII_FAST_PATH = Boolean.getBoolean("bayespam.ascii");
+
+    /// This defines whether the test messages are scored in batches of
+    /// word ids with the vector kernel, set with -Dbayespam.vector=true.
+    /// Without jdk.incubator.vector the scalar kernel is used instead.
+    public final static boolean VECTOR_SCORING = Boolean.getBoolean("bayespam.vector");
+
+    /// This defines the number of words the model keeps after training, set
+    /// with -Dbayespam.topk=K, and how they are chosen, set with
+    /// -Dbayespam.selection=ig (information gain, the default) or llr
+    /// (log-likelihood ratio). With 0 the whole vocabulary is kept.
+    public final static int TOP_K = Integer.getInteger("bayespam.topk", 0);
+    public final static String SELECTION = System.getProperty("bayespam.selection", "ig");
+
+    /// This defines the early exit of the classification, set with
+    /// -Dbayespam.earlyexit=F. A message is classified as soon as its margin
+    /// is more than F times the largest change the remaining words can make
+    /// (see CompiledModel.SequentialScore). With 1 the classification does
+    /// not change, with less it stops sooner. With 0 every word is scored.
+    public final static double EARLY_EXIT =
+            Double.parseDouble(System.getProperty("bayespam.earlyexit", "0"));
 
-    // This a class with two counters (for regular and for spam)
-    static class MultipleCounter {
-        int counterSpam    = 0;
-        int counterRegular = 0;
-
-        // Increase one of the counters by one
-        public void incrementCounter(MessageType type) {
-            if (type == MessageType.NORMAL) {
-                ++counterRegular;
-            } else {
-                ++counterSpam;
-            }
+    // Listings of the two subdirectories (regular/ and spam/)
+    static File[] listingRegular = new File[0];
+    static File[] listingSpam = new File[0];
+    static File[] testListingRegular = new File[0];
+    static File[] testListingSpam = new File[0];
+
+    // Packed train and test corpora, used instead of the listings
+    // when they are given (see CorpusArchive)
+    static CorpusArchive trainArchive = null;
+    static CorpusArchive testArchive = null;
+
+    /// Every thread gets its own tokeniser, as it keeps its buffers.
+    private static ThreadLocal<Tokeniser> tokeniser = new ThreadLocal<Tokeniser>() {
+        protected Tokeniser initialValue() {
+            return new Tokeniser(MINIMAL_WORD_SIZE);
         }
-    }
+    };
 
-    // Listings of the two subdirectories (regular/ and spam/)
-    private static File[] listingRegular = new File[0];
-    private static File[] listingSpam = new File[0];
-    private static File[] testListingRegular = new File[0];
-    private static File[] testListingSpam = new File[0];
-
-    // A hash table for the vocabulary 
-    // (word searching is very fast in a hash table)
-    private static Hashtable<String, MultipleCounter> vocab 
-            = new Hashtable<String, MultipleCounter>();
+    // Tokenised train and test messages, a cache for each, when
+    // TOKEN_CACHE is set
+    static TokenCache[] tokenCaches = null;
+
+    // Kernel of classifyMessage(), when VECTOR_SCORING is set
+    static ScoringKernel scoringKernel = VECTOR_SCORING ? ScoringKernel.load() : null;
+
+    // The vocabulary with a regular and a spam counter for every word
+    static TermTable vocab = new TermTable();
     
     // Add a word to the vocabulary
-    private static void addWord(String word, MessageType type) {
-        MultipleCounter counter = new MultipleCounter();
-        // If word exists already in the vocabulary..
-        if (vocab.containsKey(word)) {
-            // Get the counter from the hashtable
-            counter = vocab.get(word);
+    static void addWord(char[] chars, int start, int length, MessageType type) {
+        vocab.increment(chars, start, length, type == MessageType.SPAM);
+    }
+
+    /// Tokenise a message, or replay its tokens from the token cache
+    /// when it is part of it.
+    static void tokenise(File message, Tokeniser.TokenConsumer consumer) {
+        if (!TokenCache.replay(tokenCaches, message, consumer)) {
+            tokenise(tokeniser.get(), message, consumer);
+        }
+    }
+
+    /// Same as tokenise() above, for a message of a packed corpus.
+    static void tokenise(ByteBuffer message, Tokeniser.TokenConsumer consumer) {
+        tokenise(tokeniser.get(), message, consumer);
+    }
+
+    /// Tokenise a message file with a tokeniser, with the ASCII fast
+    /// path if ASCII_FAST_PATH is set.
+    static void tokenise(Tokeniser tokeniser, File message,
+            Tokeniser.TokenConsumer consumer) {
+        if (ASCII_FAST_PATH) {
+            tokeniser.tokeniseBytes(message, consumer);
+        } else {
+            tokeniser.tokenise(message, consumer);
+        }
+    }
+
+    /// Same as tokenise() above, for a message of a packed corpus.
+    static void tokenise(Tokeniser tokeniser, ByteBuffer message,
+            Tokeniser.TokenConsumer consumer) {
+        if (ASCII_FAST_PATH) {
+            tokeniser.tokeniseBytes(message, consumer);
+        } else {
+            tokeniser.tokenise(message, consumer);
         }
+    }
 
-        // Increase the counter appropriately
-        counter.incrementCounter(type);
+    /// Open a token cache for each set of listings, such as the train and
+    /// the test listings, or stop with an error.
+    static TokenCache[] openTokenCaches(File directory, int minimalWordSize,
+            File[][]... sets) {
+        TokenCache[] caches = new TokenCache[sets.length];
 
-        // Put the word with its counter into the hashtable
-        vocab.put(word, counter);
+        try {
+            for (int i = 0; i < sets.length; i++) {
+                List<File> messages = new ArrayList<File>();
+                for (File[] listing : sets[i]) {
+                    messages.addAll(Arrays.asList(listing));
+                }
+                caches[i] = TokenCache.open(directory, messages.toArray(new File[0]),
+                                            minimalWordSize);
+            }
+            return caches;
+        } catch (IOException ioe) {
+            System.out.println("- Error: could not open token cache " + directory
+                               + ": " + ioe.getMessage() + "\n");
+            Runtime.getRuntime().exit(0);
+            return null;
+        }
     }
 
     private static double unlog(double a) {
@@ -56,7 +161,7 @@ public class Bayespam {
     }
 
     // List the regular and spam messages
-    private static void listDirs(File dirLocation, boolean train) {
+    static void listDirs(File dirLocation, boolean train) {
         // List all files in the directory passed
         File[] dirListing = dirLocation.listFiles();
 	    String folderName; 
@@ -113,20 +218,12 @@ public class Bayespam {
     
     // Print the current content of the vocabulary
     private static void printVocab() {
-        MultipleCounter counter = new MultipleCounter();
-
-        for (Enumeration<String> enumeration = vocab.keys();
-                enumeration.hasMoreElements() ;) {   
-            String word;
-            
-            word = enumeration.nextElement();
-            counter  = vocab.get(word);
-            
-            System.out.println(word 
+        for (int id = 0; id < vocab.size(); id++) {
+            System.out.println(vocab.term(id)
                                + " | in regular: " 
-                               + counter.counterRegular 
+                               + vocab.getRegularCount(id) 
                                + " in spam: " 
-                               + counter.counterSpam);
+                               + vocab.getSpamCount(id));
         }
     }
     
@@ -143,70 +240,159 @@ public class Bayespam {
 
     // Read the words from messages and add them to your vocabulary.
     // The boolean type determines whether the messages are regular or not  
-    private static void readMessages(MessageType type) {
+    static void readMessages(MessageType type) {
         File[] messages = new File[0];
 
         messages = (type == MessageType.NORMAL) ? listingRegular : listingSpam;
 
+        /// The tokeniser only passes on words that have at least
+        /// MINIMAL_WORD_SIZE characters and that are not numeric.
+        final MessageType messageType = type;
+        Tokeniser.TokenConsumer consumer = Metrics.timed(new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                // Add them to the vocabulary
+                addWord(chars, start, length, messageType);
+            }
+
+            public void endOfLine() {
+            }
+        }, Metrics.VOCABULARY_UPDATE);
+
         for (int i = 0; i < messages.length; ++i) {
-            List<String> tokens = tokeniseMessage(messages[i]);
-            for (String token : tokens) {
-                /// Do not accept words that have less than 4 letters
-                /// Only accept words that have less than 4 characters
-                /// and that are not numeric.
-                if (token.length() >= 4 && !isNumeric(token)) {
-
-                    // Add them to the vocabulary
-                    addWord(token, type);                                          
+            tokenise(messages[i], consumer);
+        }
+    }
+
+    /// Parallel version of readMessages(). The messages are split into
+    /// one slice per worker, every worker counts its slice into its own
+    /// partial vocabulary and the partial vocabularies are merged into
+    /// vocab afterwards. Counting is a sum, so the result is exactly the
+    /// same as the one of readMessages().
+    static void readMessages(MessageType type, int nThreads) {
+        final File[] messages = 
+                (type == MessageType.NORMAL) ? listingRegular : listingSpam;
+        final MessageType messageType = type;
+
+        if (nThreads <= 1) {
+            readMessages(type);
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        List<Future<TermTable>> partials = new ArrayList<Future<TermTable>>();
+        int sliceSize = (messages.length + nThreads - 1) / nThreads;
+
+        for (int start = 0; start < messages.length; start += sliceSize) {
+            final int from = start;
+            final int to = Math.min(start + sliceSize, messages.length);
+
+            partials.add(pool.submit(new Callable<TermTable>() {
+                public TermTable call() {
+                    return countMessages(messages, from, to, messageType);
                 }
+            }));
+        }
+
+        try {
+            for (Future<TermTable> partial : partials) {
+                vocab.merge(partial.get());
             }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        } finally {
+            pool.shutdown();
         }
     }
 
-    /// Replacement of the earlier tokenisation in the readMessages()
-    /// method. This way code can be reused.
-    public static List<String> tokeniseMessage(File message) {
-        List<String> tokens = new ArrayList<String>();
-
-        BufferedReader in = null;
-        FileInputStream fileInputStream = null;
+    /// Read all training messages with a CorpusIngester that has up to
+    /// maxOpenFiles files open at the same time. The counts are the same
+    /// as the ones of readMessages(), only the order of the terms differs.
+    static void ingestMessages(int maxOpenFiles) {
+        ConcurrentTermTable sink = new ConcurrentTermTable();
+        CorpusIngester ingester = new CorpusIngester(maxOpenFiles, MINIMAL_WORD_SIZE);
 
         try {
-            fileInputStream = new FileInputStream(message);
-            in = new BufferedReader(new InputStreamReader(fileInputStream));
-            String line, word;
+            ingester.ingest(listingRegular, false, sink);
+            ingester.ingest(listingSpam, true, sink);
+        } finally {
+            ingester.shutdown();
+        }
+        vocab.merge(sink.toTermTable());
+    }
 
-            // Read a line
-            while ((line = in.readLine()) != null) {                
+    /// Read all messages of a packed corpus and add their words to the
+    /// vocabulary, in the same order as the directory it was packed from.
+    static void readArchive(CorpusArchive archive) {
+        for (final boolean spam : new boolean[] { false, true }) {
+            Tokeniser.TokenConsumer consumer = Metrics.timed(new Tokeniser.TokenConsumer() {
+                public void token(char[] chars, int start, int length) {
+                    vocab.increment(chars, start, length, spam);
+                }
 
-                /// Remove punctuation
-                line = line.replaceAll("\\p{Punct}","");
+                public void endOfLine() {
+                }
+            }, Metrics.VOCABULARY_UPDATE);
 
-                /// Convert to lower case
-                line = line.toLowerCase();                
+            int nMessages = spam ? archive.getMessagesSpam()
+                                 : archive.getMessagesRegular();
+            for (int i = 0; i < nMessages; ++i) {
+                tokenise(tokeniser.get(), archive.message(spam, i), consumer);
+            }
+        }
+    }
 
-                // Parse it into words
-                StringTokenizer st = new StringTokenizer(line);                
+    // Open a packed corpus or stop with an error
+    private static CorpusArchive loadArchive(File file) {
+        try {
+            return CorpusArchive.load(file);
+        } catch (IOException ioe) {
+            System.out.println("- Error: could not load archive " + file
+                               + ": " + ioe.getMessage() + "\n");
+            Runtime.getRuntime().exit(0);
+            return null;
+        }
+    }
 
-                // While there are stille words left..
-                while (st.hasMoreTokens()) {
-                    tokens.add(st.nextToken());
-                }
+    /// Count the words of messages[from..to) into a new partial vocabulary.
+    /// Only used by the worker threads, so no locking is needed.
+    private static TermTable countMessages(
+            File[] messages, int from, int to, MessageType type) {
+        final TermTable partial = new TermTable();
+        final boolean spam = (type == MessageType.SPAM);
+        Tokeniser.TokenConsumer consumer = Metrics.timed(new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                partial.increment(chars, start, length, spam);
             }
-        } catch (FileNotFoundException fnfe) {
-            fnfe.printStackTrace();
-        } catch(IOException ioe) {
-            ioe.printStackTrace();
-        } finally {
-            /// Always close at the end, even if things go wrong.
-            try {
-                in.close();
-                fileInputStream.close();
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
+
+            public void endOfLine() {
             }
+        }, Metrics.VOCABULARY_UPDATE);
+
+        for (int i = from; i < to; ++i) {
+            tokenise(messages[i], consumer);
         }
 
+        return partial;
+    }
+
+    /// Replacement of the earlier tokenisation in the readMessages()
+    /// method. This way code can be reused. Returns the words that
+    /// are accepted by the tokeniser (long enough and not numeric).
+    public static List<String> tokeniseMessage(File message) {
+        final List<String> tokens = new ArrayList<String>();
+
+        tokenise(message, new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                tokens.add(new String(chars, start, length));
+            }
+
+            public void endOfLine() {
+            }
+        });
+
         return tokens;
     }
 
@@ -214,52 +400,272 @@ public class Bayespam {
     /// as one or the other type. Returns true if the message is regular,
     /// false if it is spam.
     public static boolean classifyMessage(File message, 
-            Hashtable<String, CategoricalProbabilities> probabilities,
-            Hashtable<String, MultipleCounter> vocabulary,
+            final Hashtable<String, CategoricalProbabilities> probabilities,
+            final TermTable vocabulary,
             double regularPrioriProbability,
             double spamPrioriProbability,
-            int amountOfWords) {
-
-        /// Get all the words in the message.
-        List<String> words = tokeniseMessage(message);
-        double wordProbability = 0;
-        double regularProbability = 0;
-        double spamProbability = 0;
+            final int amountOfWords) {
 
         /// Use Bayes to calculate the likelihood of the message being
-        /// either regular or spam.
-        for (String word : words) {
-            CategoricalProbabilities wordProbabilities = probabilities.get(word);
+        /// either regular or spam, one word at a time.
+        class MessageScore implements Tokeniser.TokenConsumer {
+            double wordProbability = 0;
+            double regularProbability = 0;
+            double spamProbability = 0;
+
+            public void token(char[] chars, int start, int length) {
+                String word = new String(chars, start, length);
+                CategoricalProbabilities wordProbabilities = probabilities.get(word);
+
+                /// Skip over words that are not part of the vocabulary.
+                if (wordProbabilities == null) {
+                    return;
+                }
 
-            /// Skip over words that are not part of the vocabulary.
-            if (wordProbabilities == null) {
-                continue;
-            }
-            
-            if (wordProbabilities != null) {
                 regularProbability += wordProbabilities.getRegularProbability();
                 spamProbability += wordProbabilities.getSpamProbability();
-            }
-            
-            MultipleCounter wordCounter = vocabulary.get(word);
-            if (wordCounter != null) {
-                wordProbability += 
-                        (wordCounter.counterRegular + wordCounter.counterSpam)
-                        / (double) amountOfWords;
+
+                int id = vocabulary.find(chars, start, length);
+                if (id >= 0) {
+                    wordProbability += 
+                            (vocabulary.getRegularCount(id) + vocabulary.getSpamCount(id))
+                            / (double) amountOfWords;
+                }
             }
 
+            public void endOfLine() {
+            }
         }
 
-        double probabilityRegular = (1 / wordProbability) 
+        MessageScore score = new MessageScore();
+        tokenise(message, score);
+
+        double probabilityRegular = (1 / score.wordProbability) 
                                     + regularPrioriProbability 
-                                    + regularProbability;
-        double probabilitySpam = (1 / wordProbability)
+                                    + score.regularProbability;
+        double probabilitySpam = (1 / score.wordProbability)
                                  + spamPrioriProbability
-                                 + spamProbability;
+                                 + score.spamProbability;
        
        return probabilityRegular > probabilitySpam; 
     }
     
+    /// Same as classifyMessage() above, but with the model compiled
+    /// into dense arrays after training: one lookup per word.
+    public static boolean classifyMessage(File message, CompiledModel model) {
+        return scoreMessage(message, model).isRegular();
+    }
+
+    /// Same as classifyMessage() above, for a message of a packed corpus.
+    public static boolean classifyMessage(ByteBuffer message, CompiledModel model) {
+        return scoreMessage(message, model).isRegular();
+    }
+
+    /// Score a message with the compiled model. With VECTOR_SCORING the
+    /// values of the words are added up in batches.
+    static CompiledModel.Score scoreMessage(File message, CompiledModel model) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+
+        /// The early exit needs the tokeniser, so not with the token cache.
+        if (EARLY_EXIT > 0 && tokenCaches == null) {
+            CompiledModel.SequentialScore score =
+                    model.newSequentialScore(tokeniser.get(), EARLY_EXIT);
+            tokenise(tokeniser.get(), message, score);
+            return recordClassification(start, score);
+        }
+
+        if (scoringKernel != null) {
+            CompiledModel.BatchScore score = model.newBatchScore(scoringKernel);
+            tokenise(message, score);
+            return recordClassification(start, score);
+        }
+
+        final CompiledModel.Score score = model.newScore();
+
+        tokenise(message, new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                score.add(chars, start, length);
+            }
+            public void endOfLine() {
+            }
+        });
+
+        return recordClassification(start, score);
+    }
+
+    /// Same as scoreMessage() above, for a message of a packed corpus.
+    static CompiledModel.Score scoreMessage(ByteBuffer message, CompiledModel model) {
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+
+        if (EARLY_EXIT > 0) {
+            CompiledModel.SequentialScore score =
+                    model.newSequentialScore(tokeniser.get(), EARLY_EXIT);
+            tokenise(tokeniser.get(), message, score);
+            return recordClassification(start, score);
+        }
+
+        if (scoringKernel != null) {
+            CompiledModel.BatchScore score = model.newBatchScore(scoringKernel);
+            tokenise(tokeniser.get(), message, score);
+            return recordClassification(start, score);
+        }
+
+        final CompiledModel.Score score = model.newScore();
+
+        tokenise(tokeniser.get(), message, new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                score.add(chars, start, length);
+            }
+            public void endOfLine() {
+            }
+        });
+
+        return recordClassification(start, score);
+    }
+
+    // Record the time and the unknown words of a classification
+    // that started at start
+    private static CompiledModel.Score recordClassification(long start,
+            CompiledModel.Score score) {
+        if (Metrics.ENABLED) {
+            long nanos = System.nanoTime() - start;
+            Metrics.CLASSIFY.record(nanos);
+            Metrics.CLASSIFY_LATENCY.record(nanos);
+            Metrics.TOKENS_OUT_OF_VOCABULARY.add(score.unknownWords);
+        }
+        return score;
+    }
+
+    /// Scores a message against a loaded model, one word at a time,
+    /// in the same way as classifyMessage() does.
+    static class ModelScore implements Tokeniser.TokenConsumer {
+        private final SpamModel model;
+        private final int amountOfWords;
+        double wordProbability = 0;
+        double regularProbability = 0;
+        double spamProbability = 0;
+
+        ModelScore(SpamModel model) {
+            this.model = model;
+            this.amountOfWords = model.getWordsRegular() + model.getWordsSpam();
+        }
+
+        public void token(char[] chars, int start, int length) {
+            int id = model.lookup(chars, start, length);
+
+            /// Skip over words that are not part of the vocabulary.
+            if (id < 0) {
+                return;
+            }
+
+            regularProbability += model.getRegularProbability(id);
+            spamProbability += model.getSpamProbability(id);
+            wordProbability += 
+                    (model.getRegularCount(id) + model.getSpamCount(id))
+                    / (double) amountOfWords;
+        }
+
+        public void endOfLine() {
+        }
+
+        /// True if the message is regular, false if it is spam.
+        boolean isRegular() {
+            double probabilityRegular = (1 / wordProbability) 
+                                        + model.getRegularPrioriProbability()
+                                        + regularProbability;
+            double probabilitySpam = (1 / wordProbability)
+                                     + model.getSpamPrioriProbability()
+                                     + spamProbability;
+
+            return probabilityRegular > probabilitySpam;
+        }
+
+        /// Log-likelihood ratio of spam against regular,
+        /// positive values lean towards spam.
+        double spamScore() {
+            return (model.getSpamPrioriProbability() + spamProbability)
+                   - (model.getRegularPrioriProbability() + regularProbability);
+        }
+    }
+
+    /// Same as classifyMessage() above, but with a loaded model
+    /// instead of the hash tables of a training run.
+    public static boolean classifyMessage(File message, SpamModel model) {
+        ModelScore score = new ModelScore(model);
+        tokenise(message, score);
+
+        return score.isRegular();
+    }
+
+    /// Score a message that is read from a Reader with a loaded model.
+    static ModelScore scoreMessage(Reader message, SpamModel model) 
+            throws IOException {
+        ModelScore score = new ModelScore(model);
+        tokeniser.get().tokenise(message, score);
+
+        return score;
+    }
+
+    /// Classify the test set with a model loaded from a file.
+    /// Usage: java Bayespam -model <model file> <test dir>
+    private static void classifyWithModel(File modelFile, File testDirLocation) {
+        SpamModel model = null;
+        try {
+            model = SpamModel.load(modelFile);
+        } catch (IOException ioe) {
+            System.out.println("- Error: could not load model " + modelFile 
+                               + ": " + ioe.getMessage() + "\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        listDirs(testDirLocation, false);
+
+        int trueNegatives = 0,
+            falsePositives = 0;
+        for (File message : testListingRegular) {
+            trueNegatives += classifyMessage(message, model) ? 1:0;
+        }
+        for (File message : testListingSpam) {
+            falsePositives += classifyMessage(message, model) ? 1:0;
+        }
+
+        printConfusionMatrix(trueNegatives, falsePositives,
+                             testListingRegular.length, testListingSpam.length);
+    }
+
+    /// Calculate the class conditional log-probabilities of every word
+    /// in the vocabulary. Words that never occur in one of the classes
+    /// get EPSILON divided by the total number of words.
+    static Hashtable<String, CategoricalProbabilities> calculateProbabilities(
+            TermTable vocabulary, int nWordsRegular, int nWordsSpam) {
+        Hashtable<String, CategoricalProbabilities> vocabProbabilities
+                = new Hashtable<String, CategoricalProbabilities>();
+
+        for (int id = 0; id < vocabulary.size(); id++) {
+            CategoricalProbabilities probabilities = new CategoricalProbabilities(
+                    logProbability(vocabulary.getRegularCount(id), nWordsRegular,
+                                   nWordsRegular + nWordsSpam, EPSILON),
+                    logProbability(vocabulary.getSpamCount(id), nWordsSpam,
+                                   nWordsRegular + nWordsSpam, EPSILON));
+        
+            vocabProbabilities.put(vocabulary.term(id), probabilities);
+        }
+
+        return vocabProbabilities;
+    }
+
+    /// The class conditional log-probability of a word that occurs count
+    /// times among the nWords words of a class. A word that never occurs
+    /// in the class gets epsilon divided by amountOfWords, the number of
+    /// words of both classes.
+    static double logProbability(int count, int nWords, int amountOfWords,
+            double epsilon) {
+        if (count == 0) {
+            return Math.log(epsilon / (double) amountOfWords);
+        }
+        return Math.log(count / (double) nWords);
+    }
+
     public static void printConfusionMatrix(int trueNegatives,
             int falsePositives, int nMessagesRegular, int nMessagesSpam) {
         int truePositives = nMessagesSpam - falsePositives;
@@ -276,84 +682,112 @@ public class Bayespam {
     }
         
     public static void main(String[] args) {
+        /// Classify with a saved model instead of training.
+        if (args.length == 3 && args[0].equals("-model")) {
+            classifyWithModel(new File(args[1]), new File(args[2]));
+            return;
+        }
+
+        /// Optionally save the trained model:
+        /// java Bayespam -save <model file> <train dir> <test dir>
+        File modelFile = null;
+        if (args.length == 4 && args[0].equals("-save")) {
+            modelFile = new File(args[1]);
+            args = Arrays.copyOfRange(args, 2, 4);
+        }
+
         // Location of the directory (the path) 
         // taken from the cmd line (first arg)
         File dirLocation = new File(args[0]);
-        
-        // Check if the cmd line arg is a directory
-        if (!dirLocation.isDirectory()) {
-            System.out.println("- Error: cmd line arg not a directory.\n");
-            Runtime.getRuntime().exit(0);
+        File testDirLocation = new File(args[1]);
+
+        /// Packed corpora are memory-mapped instead of listed.
+        if (dirLocation.isFile() && testDirLocation.isFile()) {
+            trainArchive = loadArchive(dirLocation);
+            testArchive = loadArchive(testDirLocation);
+        } else {
+            // Check if the cmd line arg is a directory
+            if (!dirLocation.isDirectory()) {
+                System.out.println("- Error: cmd line arg not a directory.\n");
+                Runtime.getRuntime().exit(0);
+            }
+
+            // Initialize the regular and spam lists
+            listDirs(dirLocation, true);
+            listDirs(testDirLocation, false);
+
+            if (TOKEN_CACHE != null) {
+                tokenCaches = openTokenCaches(new File(TOKEN_CACHE), MINIMAL_WORD_SIZE,
+                        new File[][] { listingRegular, listingSpam },
+                        new File[][] { testListingRegular, testListingSpam });
+            }
         }
 
-        // Initialize the regular and spam lists
-        listDirs(dirLocation, true);
-        
-        File testDirLocation = new File(args[1]);
-        listDirs(testDirLocation, false);
+        if (scoringKernel == ScoringKernel.SCALAR) {
+            System.err.println("- Warning: the vector kernel is not available,"
+                               + " scoring with the scalar kernel.");
+        }
 
         // Read the e-mail messages
-        readMessages(MessageType.NORMAL);
-        readMessages(MessageType.SPAM);
+        if (trainArchive != null) {
+            readArchive(trainArchive);
+        } else if (OPEN_FILES > 0) {
+            ingestMessages(OPEN_FILES);
+        } else {
+            readMessages(MessageType.NORMAL, TRAINING_THREADS);
+            readMessages(MessageType.SPAM, TRAINING_THREADS);
+        }
 
         // Print out the hash table
         //printVocab();
-        System.out.println(listingRegular.length);
-        System.out.println(listingSpam.length);
-
-        /// Calculate a priori class probabilities.
-        int nMessagesRegular = listingRegular.length;
-        int nMessagesSpam = listingSpam.length;
-        int totalMessages = nMessagesRegular + nMessagesSpam;
-        double regularPrioriProbability = 
-                Math.log(nMessagesRegular / (double) totalMessages);
-        double spamPrioriProbability = 
-                Math.log(nMessagesSpam / (double) totalMessages); 
-
-        /// Count the number of words in the vocab of the regular and spam mails.
-        Set<Map.Entry<String, MultipleCounter>> entrySet = vocab.entrySet();
-        int nWordsRegular = 0;
-        int nWordsSpam = 0;
-        for (Map.Entry<String, MultipleCounter> entry : entrySet) {
-            nWordsRegular += entry.getValue().counterRegular;
-            nWordsSpam += entry.getValue().counterSpam;
+        int nMessagesRegular = (trainArchive != null)
+                               ? trainArchive.getMessagesRegular() : listingRegular.length;
+        int nMessagesSpam = (trainArchive != null)
+                            ? trainArchive.getMessagesSpam() : listingSpam.length;
+        System.out.println(nMessagesRegular);
+        System.out.println(nMessagesSpam);
+
+        /// The words are the n-grams of order 1 of an NGramModel, which
+        /// calculates the a priori and the class conditional probabilities.
+        FeatureSelection.Criterion criterion = null;
+        if (TOP_K > 0) {
+            try {
+                criterion = FeatureSelection.criterion(SELECTION);
+            } catch (IllegalArgumentException iae) {
+                System.out.println("- Error: unknown feature selection " + SELECTION
+                                   + ", use ig or llr.\n");
+                Runtime.getRuntime().exit(0);
+            }
         }
 
-        Hashtable<String, CategoricalProbabilities> vocabProbabilities
-                = new Hashtable<String, CategoricalProbabilities>();
+        long probabilitiesStart = Metrics.ENABLED ? System.nanoTime() : 0;
+        NGramModel model = new NGramModel(new int[] { 1 }, new int[] { FREQUENCY_LIMIT });
+        model.addCounts(vocab, nMessagesRegular, nMessagesSpam);
+        model.compile();
+
+        /// Keep only the TOP_K best words. The probabilities of the words
+        /// are still calculated with the word counts of the whole vocabulary.
+        if (TOP_K > 0) {
+            int nWords = model.getVocabulary().size();
+            model.select(criterion, TOP_K);
+            System.err.println("- Feature selection: kept " + model.getVocabulary().size()
+                               + " of " + nWords + " words by " + SELECTION);
+        }
+        if (Metrics.ENABLED) {
+            Metrics.PROBABILITIES.record(System.nanoTime() - probabilitiesStart);
+        }
 
-        // Calculate class conditionals.
-        for (Map.Entry<String, MultipleCounter> entry : entrySet) {
-            int currentEntryRegular = entry.getValue().counterRegular;
-            int currentEntrySpam = entry.getValue().counterSpam;
-            double regularProbability, spamProbability;
-            
-            if (currentEntryRegular == 0) {
-                regularProbability = 
-                        Math.log(EPSILON / (double) (nWordsRegular + nWordsSpam));
-            } else {
-                regularProbability = Math.log(currentEntryRegular / (double) nWordsRegular);
-            }
-            
-            if (currentEntrySpam == 0) {
-                spamProbability = 
-                        Math.log(EPSILON / (double) (nWordsRegular + nWordsSpam));
-            } else {
-                spamProbability = Math.log(currentEntrySpam / (double) nWordsSpam);
-            }
-            
-            /*
-            if (regularProbability == 0) {
-                regularProbability = 
-                        Math.log(EPSILON / (nWordsRegular + nWordsSpam));
+        if (modelFile != null) {
+            try {
+                SpamModel.save(modelFile, model.getVocabulary(), model.getProbabilities(),
+                               model.getRegularPrioriProbability(),
+                               model.getSpamPrioriProbability(),
+                               model.getWordsRegular(0), model.getWordsSpam(0));
+            } catch (IOException ioe) {
+                System.out.println("- Error: could not save model " + modelFile
+                                   + ": " + ioe.getMessage() + "\n");
+                Runtime.getRuntime().exit(0);
             }
-            */
-
-            CategoricalProbabilities probabilities = 
-                    new CategoricalProbabilities(regularProbability, 
-                                                 spamProbability);
-            
-            vocabProbabilities.put(entry.getKey(), probabilities);
         }
 
         // Now all students must continue from here:
@@ -371,25 +805,43 @@ public class Bayespam {
         
         /// Calculating confusion matrix.
         
+        /// Compile the model for the classification of the test set.
+        CompiledModel compiledModel = model.compiledModel();
+
         /// We assume that finding spam is positive.
         int trueNegatives = 0,
             falsePositives = 0;
 
-        for (int i = 0; i < nMessagesRegular; i++) {
-            trueNegatives += 
-                    classifyMessage(testListingRegular[i], vocabProbabilities, vocab,
-                    regularPrioriProbability, spamPrioriProbability,
-                    nWordsRegular + nWordsSpam)? 1:0; 
+        if (EVALUATION_THREADS > 1) {
+            Evaluator evaluator = new Evaluator(compiledModel, EVALUATION_THREADS);
+            Evaluator.Result result = evaluator.evaluate((testArchive != null)
+                    ? Evaluator.archive(testArchive)
+                    : Evaluator.listings(testListingRegular, testListingSpam));
+
+            printConfusionMatrix(result.getTrueNegatives(), result.getFalsePositives(),
+                                 result.getMessagesRegular(), result.getMessagesSpam());
+            result.print(System.err, EVALUATION_THREADS);
+            return;
+        }
+
+        int nTestRegular = (testArchive != null)
+                           ? testArchive.getMessagesRegular() : testListingRegular.length;
+        int nTestSpam = (testArchive != null)
+                        ? testArchive.getMessagesSpam() : testListingSpam.length;
+
+        for (int i = 0; i < nTestRegular; i++) {
+            trueNegatives += ((testArchive != null)
+                    ? classifyMessage(testArchive.message(false, i), compiledModel)
+                    : classifyMessage(testListingRegular[i], compiledModel))? 1:0; 
         }
-        for (int i = 0; i < nMessagesSpam; i++) {
-            falsePositives += 
-                    classifyMessage(testListingSpam[i], vocabProbabilities, vocab,
-                    regularPrioriProbability, spamPrioriProbability,
-                    nWordsRegular + nWordsSpam)? 1:0; 
+        for (int i = 0; i < nTestSpam; i++) {
+            falsePositives += ((testArchive != null)
+                    ? classifyMessage(testArchive.message(true, i), compiledModel)
+                    : classifyMessage(testListingSpam[i], compiledModel))? 1:0; 
         }
         
         printConfusionMatrix(trueNegatives, falsePositives,
-                             nMessagesRegular, nMessagesSpam);
+                             nTestRegular, nTestSpam);
         
         
         // 8) Improve the code and the performance (speed, accuracy)
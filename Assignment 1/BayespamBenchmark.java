@@ -0,0 +1,1344 @@
+import java.io.*;
+import java.net.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/// End-to-end benchmark driver for the spam filter. The microbenchmarks
+/// of single stages and data structures are JMH benchmarks in
+/// benchmarks/bayespam/jmh (built with the benchmarks profile); the ones
+/// here run whole programs, servers, corpora on disk or memory layouts that
+/// do not fit a JMH fork, and take their timings with System.nanoTime()
+/// after a few warm-up rounds. Run it as
+///
+///     java BayespamBenchmark <benchmark> [arguments]
+///
+/// Available benchmarks:
+///
+///     training <train dir> [copies] [max threads]
+///         Times Bayespam training with 1, 2, 4, .. max threads and checks
+///         that every run produces the same vocabulary as the sequential
+///         one. The corpus is repeated copies times to get a larger load.
+///
+///     memory <train dir> [synthetic terms]
+///         Compares the heap used by the vocabulary in a TermTable with
+///         the earlier Hashtable<String, MultipleCounter>, for the unigram
+///         and bigram vocabularies of the corpus and for a synthetic
+///         vocabulary of the given number of distinct terms.
+///
+///     server <model file> <test dir> [connections] [seconds]
+///         Starts a BayespamServer on a loopback port and sends it the
+///         test messages over the given number of pipelined connections.
+///         Reports the throughput and the latency percentiles.
+///
+///     scoring <train dir> <test dir>
+///         Times the classification of the test set with the hash tables
+///         of the training run and with the compiled model, and checks
+///         that both give the same classification.
+///
+///     online <train dir> <test dir>
+///         Trains an OnlineModel one message at a time, reports the time per
+///         update, checks that it classifies the test set like the batch
+///         model, then removes and adds back every spam message while
+///         another thread keeps classifying.
+///
+///     large-message <train dir> [megabytes]
+///         Classifies generated messages of 1 MB up to the given size (text
+///         with base64 attachments) and reports the time and the bytes
+///         allocated per message, which should not grow with the size.
+///
+///     hashing <train dir> <test dir> [max bits]
+///         Compares the accuracy and the memory of the exact unigram and
+///         bigram vocabularies with hashed feature spaces of 8, 10, ..
+///         max bits (see HashedFeatureTable).
+///
+///     sketch <messages> [sketch bits]
+///         Generates a corpus of the given number of messages with a Zipf
+///         distribution of words, so that most bigrams occur only once, and
+///         trains BigramBayespam on it with and without the count-min sketch
+///         pre-filter. Reports the time, the bigrams stored before filtering,
+///         the bytes of the table and sketch and the peak heap, and checks
+///         that the filtered vocabularies are the same.
+///
+///     ingestion <train dir> [copies] [max open files]
+///         Copies the training set copies times into a temporary directory
+///         and trains Bayespam on it with the sequential readMessages() and
+///         with a CorpusIngester of 16, 64 .. max open files. Reports the
+///         files per second with a warm page cache and, when the benchmark
+///         may drop the page cache (root on Linux), with a cold one.
+///
+///     archive <train dir> <test dir> [copies]
+///         Copies the train and test sets copies times, packs both into a
+///         CorpusArchive and times training and classifying end to end,
+///         from the directories and from the archives, including the
+///         listing or loading. Cold page cache timings as for ingestion.
+///
+///     token-cache <train dir> <test dir> [copies]
+///         Times training and classifying the train and test sets (repeated
+///         copies times) when tokenising every message, when building the
+///         TokenCaches and when replaying them, and checks that a changed
+///         test message makes only the cache of the test set build again.
+///
+///     ngram <train dir> <test dir> [copies]
+///         Times training and classifying with the unigram and the bigram
+///         models one after the other, each reading every message, and
+///         with one NGramModel of orders 1 and 2, and checks that both
+///         give the same classification per order.
+///
+///     offheap <train dir> <test dir> [synthetic bigrams]
+///         Trains BigramBayespam, adds the given number of synthetic bigrams
+///         to the filtered vocabulary and keeps the model for classification
+///         on the heap (the Hashtable and the CompiledModel of BigramBayespam)
+///         and in an OffHeapModel. Reports the build time, the heap in use,
+///         the bytes off the heap, the time of a full garbage collection and
+///         the time to classify the test set, and checks that both classify
+///         the test set the same. Run with a heap that fits the larger one.
+///
+public class BayespamBenchmark {
+    /// Number of untimed rounds before measuring.
+    public final static int WARMUP_ROUNDS = 3;
+
+    /// Number of timed rounds, the best one is reported.
+    public final static int MEASURED_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("- Usage: java BayespamBenchmark <benchmark>"
+                               + " [arguments]\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        if (args[0].equals("training")) {
+            benchmarkTraining(args);
+        } else if (args[0].equals("memory")) {
+            benchmarkMemory(args);
+        } else if (args[0].equals("server")) {
+            benchmarkServer(args);
+        } else if (args[0].equals("scoring")) {
+            benchmarkScoring(args);
+        } else if (args[0].equals("online")) {
+            benchmarkOnline(args);
+        } else if (args[0].equals("large-message")) {
+            benchmarkLargeMessage(args);
+        } else if (args[0].equals("hashing")) {
+            benchmarkHashing(args);
+        } else if (args[0].equals("sketch")) {
+            benchmarkSketch(args);
+        } else if (args[0].equals("ingestion")) {
+            benchmarkIngestion(args);
+        } else if (args[0].equals("archive")) {
+            benchmarkArchive(args);
+        } else if (args[0].equals("token-cache")) {
+            benchmarkTokenCache(args);
+        } else if (args[0].equals("ngram")) {
+            benchmarkNGram(args);
+        } else if (args[0].equals("offheap")) {
+            benchmarkOffHeap(args);
+        } else {
+            System.out.println("- Error: unknown benchmark " + args[0] + ".\n");
+            Runtime.getRuntime().exit(0);
+        }
+    }
+
+    /// Repeat a listing of files a number of times.
+    static File[] repeat(File[] listing, int copies) {
+        File[] repeated = new File[listing.length * copies];
+        for (int i = 0; i < copies; i++) {
+            System.arraycopy(listing, 0, repeated, i * listing.length,
+                             listing.length);
+        }
+        return repeated;
+    }
+
+    /// Parse an optional integer argument.
+    static int intArgument(String[] args, int index, int defaultValue) {
+        return (args.length > index) ? Integer.parseInt(args[index]) 
+                                     : defaultValue;
+    }
+
+    // Benchmark the parallel training of Bayespam
+    private static void benchmarkTraining(String[] args) {
+        int copies = intArgument(args, 2, 20);
+        int maxThreads = intArgument(args, 3, 
+                Runtime.getRuntime().availableProcessors());
+
+        Bayespam.listDirs(new File(args[1]), true);
+        Bayespam.listingRegular = repeat(Bayespam.listingRegular, copies);
+        Bayespam.listingSpam = repeat(Bayespam.listingSpam, copies);
+        int nMessages = Bayespam.listingRegular.length 
+                        + Bayespam.listingSpam.length;
+
+        trainBayespam(1);
+        TermTable reference = Bayespam.vocab;
+        double sequentialTime = 0;
+
+        System.out.println("threads\tms\tmsg/s\tspeed-up\tidentical");
+        for (int nThreads = 1; nThreads <= maxThreads; nThreads *= 2) {
+            final int threads = nThreads;
+            double time = measure(new Runnable() {
+                public void run() {
+                    trainBayespam(threads);
+                }
+            });
+            if (nThreads == 1) {
+                sequentialTime = time;
+            }
+
+            System.out.printf("%d\t%.1f\t%.0f\t%.2f\t\t%b\n", nThreads, 
+                    time * 1e3, nMessages / time, sequentialTime / time,
+                    sameVocabulary(reference, Bayespam.vocab));
+        }
+    }
+
+    // Train Bayespam from scratch on the current listings
+    private static void trainBayespam(int nThreads) {
+        Bayespam.vocab = new TermTable();
+        Bayespam.readMessages(Bayespam.MessageType.NORMAL, nThreads);
+        Bayespam.readMessages(Bayespam.MessageType.SPAM, nThreads);
+    }
+
+    // Check that two vocabularies contain the same words and counts
+    static boolean sameVocabulary(TermTable a, TermTable b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int id = 0; id < a.size(); id++) {
+            int other = b.find(a.term(id));
+            if (other < 0
+                    || b.getRegularCount(other) != a.getRegularCount(id)
+                    || b.getSpamCount(other) != a.getSpamCount(id)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The counter of the earlier Hashtable vocabulary, for comparison
+    private static class MultipleCounter {
+        int counterSpam    = 0;
+        int counterRegular = 0;
+    }
+
+    // Benchmark the heap used by the vocabulary
+    private static void benchmarkMemory(String[] args) {
+        int syntheticTerms = intArgument(args, 2, 1000000);
+        final List<String> unigrams = new ArrayList<String>();
+        final List<String> bigrams = new ArrayList<String>();
+        Tokeniser tokeniser = new Tokeniser(Bayespam.MINIMAL_WORD_SIZE);
+
+        Bayespam.listDirs(new File(args[1]), true);
+        for (File[] listing : new File[][] { Bayespam.listingRegular,
+                                            Bayespam.listingSpam }) {
+            for (File message : listing) {
+                tokeniser.tokenise(message, new Tokeniser.TokenConsumer() {
+                    public void token(char[] chars, int start, int length) {
+                        unigrams.add(new String(chars, start, length));
+                    }
+
+                    public void endOfLine() {
+                    }
+                });
+                tokeniser.tokenise(message, new BigramBayespam.BigramConsumer() {
+                    void bigram(char[] chars, int start, int length) {
+                        bigrams.add(new String(chars, start, length));
+                    }
+                });
+            }
+        }
+
+        List<String> synthetic = new ArrayList<String>(syntheticTerms);
+        Random random = new Random(42);
+        for (int i = 0; i < syntheticTerms; i++) {
+            synthetic.add(Long.toString(random.nextLong() & Long.MAX_VALUE, 36)
+                          + " " + Integer.toString(i, 36));
+        }
+
+        System.out.println("vocabulary\tterms\tHashtable bytes\tTermTable bytes"
+                           + "\tbytes/term\tbytes/term");
+        compareMemory("unigrams", unigrams);
+        compareMemory("bigrams", bigrams);
+        compareMemory("synthetic", synthetic);
+    }
+
+    // Measure both vocabulary layouts for the same stream of tokens
+    private static void compareMemory(String name, List<String> tokens) {
+        long before = usedMemory();
+        Hashtable<String, MultipleCounter> hashtable = 
+                new Hashtable<String, MultipleCounter>();
+        for (String token : tokens) {
+            /// Every token is a separate String, as it was when it came
+            /// from the tokeniser.
+            String word = new String(token.toCharArray());
+            MultipleCounter counter = hashtable.get(word);
+            if (counter == null) {
+                counter = new MultipleCounter();
+                hashtable.put(word, counter);
+            }
+            ++counter.counterRegular;
+        }
+        long hashtableBytes = usedMemory() - before;
+        int nTerms = hashtable.size();
+        hashtable = null;
+
+        before = usedMemory();
+        TermTable table = new TermTable();
+        for (String token : tokens) {
+            table.increment(token.toCharArray(), 0, token.length(), false);
+        }
+        long tableBytes = usedMemory() - before;
+
+        System.out.printf("%s\t%d\t%d\t%d\t%.1f\t\t%.1f\n", name, nTerms,
+                hashtableBytes, tableBytes, hashtableBytes / (double) nTerms,
+                tableBytes / (double) table.size());
+    }
+
+    /// Heap in use after a garbage collection.
+    static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /// This defines the number of requests a load generator connection
+    /// sends before it waits for a response.
+    public final static int PIPELINE_WINDOW = 128;
+
+    // Load test a BayespamServer over loopback connections
+    private static void benchmarkServer(String[] args) throws Exception {
+        SpamModel model = SpamModel.load(new File(args[1]));
+        int nConnections = intArgument(args, 3, 4);
+        int seconds = intArgument(args, 4, 10);
+
+        Bayespam.listDirs(new File(args[2]), false);
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        for (File[] listing : new File[][] { Bayespam.testListingRegular,
+                                            Bayespam.testListingSpam }) {
+            for (File message : listing) {
+                messages.add(Files.readAllBytes(message.toPath()));
+            }
+        }
+
+        final BayespamServer server =
+                new BayespamServer(model, BayespamServer.SCORING_THREADS);
+        final ServerSocket serverSocket =
+                new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    server.listen(serverSocket);
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+        });
+        acceptor.start();
+
+        final long deadline = System.nanoTime() + seconds * 1000000000L;
+        List<Future<long[]>> clients = new ArrayList<Future<long[]>>();
+        ExecutorService pool = Executors.newFixedThreadPool(nConnections);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < nConnections; i++) {
+            clients.add(pool.submit(new Callable<long[]>() {
+                public long[] call() throws Exception {
+                    return runClient(serverSocket.getLocalPort(), messages, deadline);
+                }
+            }));
+        }
+
+        List<long[]> latencies = new ArrayList<long[]>();
+        int nRequests = 0;
+        for (Future<long[]> client : clients) {
+            long[] clientLatencies = client.get();
+            latencies.add(clientLatencies);
+            nRequests += clientLatencies.length;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        pool.shutdown();
+        serverSocket.close();
+        server.shutdown();
+
+        long[] all = new long[nRequests];
+        int n = 0;
+        for (long[] clientLatencies : latencies) {
+            System.arraycopy(clientLatencies, 0, all, n, clientLatencies.length);
+            n += clientLatencies.length;
+        }
+        Arrays.sort(all);
+
+        System.out.printf("connections\tthreads\tmessages\tmsg/s\tp50 ms\tp99 ms"
+                          + "\tmax ms\n");
+        System.out.printf("%d\t\t%d\t%d\t\t%.0f\t%.2f\t%.2f\t%.2f\n",
+                nConnections, BayespamServer.SCORING_THREADS, nRequests,
+                nRequests / elapsed, percentile(all, 0.50) / 1e6,
+                percentile(all, 0.99) / 1e6, all[all.length - 1] / 1e6);
+    }
+
+    // Send messages over one connection until the deadline and
+    // return the latency of every request in nanoseconds
+    private static long[] runClient(int port, final List<byte[]> messages,
+            final long deadline) throws Exception {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        final Semaphore window = new Semaphore(PIPELINE_WINDOW);
+        final ConcurrentLinkedQueue<Long> sendTimes = new ConcurrentLinkedQueue<Long>();
+
+        Thread sender = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    OutputStream out =
+                            new BufferedOutputStream(socket.getOutputStream());
+                    for (int i = 0; System.nanoTime() < deadline; i++) {
+                        byte[] message = messages.get(i % messages.size());
+                        window.acquire();
+                        sendTimes.add(System.nanoTime());
+                        out.write((message.length + "\n").getBytes("US-ASCII"));
+                        out.write(message);
+                        if (window.availablePermits() == 0) {
+                            out.flush();
+                        }
+                    }
+                    out.flush();
+                    socket.shutdownOutput();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        sender.start();
+
+        long[] latencies = new long[1024];
+        int n = 0;
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+        while (in.readLine() != null) {
+            long latency = System.nanoTime() - sendTimes.poll();
+            window.release();
+            if (n == latencies.length) {
+                latencies = Arrays.copyOf(latencies, 2 * n);
+            }
+            latencies[n++] = latency;
+        }
+        sender.join();
+        socket.close();
+
+        return Arrays.copyOf(latencies, n);
+    }
+
+    /// Value at a fraction of a sorted array.
+    static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    // Compare the hash table and the compiled classification
+    private static void benchmarkScoring(String[] args) {
+        Bayespam.listDirs(new File(args[1]), true);
+        Bayespam.listDirs(new File(args[2]), false);
+        trainBayespam(1);
+
+        final TermTable vocab = Bayespam.vocab;
+        int nMessagesRegular = Bayespam.listingRegular.length;
+        int nMessagesSpam = Bayespam.listingSpam.length;
+        final double regularPrioriProbability = 
+                Math.log(nMessagesRegular / (double) (nMessagesRegular + nMessagesSpam));
+        final double spamPrioriProbability = 
+                Math.log(nMessagesSpam / (double) (nMessagesRegular + nMessagesSpam));
+        int nWordsRegular = 0;
+        int nWordsSpam = 0;
+        for (int id = 0; id < vocab.size(); id++) {
+            nWordsRegular += vocab.getRegularCount(id);
+            nWordsSpam += vocab.getSpamCount(id);
+        }
+        final int amountOfWords = nWordsRegular + nWordsSpam;
+        final Hashtable<String, CategoricalProbabilities> probabilities = 
+                Bayespam.calculateProbabilities(vocab, nWordsRegular, nWordsSpam);
+        final CompiledModel compiled = CompiledModel.compile(vocab, probabilities,
+                regularPrioriProbability, spamPrioriProbability, amountOfWords);
+
+        final List<File> messages = new ArrayList<File>();
+        messages.addAll(Arrays.asList(Bayespam.testListingRegular));
+        messages.addAll(Arrays.asList(Bayespam.testListingSpam));
+        final boolean[] hashtableResults = new boolean[messages.size()];
+        final boolean[] compiledResults = new boolean[messages.size()];
+
+        double hashtableTime = measure(new Runnable() {
+            public void run() {
+                for (int i = 0; i < messages.size(); i++) {
+                    hashtableResults[i] = Bayespam.classifyMessage(messages.get(i),
+                            probabilities, vocab, regularPrioriProbability,
+                            spamPrioriProbability, amountOfWords);
+                }
+            }
+        });
+        double compiledTime = measure(new Runnable() {
+            public void run() {
+                for (int i = 0; i < messages.size(); i++) {
+                    compiledResults[i] = 
+                            Bayespam.classifyMessage(messages.get(i), compiled);
+                }
+            }
+        });
+
+        System.out.println("model\t\tms\tmsg/s");
+        System.out.printf("hash tables\t%.2f\t%.0f\n", hashtableTime * 1e3,
+                          messages.size() / hashtableTime);
+        System.out.printf("compiled\t%.2f\t%.0f\n", compiledTime * 1e3,
+                          messages.size() / compiledTime);
+        System.out.printf("speed-up %.2f, identical classification: %b\n",
+                hashtableTime / compiledTime,
+                Arrays.equals(hashtableResults, compiledResults));
+    }
+
+    // Train an OnlineModel message by message
+    private static void benchmarkOnline(String[] args) throws Exception {
+        Bayespam.listDirs(new File(args[1]), true);
+        Bayespam.listDirs(new File(args[2]), false);
+        final CompiledModel batch = compileBayespam();
+
+        final OnlineModel online = new OnlineModel();
+        long start = System.nanoTime();
+        for (File message : Bayespam.listingRegular) {
+            online.addMessage(message, false);
+        }
+        for (File message : Bayespam.listingSpam) {
+            online.addMessage(message, true);
+        }
+        double updateTime = (System.nanoTime() - start) / 1e9;
+        int nUpdates = Bayespam.listingRegular.length + Bayespam.listingSpam.length;
+
+        final List<File> messages = new ArrayList<File>();
+        messages.addAll(Arrays.asList(Bayespam.testListingRegular));
+        messages.addAll(Arrays.asList(Bayespam.testListingSpam));
+        boolean identical = true;
+        for (File message : messages) {
+            identical &= online.classifyMessage(message)
+                         == Bayespam.classifyMessage(message, batch);
+        }
+
+        /// Keep classifying while the spam messages are removed and added.
+        final AtomicBoolean updating = new AtomicBoolean(true);
+        final int[] nClassified = new int[1];
+        Thread classifier = new Thread(new Runnable() {
+            public void run() {
+                while (updating.get()) {
+                    for (File message : messages) {
+                        online.classifyMessage(message);
+                        ++nClassified[0];
+                    }
+                }
+            }
+        });
+        classifier.start();
+        start = System.nanoTime();
+        for (File message : Bayespam.listingSpam) {
+            online.removeMessage(message, true);
+            online.addMessage(message, true);
+        }
+        double concurrentTime = (System.nanoTime() - start) / 1e9;
+        updating.set(false);
+        classifier.join();
+
+        for (File message : messages) {
+            identical &= online.classifyMessage(message)
+                         == Bayespam.classifyMessage(message, batch);
+        }
+
+        System.out.printf("%d updates in %.1f ms (%.1f us/update)\n", nUpdates,
+                updateTime * 1e3, updateTime * 1e6 / nUpdates);
+        System.out.printf("%d remove/add pairs in %.1f ms while %d messages"
+                + " were classified\n", Bayespam.listingSpam.length,
+                concurrentTime * 1e3, nClassified[0]);
+        System.out.println("same classification as the batch model: " + identical);
+    }
+
+    // Train Bayespam on the current listings and compile the model
+    static CompiledModel compileBayespam() {
+        trainBayespam(1);
+        return compileVocabulary(Bayespam.listingRegular.length,
+                                 Bayespam.listingSpam.length);
+    }
+
+    // Compile the current vocabulary of Bayespam
+    static CompiledModel compileVocabulary(int nMessagesRegular, int nMessagesSpam) {
+        TermTable vocab = Bayespam.vocab;
+        int nWordsRegular = 0;
+        int nWordsSpam = 0;
+        for (int id = 0; id < vocab.size(); id++) {
+            nWordsRegular += vocab.getRegularCount(id);
+            nWordsSpam += vocab.getSpamCount(id);
+        }
+
+        return CompiledModel.compile(vocab,
+                Bayespam.calculateProbabilities(vocab, nWordsRegular, nWordsSpam),
+                Math.log(nMessagesRegular / (double) (nMessagesRegular + nMessagesSpam)),
+                Math.log(nMessagesSpam / (double) (nMessagesRegular + nMessagesSpam)),
+                nWordsRegular + nWordsSpam);
+    }
+
+    // Classify generated messages of growing size
+    private static void benchmarkLargeMessage(String[] args) throws IOException {
+        int maxMegabytes = intArgument(args, 2, 256);
+        Bayespam.listDirs(new File(args[1]), true);
+        final CompiledModel model = compileBayespam();
+
+        System.out.println("MB\tms\tMB/s\tallocated bytes");
+        for (int megabytes = 1; megabytes <= maxMegabytes; megabytes *= 4) {
+            final File message = File.createTempFile("large-message", ".msg");
+            try {
+                writeLargeMessage(message, megabytes);
+
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                Bayespam.classifyMessage(message, model);
+                double time = (System.nanoTime() - start) / 1e9;
+                long allocated = allocatedBytes() - allocatedBefore;
+
+                System.out.printf("%d\t%.1f\t%.1f\t%d\n", megabytes, time * 1e3,
+                                  megabytes / time, allocated);
+            } finally {
+                message.delete();
+            }
+        }
+    }
+
+    // Write a message of text lines followed by base64 attachment lines
+    private static void writeLargeMessage(File file, int megabytes)
+            throws IOException {
+        String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        Random random = new Random(megabytes);
+        Writer out = new BufferedWriter(new FileWriter(file));
+        long size = 0;
+
+        try {
+            String header = "Subject: free money for your business today\n"
+                            + "Content-Transfer-Encoding: base64\n\n";
+            out.write(header);
+            size += header.length();
+
+            char[] line = new char[77];
+            line[76] = '\n';
+            while (size < megabytes * 1024L * 1024L) {
+                for (int i = 0; i < 76; i++) {
+                    line[i] = alphabet.charAt(random.nextInt(alphabet.length()));
+                }
+                out.write(line);
+                size += line.length;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Compare exact and hashed vocabularies
+    private static void benchmarkHashing(String[] args) {
+        int maxBits = intArgument(args, 3, 22);
+        Bayespam.listDirs(new File(args[1]), true);
+        Bayespam.listDirs(new File(args[2]), false);
+
+        System.out.println("features\tvocabulary\tterms/slots\tcount bytes"
+                           + "\tmodel bytes\taccuracy");
+
+        /// The exact unigram vocabulary of Bayespam, which is not filtered.
+        CompiledModel unigrams = compileBayespam();
+        int correct = 0;
+        for (File message : Bayespam.testListingRegular) {
+            correct += Bayespam.classifyMessage(message, unigrams) ? 1 : 0;
+        }
+        for (File message : Bayespam.testListingSpam) {
+            correct += Bayespam.classifyMessage(message, unigrams) ? 0 : 1;
+        }
+        printHashingRow("unigrams", "exact", unigrams.size(),
+                Bayespam.vocab.memoryFootprint(), 24L * unigrams.size(), correct);
+        for (int bits = 8; bits <= maxBits; bits += 2) {
+            benchmarkHashed("unigrams", 1, bits, 0);
+        }
+
+        /// The exact bigram vocabulary of BigramBayespam, filtered
+        /// after counting.
+        TermTable counted = countBigrams();
+        CompiledModel bigrams = compileBigrams(counted);
+        correct = 0;
+        for (File message : Bayespam.testListingRegular) {
+            correct += BigramBayespam.classifyMessage(message, bigrams) ? 1 : 0;
+        }
+        for (File message : Bayespam.testListingSpam) {
+            correct += BigramBayespam.classifyMessage(message, bigrams) ? 0 : 1;
+        }
+        /// The counts are at their largest before filtering.
+        printHashingRow("bigrams", "exact", counted.size(),
+                counted.memoryFootprint(), 24L * bigrams.size(), correct);
+        for (int bits = 8; bits <= maxBits; bits += 2) {
+            benchmarkHashed("bigrams", 2, bits, BigramBayespam.FREQUENCY_LIMIT);
+        }
+    }
+
+    // Count the bigrams of the training listings of Bayespam
+    static TermTable countBigrams() {
+        final TermTable counted = new TermTable();
+        for (File[] listing : new File[][] { Bayespam.listingRegular,
+                                            Bayespam.listingSpam }) {
+            final boolean spam = (listing == Bayespam.listingSpam);
+            for (File message : listing) {
+                Bayespam.tokenise(message, new BigramBayespam.BigramConsumer() {
+                    void bigram(char[] chars, int start, int length) {
+                        counted.increment(chars, start, length, spam);
+                    }
+                });
+            }
+        }
+        return counted;
+    }
+
+    // Filter counted bigrams and compile them as BigramBayespam does
+    static CompiledModel compileBigrams(TermTable counted) {
+        TermTable filtered = counted.filter(BigramBayespam.FREQUENCY_LIMIT);
+        int nWordsRegular = 0;
+        int nWordsSpam = 0;
+        for (int id = 0; id < filtered.size(); id++) {
+            nWordsRegular += filtered.getRegularCount(id);
+            nWordsSpam += filtered.getSpamCount(id);
+        }
+        int nMessagesRegular = Bayespam.listingRegular.length;
+        int nMessagesSpam = Bayespam.listingSpam.length;
+        return CompiledModel.compile(filtered,
+                Bayespam.calculateProbabilities(filtered, nWordsRegular, nWordsSpam),
+                Math.log(nMessagesRegular / (double) (nMessagesRegular + nMessagesSpam)),
+                Math.log(nMessagesSpam / (double) (nMessagesRegular + nMessagesSpam)),
+                nWordsRegular + nWordsSpam);
+    }
+
+    // Train and test one hashed feature space
+    private static void benchmarkHashed(String name, int order, int bits,
+            int minimalCount) {
+        final HashedFeatureTable features = new HashedFeatureTable(bits);
+        Tokeniser tokeniser = new Tokeniser(Bayespam.MINIMAL_WORD_SIZE);
+
+        for (File[] listing : new File[][] { Bayespam.listingRegular,
+                                            Bayespam.listingSpam }) {
+            final boolean spam = (listing == Bayespam.listingSpam);
+            for (File message : listing) {
+                tokeniser.tokenise(message, new HashedFeatureTable.FeatureConsumer(order) {
+                    public void feature(int hash) {
+                        features.increment(hash, spam);
+                    }
+                });
+            }
+        }
+        features.filter(minimalCount);
+
+        HashedFeatureTable.Model model = features.compile(
+                Bayespam.listingRegular.length, Bayespam.listingSpam.length);
+        int correct = 0;
+        for (File[] listing : new File[][] { Bayespam.testListingRegular,
+                                            Bayespam.testListingSpam }) {
+            boolean spam = (listing == Bayespam.testListingSpam);
+            for (File message : listing) {
+                final HashedFeatureTable.Model.Score score = model.newScore();
+                tokeniser.tokenise(message, new HashedFeatureTable.FeatureConsumer(order) {
+                    public void feature(int hash) {
+                        score.add(hash);
+                    }
+                });
+                correct += (score.isRegular() != spam) ? 1 : 0;
+            }
+        }
+
+        printHashingRow(name, bits + " bits", features.size(),
+                features.memoryFootprint(), model.memoryFootprint(), correct);
+    }
+
+    private static void printHashingRow(String name, String vocabulary,
+            int size, long countBytes, long modelBytes, int correct) {
+        int nMessages = Bayespam.testListingRegular.length
+                        + Bayespam.testListingSpam.length;
+        System.out.printf("%s\t%s\t\t%d\t\t%d\t\t%d\t\t%.1f%%\n", name, vocabulary,
+                size, countBytes, modelBytes, correct * 100 / (double) nMessages);
+    }
+
+    // Compare BigramBayespam training with and without the sketch
+    private static void benchmarkSketch(String[] args) throws IOException {
+        int nMessages = intArgument(args, 1, 20000);
+        int sketchBits = intArgument(args, 2, 20);
+        File corpus = Files.createTempDirectory("sketch-corpus").toFile();
+
+        try {
+            writeZipfCorpus(corpus, nMessages);
+            BigramBayespam.listDirs(corpus, true);
+
+            System.out.println("training\tms\tstored bigrams\ttable bytes"
+                               + "\tsketch bytes\tpeak heap\tfiltered");
+            TermTable exact = trainBigrams("exact", 0);
+            TermTable sketched = trainBigrams("sketch", sketchBits);
+            System.out.println("same filtered vocabulary: "
+                               + sameVocabulary(exact, sketched));
+        } finally {
+            deleteCorpus(corpus);
+        }
+    }
+
+    // Train BigramBayespam on its listings, with a sketch if bits > 0,
+    // and return the filtered vocabulary
+    private static TermTable trainBigrams(String name, int bits) {
+        BigramBayespam.words = new TermTable();
+        BigramBayespam.bigrams = new LongCountTable();
+        BigramBayespam.vocab = new TermTable();
+        usedMemory();
+        resetPeakHeap();
+
+        long start = System.nanoTime();
+        CountMinSketch sketch = (bits > 0) ? BigramBayespam.sketchBigrams(bits) : null;
+        BigramBayespam.readMessages(BigramBayespam.MessageType.NORMAL, sketch);
+        BigramBayespam.readMessages(BigramBayespam.MessageType.SPAM, sketch);
+        int stored = BigramBayespam.bigrams.size();
+        long tableBytes = BigramBayespam.bigrams.memoryFootprint()
+                          + BigramBayespam.words.memoryFootprint();
+        BigramBayespam.filterByFrequency();
+        double time = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%s\t\t%.0f\t%d\t\t%d\t%d\t\t%d\t%d\n", name, time * 1e3,
+                stored, tableBytes, (sketch == null) ? 0 : sketch.memoryFootprint(),
+                peakHeap(), BigramBayespam.vocab.size());
+        return BigramBayespam.vocab;
+    }
+
+    // Write messages of words drawn from a Zipf distribution into
+    // regular/ and spam/ subdirectories
+    private static void writeZipfCorpus(File corpus, int nMessages)
+            throws IOException {
+        int nWords = 200000;
+        Random random = new Random(7);
+        String[] words = new String[nWords];
+        double[] cumulative = new double[nWords];
+        double total = 0;
+
+        for (int i = 0; i < nWords; i++) {
+            char[] word = new char[4 + random.nextInt(7)];
+            for (int j = 0; j < word.length; j++) {
+                word[j] = (char) ('a' + random.nextInt(26));
+            }
+            words[i] = new String(word);
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+
+        for (String type : new String[] { "regular", "spam" }) {
+            File directory = new File(corpus, type);
+            directory.mkdir();
+
+            for (int m = 0; m < nMessages / 2; m++) {
+                Writer out = new BufferedWriter(
+                        new FileWriter(new File(directory, m + ".msg")));
+                try {
+                    for (int line = 0; line < 30; line++) {
+                        for (int w = 0; w < 10; w++) {
+                            int index = Arrays.binarySearch(cumulative,
+                                                            random.nextDouble() * total);
+                            out.write(words[Math.min((index < 0) ? -index - 1 : index,
+                                                     nWords - 1)]);
+                            out.write(' ');
+                        }
+                        out.write('\n');
+                    }
+                } finally {
+                    out.close();
+                }
+            }
+        }
+    }
+
+    // Start measuring the peak use of the heap from here
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /// The peak use of the heap since resetPeakHeap(), summed over the
+    /// heap pools. It includes garbage that was not collected yet.
+    static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    // Compare sequential and concurrent reading of many small files
+    private static void benchmarkIngestion(String[] args) throws IOException {
+        int copies = intArgument(args, 2, 50);
+        int maxOpenFiles = intArgument(args, 3, 256);
+        File corpus = Files.createTempDirectory("ingestion-corpus").toFile();
+
+        try {
+            Bayespam.listDirs(new File(args[1]), true);
+            copyCorpus(corpus, copies);
+            Bayespam.listDirs(corpus, true);
+            final int nFiles = Bayespam.listingRegular.length
+                               + Bayespam.listingSpam.length;
+
+            Bayespam.vocab = new TermTable();
+            Bayespam.readMessages(Bayespam.MessageType.NORMAL);
+            Bayespam.readMessages(Bayespam.MessageType.SPAM);
+            TermTable reference = Bayespam.vocab;
+
+            System.out.println("virtual threads: "
+                    + (CorpusIngester.newVirtualThreadExecutor() != null));
+            System.out.println("reader\t\twarm files/s\tcold files/s\tidentical");
+            printIngestionRow("sequential", nFiles, 0, reference);
+            for (int openFiles = 16; openFiles <= maxOpenFiles; openFiles *= 4) {
+                printIngestionRow(openFiles + " open", nFiles, openFiles, reference);
+            }
+        } finally {
+            deleteCorpus(corpus);
+        }
+    }
+
+    // Copy the training listings of Bayespam copies times into
+    // the regular/ and spam/ subdirectories of corpus
+    private static void copyCorpus(File corpus, int copies) throws IOException {
+        for (String type : new String[] { "regular", "spam" }) {
+            File directory = new File(corpus, type);
+            directory.mkdir();
+            File[] listing = type.equals("spam") ? Bayespam.listingSpam
+                                                 : Bayespam.listingRegular;
+            for (int copy = 0; copy < copies; copy++) {
+                for (File message : listing) {
+                    Files.copy(message.toPath(), new File(directory,
+                            copy + "-" + message.getName()).toPath());
+                }
+            }
+        }
+    }
+
+    // Delete a generated corpus directory
+    private static void deleteCorpus(File corpus) {
+        for (File file : corpus.listFiles()) {
+            if (file.isDirectory()) {
+                for (File message : file.listFiles()) {
+                    message.delete();
+                }
+            }
+            file.delete();
+        }
+        corpus.delete();
+    }
+
+    // Time one way of reading the training files, sequential if openFiles is 0
+    private static void printIngestionRow(String name, int nFiles,
+            final int openFiles, TermTable reference) {
+        Runnable training = new Runnable() {
+            public void run() {
+                Bayespam.vocab = new TermTable();
+                if (openFiles == 0) {
+                    Bayespam.readMessages(Bayespam.MessageType.NORMAL);
+                    Bayespam.readMessages(Bayespam.MessageType.SPAM);
+                } else {
+                    Bayespam.ingestMessages(openFiles);
+                }
+            }
+        };
+
+        double warmTime = measure(training);
+        boolean identical = sameVocabulary(reference, Bayespam.vocab);
+        String cold = "-";
+        if (dropPageCache()) {
+            long start = System.nanoTime();
+            training.run();
+            cold = String.format("%.0f", nFiles / ((System.nanoTime() - start) / 1e9));
+        }
+
+        System.out.printf("%s\t%.0f\t\t%s\t\t%b\n",
+                (name.length() < 8) ? name + "\t" : name,
+                nFiles / warmTime, cold, identical);
+    }
+
+    /// Drop the page cache of Linux, which needs root. Returns false if
+    /// that is not possible.
+    static boolean dropPageCache() {
+        try {
+            Process sync = new ProcessBuilder("sync").inheritIO().start();
+            sync.waitFor();
+
+            Writer out = new FileWriter("/proc/sys/vm/drop_caches");
+            try {
+                out.write("3\n");
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Compare the directory layout with packed archives
+    private static void benchmarkArchive(String[] args) throws IOException {
+        int copies = intArgument(args, 3, 50);
+        final File corpus = Files.createTempDirectory("archive-corpus").toFile();
+        final File train = new File(corpus, "train");
+        final File test = new File(corpus, "test");
+        final File trainPack = new File(corpus, "train.pack");
+        final File testPack = new File(corpus, "test.pack");
+
+        try {
+            train.mkdir();
+            test.mkdir();
+            Bayespam.listDirs(new File(args[1]), true);
+            copyCorpus(train, copies);
+            Bayespam.listDirs(new File(args[2]), true);
+            copyCorpus(test, copies);
+
+            Bayespam.listDirs(train, true);
+            Bayespam.listDirs(test, false);
+            CorpusArchive.pack(Bayespam.listingRegular, Bayespam.listingSpam, trainPack);
+            CorpusArchive.pack(Bayespam.testListingRegular, Bayespam.testListingSpam,
+                               testPack);
+            int nFiles = 2 * (Bayespam.listingRegular.length + Bayespam.listingSpam.length);
+
+            final int[] directoryCorrect = new int[1];
+            final int[] archiveCorrect = new int[1];
+            Runnable fromDirectories = new Runnable() {
+                public void run() {
+                    Bayespam.listDirs(train, true);
+                    Bayespam.listDirs(test, false);
+                    CompiledModel model = compileBayespam();
+
+                    directoryCorrect[0] = 0;
+                    for (File message : Bayespam.testListingRegular) {
+                        directoryCorrect[0] += Bayespam.classifyMessage(message, model) ? 1 : 0;
+                    }
+                    for (File message : Bayespam.testListingSpam) {
+                        directoryCorrect[0] += Bayespam.classifyMessage(message, model) ? 0 : 1;
+                    }
+                }
+            };
+            Runnable fromArchives = new Runnable() {
+                public void run() {
+                    try {
+                        CorpusArchive trainArchive = CorpusArchive.load(trainPack);
+                        CorpusArchive testArchive = CorpusArchive.load(testPack);
+                        Bayespam.vocab = new TermTable();
+                        Bayespam.readArchive(trainArchive);
+                        CompiledModel model = compileVocabulary(
+                                trainArchive.getMessagesRegular(),
+                                trainArchive.getMessagesSpam());
+
+                        archiveCorrect[0] = 0;
+                        for (int i = 0; i < testArchive.getMessagesRegular(); i++) {
+                            archiveCorrect[0] += Bayespam.classifyMessage(
+                                    testArchive.message(false, i), model) ? 1 : 0;
+                        }
+                        for (int i = 0; i < testArchive.getMessagesSpam(); i++) {
+                            archiveCorrect[0] += Bayespam.classifyMessage(
+                                    testArchive.message(true, i), model) ? 0 : 1;
+                        }
+                    } catch (IOException ioe) {
+                        throw new UncheckedIOException(ioe);
+                    }
+                }
+            };
+
+            System.out.println("corpus\t\twarm ms\tcold ms\tfiles/s (warm)");
+            printArchiveRow("directories", nFiles, fromDirectories);
+            printArchiveRow("archives", nFiles, fromArchives);
+            System.out.println("same classification: "
+                               + (directoryCorrect[0] == archiveCorrect[0]));
+        } finally {
+            trainPack.delete();
+            testPack.delete();
+            deleteCorpus(train);
+            deleteCorpus(test);
+            corpus.delete();
+        }
+    }
+
+    private static void printArchiveRow(String name, int nFiles, Runnable run) {
+        double warmTime = measure(run);
+        String cold = "-";
+        if (dropPageCache()) {
+            long start = System.nanoTime();
+            run.run();
+            cold = String.format("%.1f", (System.nanoTime() - start) / 1e6);
+        }
+
+        System.out.printf("%s\t%.1f\t%s\t%.0f\n", name, warmTime * 1e3, cold,
+                          nFiles / warmTime);
+    }
+
+    // Compare tokenising every run with the token cache
+    private static void benchmarkTokenCache(String[] args) throws IOException {
+        int copies = intArgument(args, 3, 20);
+        final File directory = Files.createTempDirectory("token-cache").toFile();
+
+        try {
+            Bayespam.listDirs(new File(args[1]), true);
+            Bayespam.listDirs(new File(args[2]), false);
+            Bayespam.listingRegular = repeat(Bayespam.listingRegular, copies);
+            Bayespam.listingSpam = repeat(Bayespam.listingSpam, copies);
+            Bayespam.testListingRegular = repeat(Bayespam.testListingRegular, copies);
+            Bayespam.testListingSpam = repeat(Bayespam.testListingSpam, copies);
+            /// The repeated listings hold every file copies times, the cache
+            /// only needs them once.
+            final File[][] listings = {
+                new File(args[1], "regular").listFiles(), new File(args[1], "spam").listFiles(),
+                new File(args[2], "regular").listFiles(), new File(args[2], "spam").listFiles()
+            };
+
+            final int[] correct = new int[1];
+            final Runnable run = new Runnable() {
+                public void run() {
+                    CompiledModel model = compileBayespam();
+                    correct[0] = 0;
+                    for (File message : Bayespam.testListingRegular) {
+                        correct[0] += Bayespam.classifyMessage(message, model) ? 1 : 0;
+                    }
+                    for (File message : Bayespam.testListingSpam) {
+                        correct[0] += Bayespam.classifyMessage(message, model) ? 0 : 1;
+                    }
+                }
+            };
+
+            Bayespam.tokenCaches = null;
+            double tokenisedTime = measure(run);
+            int tokenisedCorrect = correct[0];
+
+            long start = System.nanoTime();
+            final File[][] trainListings = { listings[0], listings[1] };
+            final File[][] testListings = { listings[2], listings[3] };
+            Bayespam.tokenCaches = Bayespam.openTokenCaches(directory,
+                    Bayespam.MINIMAL_WORD_SIZE, trainListings, testListings);
+            double buildTime = (System.nanoTime() - start) / 1e9;
+
+            double cachedTime = measure(new Runnable() {
+                public void run() {
+                    Bayespam.tokenCaches = Bayespam.openTokenCaches(directory,
+                            Bayespam.MINIMAL_WORD_SIZE, trainListings, testListings);
+                    run.run();
+                }
+            });
+            long cacheBytes = 0;
+            for (File file : directory.listFiles()) {
+                cacheBytes += file.length();
+            }
+
+            System.out.println("run\t\t\tms");
+            System.out.printf("tokenised\t\t%.1f\n", tokenisedTime * 1e3);
+            System.out.printf("building the cache\t%.1f\n", buildTime * 1e3);
+            System.out.printf("from the cache\t\t%.1f\n", cachedTime * 1e3);
+            System.out.printf("speed-up %.2f, cache files %d bytes for %d + %d distinct"
+                    + " tokens, same classification: %b\n", tokenisedTime / cachedTime,
+                    cacheBytes, Bayespam.tokenCaches[0].size(), Bayespam.tokenCaches[1].size(),
+                    correct[0] == tokenisedCorrect);
+
+            /// Touch a test message, the next run needs a new cache file
+            /// of the test messages only.
+            File touched = listings[2][0];
+            long lastModified = touched.lastModified();
+            String trainBefore = TokenCache.fingerprint(concat(trainListings),
+                                                        Bayespam.MINIMAL_WORD_SIZE);
+            String before = TokenCache.fingerprint(concat(testListings),
+                                                   Bayespam.MINIMAL_WORD_SIZE);
+            touched.setLastModified(lastModified + 1000);
+            String trainAfter = TokenCache.fingerprint(concat(trainListings),
+                                                       Bayespam.MINIMAL_WORD_SIZE);
+            String after = TokenCache.fingerprint(concat(testListings),
+                                                  Bayespam.MINIMAL_WORD_SIZE);
+            touched.setLastModified(lastModified);
+            System.out.println("changed test message invalidates the test cache: "
+                               + !before.equals(after) + ", keeps the training cache: "
+                               + trainBefore.equals(trainAfter));
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+            Bayespam.tokenCaches = null;
+        }
+    }
+
+    // All files of a number of listings
+    private static File[] concat(File[][] listings) {
+        List<File> files = new ArrayList<File>();
+        for (File[] listing : listings) {
+            files.addAll(Arrays.asList(listing));
+        }
+        return files.toArray(new File[0]);
+    }
+
+    // Compare two separate classifiers with one NGramModel
+    private static void benchmarkNGram(String[] args) {
+        int copies = intArgument(args, 3, 10);
+        Bayespam.listDirs(new File(args[1]), true);
+        Bayespam.listDirs(new File(args[2]), false);
+        Bayespam.listingRegular = repeat(Bayespam.listingRegular, copies);
+        Bayespam.listingSpam = repeat(Bayespam.listingSpam, copies);
+
+        final List<File> messages = new ArrayList<File>();
+        messages.addAll(Arrays.asList(Bayespam.testListingRegular));
+        messages.addAll(Arrays.asList(Bayespam.testListingSpam));
+        final boolean[][] separate = new boolean[2][messages.size()];
+        final boolean[][] combined = new boolean[2][messages.size()];
+
+        double separateTime = measure(new Runnable() {
+            public void run() {
+                CompiledModel unigrams = compileBayespam();
+                CompiledModel bigrams = compileBigrams(countBigrams());
+                for (int i = 0; i < messages.size(); i++) {
+                    separate[0][i] = Bayespam.classifyMessage(messages.get(i), unigrams);
+                    separate[1][i] = BigramBayespam.classifyMessage(messages.get(i), bigrams);
+                }
+            }
+        });
+        double combinedTime = measure(new Runnable() {
+            public void run() {
+                int[] orders = { 1, 2 };
+                NGramModel model = new NGramModel(orders,
+                        NGramModel.defaultMinimalCounts(orders));
+                for (File message : Bayespam.listingRegular) {
+                    model.addMessage(message, false);
+                }
+                for (File message : Bayespam.listingSpam) {
+                    model.addMessage(message, true);
+                }
+                model.compile();
+
+                for (int i = 0; i < messages.size(); i++) {
+                    NGramModel.Score score = model.score(messages.get(i));
+                    combined[0][i] = score.isRegular(0);
+                    combined[1][i] = score.isRegular(1);
+                }
+            }
+        });
+
+        System.out.println("models\t\t\tms");
+        System.out.printf("unigrams, bigrams\t%.1f\n", separateTime * 1e3);
+        System.out.printf("NGramModel 1,2\t\t%.1f\n", combinedTime * 1e3);
+        System.out.printf("speed-up %.2f, same classification: %b\n",
+                separateTime / combinedTime, Arrays.deepEquals(separate, combined));
+    }
+
+    // Compare the model of BigramBayespam on the heap with an OffHeapModel
+    private static void benchmarkOffHeap(String[] args) {
+        int nSynthetic = intArgument(args, 3, 1000000);
+        BigramBayespam.listDirs(new File(args[1]), true);
+        BigramBayespam.listDirs(new File(args[2]), false);
+        BigramBayespam.readMessages(BigramBayespam.MessageType.NORMAL);
+        BigramBayespam.readMessages(BigramBayespam.MessageType.SPAM);
+        BigramBayespam.filterByFrequency();
+        TermTable vocabulary = BigramBayespam.vocab;
+        BigramBayespam.words = new TermTable();
+        BigramBayespam.bigrams = new LongCountTable();
+        BigramBayespam.vocab = new TermTable();
+
+        Random random = new Random(11);
+        for (int i = 0; i < nSynthetic; i++) {
+            String bigram = Integer.toString(i, 36) + "qz "
+                            + Integer.toString(random.nextInt(1 << 30), 36);
+            vocabulary.add(bigram.toCharArray(), 0, bigram.length(),
+                           random.nextInt(10), random.nextInt(10));
+        }
+
+        File[] testSet = concat(new File[][] { BigramBayespam.testListingRegular,
+                                               BigramBayespam.testListingSpam });
+        boolean[] onHeapClasses = new boolean[testSet.length];
+        boolean[] offHeapClasses = new boolean[testSet.length];
+
+        System.out.println("model\t\tterms\tbuild ms\theap bytes\toff-heap bytes"
+                           + "\tfull gc ms\tclassify ms");
+
+        /// As in BigramBayespam: the probabilities of the NGramModel and
+        /// its compiled model.
+        long start = System.nanoTime();
+        NGramModel model = new NGramModel(new int[] { 2 }, new int[] { 1 });
+        model.addCounts(vocabulary, BigramBayespam.listingRegular.length,
+                        BigramBayespam.listingSpam.length);
+        vocabulary = null;
+        model.compile();
+        CompiledModel compiled = model.compiledModel();
+        double buildTime = (System.nanoTime() - start) / 1e9;
+        long heap = usedMemory();
+        double gcTime = fullCollectionTime();
+        start = System.nanoTime();
+        for (int i = 0; i < testSet.length; i++) {
+            onHeapClasses[i] = BigramBayespam.classifyMessage(testSet[i], compiled);
+        }
+        double classifyTime = (System.nanoTime() - start) / 1e9;
+        System.out.printf("on heap\t\t%d\t%.0f\t\t%d\t%d\t\t%.1f\t\t%.1f\n",
+                compiled.size(), buildTime * 1e3, heap, 0, gcTime * 1e3,
+                classifyTime * 1e3);
+        compiled = null;
+
+        /// Only the off-heap model is left after the build.
+        start = System.nanoTime();
+        OffHeapModel offHeap = OffHeapModel.build(model);
+        buildTime = (System.nanoTime() - start) / 1e9;
+        model = null;
+        heap = usedMemory();
+        gcTime = fullCollectionTime();
+        start = System.nanoTime();
+        for (int i = 0; i < testSet.length; i++) {
+            offHeapClasses[i] = BigramBayespam.classifyMessage(testSet[i], offHeap);
+        }
+        classifyTime = (System.nanoTime() - start) / 1e9;
+        System.out.printf("off heap\t%d\t%.0f\t\t%d\t%d\t%.1f\t\t%.1f\n",
+                offHeap.size(), buildTime * 1e3, heap, offHeap.memoryFootprint(),
+                gcTime * 1e3, classifyTime * 1e3);
+
+        System.out.println("same classification: "
+                           + Arrays.equals(onHeapClasses, offHeapClasses));
+    }
+
+    // Average time of a full garbage collection in seconds
+    private static double fullCollectionTime() {
+        System.gc();
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return (System.nanoTime() - start) / 5e9;
+    }
+
+    /// Bytes allocated by the current thread so far, or 0 if the
+    /// JVM cannot tell.
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads =
+                java.lang.management.ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    /// Run a task for the warm-up and measured rounds and return
+    /// the best time in seconds.
+    static double measure(Runnable task) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            task.run();
+        }
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e9;
+    }
+}
@@ -0,0 +1,339 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/// Long running classifier. The model is loaded once and messages are
+/// classified as they arrive on stdin or on a local TCP socket:
+///
+///     java BayespamServer <model file> [port]
+///
+/// Every request is a line with the length of the message in bytes,
+/// followed by the message itself. For every request one line is written
+/// back, in the same order, with the label and the spam score (the
+/// log-likelihood ratio of spam against regular):
+///
+///     SPAM 12.345678
+///
+/// A message that cannot be scored gets the line "ERROR" and the reason.
+///
+/// Requests are read ahead and collected in batches, the messages of a
+/// batch are tokenised and scored in parallel while the next batch is
+/// being read. A connection reads at most MAX_PENDING_BATCHES batches
+/// ahead of the responses it has written, so a client that does not read
+/// its responses stops being read as well.
+public class BayespamServer {
+    /// This defines the largest number of messages in one batch.
+    public final static int BATCH_SIZE = 64;
+
+    /// This defines the largest message in bytes, longer requests are
+    /// refused before anything is allocated for them. A batch is also
+    /// scored as soon as its messages add up to this size.
+    public final static int MAX_REQUEST_LENGTH = 16 << 20;
+
+    /// This defines the number of batches of a connection that can wait
+    /// for their responses to be written.
+    public final static int MAX_PENDING_BATCHES = 4;
+
+    /// This defines the number of connections that are served at the same
+    /// time, set with -Dbayespam.server.connections=N. Further connections
+    /// wait in the backlog of the server socket.
+    public final static int MAX_CONNECTIONS =
+            Integer.getInteger("bayespam.server.connections", 64);
+
+    /// This defines the number of scoring threads, set with
+    /// -Dbayespam.server.threads=N (by default one per processor).
+    public final static int SCORING_THREADS = Integer.getInteger(
+            "bayespam.server.threads", Runtime.getRuntime().availableProcessors());
+
+    // Marks the end of the responses of a connection
+    private final static List<Future<String[]>> END_OF_STREAM =
+            new ArrayList<Future<String[]>>();
+
+    private final SpamModel model;
+    private final int nThreads;
+    private final ExecutorService pool;
+    private final Semaphore connections = new Semaphore(MAX_CONNECTIONS);
+
+    public BayespamServer(SpamModel model, int nThreads) {
+        this.model = model;
+        this.nThreads = nThreads;
+        this.pool = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                /// The pool should never keep the JVM running by itself.
+                Thread thread = new Thread(task, "bayespam-scoring");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /// Serve the requests of one stream until it ends. The responses
+    /// are written by a second thread, so reading is not held up by a
+    /// slow batch, up to MAX_PENDING_BATCHES batches. Reading stops when
+    /// the responses can no longer be written.
+    public void serve(InputStream input, OutputStream output) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+        final Writer out = new BufferedWriter(new OutputStreamWriter(output));
+        final BlockingQueue<List<Future<String[]>>> pending =
+                new ArrayBlockingQueue<List<Future<String[]>>>(MAX_PENDING_BATCHES);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeResponses(pending, out, failed);
+            }
+        }, "bayespam-writer");
+        writer.start();
+
+        List<byte[]> batch = new ArrayList<byte[]>();
+        int batchBytes = 0;
+        try {
+            byte[] message;
+
+            while (!failed.get() && (message = readRequest(in)) != null) {
+                batch.add(message);
+                batchBytes += message.length;
+
+                /// Score the batch when it is full or when no other
+                /// request is waiting.
+                if (batch.size() == BATCH_SIZE || batchBytes >= MAX_REQUEST_LENGTH
+                        || in.available() == 0) {
+                    put(pending, submit(batch));
+                    batch = new ArrayList<byte[]>();
+                    batchBytes = 0;
+                }
+            }
+        } finally {
+            /// Answer the requests read so far, also after a bad one.
+            if (!batch.isEmpty() && !failed.get()) {
+                put(pending, submit(batch));
+            }
+            put(pending, END_OF_STREAM);
+            try {
+                writer.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failed.get()) {
+            throw new IOException("The responses could not be written.");
+        }
+    }
+
+    // Wait until the writer has room for the responses of another batch
+    private static void put(BlockingQueue<List<Future<String[]>>> pending,
+            List<Future<String[]>> parts) throws InterruptedIOException {
+        try {
+            pending.put(parts);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading requests.");
+        }
+    }
+
+    /// Read the next request, or return null at the end of the stream.
+    static byte[] readRequest(DataInputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        int c;
+
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                if (header.length() == 0) {
+                    return null;
+                }
+                throw new EOFException("Incomplete request header.");
+            }
+            if (c != '\r') {
+                header.append((char) c);
+            }
+        }
+
+        int length;
+        try {
+            length = Integer.parseInt(header.toString().trim());
+        } catch (NumberFormatException nfe) {
+            throw new IOException("Bad request header: " + header);
+        }
+        if (length < 0 || length > MAX_REQUEST_LENGTH) {
+            throw new IOException("Bad request length: " + length);
+        }
+
+        byte[] message = new byte[length];
+        in.readFully(message);
+        return message;
+    }
+
+    // Split a batch over the scoring threads
+    private List<Future<String[]>> submit(List<byte[]> batch) {
+        List<Future<String[]>> parts = new ArrayList<Future<String[]>>();
+        int partSize = (batch.size() + nThreads - 1) / nThreads;
+
+        for (int start = 0; start < batch.size(); start += partSize) {
+            final List<byte[]> part =
+                    batch.subList(start, Math.min(start + partSize, batch.size()));
+
+            parts.add(pool.submit(new Callable<String[]>() {
+                public String[] call() {
+                    String[] responses = new String[part.size()];
+                    for (int i = 0; i < responses.length; i++) {
+                        try {
+                            responses[i] = classify(part.get(i));
+                        } catch (IOException ioe) {
+                            /// Answer the request anyway, the client
+                            /// waits for one line per message.
+                            responses[i] = "ERROR " + ioe;
+                        } catch (RuntimeException re) {
+                            responses[i] = "ERROR " + re;
+                        }
+                    }
+                    return responses;
+                }
+            }));
+        }
+        return parts;
+    }
+
+    /// Classify one message and format the response line.
+    String classify(byte[] message) throws IOException {
+        Bayespam.ModelScore score = Bayespam.scoreMessage(
+                new InputStreamReader(new ByteArrayInputStream(message)), model);
+
+        return String.format(Locale.ROOT, "%s %.6f",
+                score.isRegular() ? "REGULAR" : "SPAM", score.spamScore());
+    }
+
+    // Write the responses in the order of the requests. When the responses
+    // cannot be written the output is closed, so the client does not wait
+    // for them, and failed is set. The batches that are still put in
+    // pending are then cancelled until the end of the stream, so that the
+    // reader never waits for a writer that is gone
+    private static void writeResponses(BlockingQueue<List<Future<String[]>>> pending,
+            Writer out, AtomicBoolean failed) {
+        boolean done = false;
+        try {
+            List<Future<String[]>> parts;
+            while ((parts = pending.take()) != END_OF_STREAM) {
+                for (Future<String[]> part : parts) {
+                    for (String response : part.get()) {
+                        out.write(response);
+                        out.write('\n');
+                    }
+                }
+                /// Only flush when there is nothing else to write.
+                if (pending.isEmpty()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+            done = true;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            ee.getCause().printStackTrace();
+        } catch (IOException ioe) {
+            System.err.println("- Error: " + ioe.getMessage());
+        } finally {
+            if (!done) {
+                failed.set(true);
+                close(out);
+                discard(pending);
+            }
+        }
+    }
+
+    // Cancel the batches of pending up to the end of the stream
+    private static void discard(BlockingQueue<List<Future<String[]>>> pending) {
+        try {
+            List<Future<String[]>> parts;
+            while ((parts = pending.take()) != END_OF_STREAM) {
+                for (Future<String[]> part : parts) {
+                    part.cancel(false);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void close(Writer out) {
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            /// The error of the connection is reported already.
+        }
+    }
+
+    /// Accept connections on a loopback port, one thread per connection
+    /// and at most MAX_CONNECTIONS at the same time.
+    public void listen(ServerSocket serverSocket) throws IOException {
+        while (!serverSocket.isClosed()) {
+            try {
+                connections.acquire();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException se) {
+                /// The server socket was closed.
+                connections.release();
+                return;
+            } catch (IOException ioe) {
+                connections.release();
+                throw ioe;
+            }
+
+            new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        socket.setTcpNoDelay(true);
+                        serve(socket.getInputStream(), socket.getOutputStream());
+                    } catch (IOException ioe) {
+                        System.err.println("- Error: " + ioe.getMessage());
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ioe) {
+                            ioe.printStackTrace();
+                        } finally {
+                            connections.release();
+                        }
+                    }
+                }
+            }, "bayespam-connection").start();
+        }
+    }
+
+    /// Stop the scoring threads.
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("- Usage: java BayespamServer <model file> [port]\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        BayespamServer server =
+                new BayespamServer(SpamModel.load(new File(args[0])), SCORING_THREADS);
+
+        try {
+            if (args.length > 1) {
+                ServerSocket serverSocket = new ServerSocket(
+                        Integer.parseInt(args[1]), 50, InetAddress.getLoopbackAddress());
+                System.err.println("- Listening on " + serverSocket.getLocalSocketAddress());
+                server.listen(serverSocket);
+            } else {
+                server.serve(System.in, System.out);
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+}
@@ -6,306 +6,342 @@ public class BigramBayespam {
     // This defines the two types of messages we have.
     static enum MessageType { NORMAL, SPAM }
 
-    /// This defines the epsilon.
-    public final static int EPSILON = 1;
-    public final static int MINIMAL_WORD_SIZE = 4;
+    /// This defines the epsilon and the minimal word size, the ones of
+    /// Bayespam.
+    public final static double EPSILON = Bayespam.EPSILON;
+    public final static int MINIMAL_WORD_SIZE = Bayespam.MINIMAL_WORD_SIZE;
 
     /// This defines the frequency filtering parameter
-    /// (least allowed amount of occurrences)
-    public final static int FREQUENCY_LIMIT = 6;
-
-    // This a class with two counters (for regular and for spam)
-    static class MultipleCounter {
-        int counterSpam    = 0;
-        int counterRegular = 0;
-
-        // Increase one of the counters by one
-        public void incrementCounter(MessageType type) {
-            if (type == MessageType.NORMAL) {
-                ++counterRegular;
-            } else {
-                ++counterSpam;
-            }
-        }
-    }
+    /// (least allowed amount of occurrences), set with
+    /// -Dbayespam.frequencylimit=N (6 by default)
+    public final static int FREQUENCY_LIMIT = Integer.getInteger("bayespam.frequencylimit", 6);
+
+    /// This defines the number of bits of the hashed feature space, set
+    /// with -Dbayespam.hashbits=N. With 0 the exact vocabulary is used.
+    public final static int HASH_BITS = Integer.getInteger("bayespam.hashbits", 0);
+
+    /// This defines the number of bits of the rows of the count-min sketch
+    /// that is used to skip rare bigrams while training, set with
+    /// -Dbayespam.sketchbits=N. With 0 every bigram is counted exactly.
+    public final static int SKETCH_BITS = Integer.getInteger("bayespam.sketchbits", 0);
+
+    /// This defines the directory of the token cache, set with
+    /// -Dbayespam.cache=DIR. Without it every run tokenises the messages.
+    public final static String TOKEN_CACHE = System.getProperty("bayespam.cache");
+
+    /// This defines whether the test set is classified with an
+    /// OffHeapModel, set with -Dbayespam.offheap=true.
+    public final static boolean OFF_HEAP = Boolean.getBoolean("bayespam.offheap");
 
     // Listings of the two subdirectories (regular/ and spam/)
-    private static File[] listingRegular = new File[0];
-    private static File[] listingSpam = new File[0];
-    private static File[] testListingRegular = new File[0];
-    private static File[] testListingSpam = new File[0];
-
-    // A hash table for the vocabulary 
-    // (word searching is very fast in a hash table)
-    private static Hashtable<String, MultipleCounter> vocab 
-            = new Hashtable<String, MultipleCounter>();
-    
-    // Add a bigram to the vocabulary
-    private static void addBigram(String bigram, MessageType type) {
-        MultipleCounter counter = new MultipleCounter();
-        // If word exists already in the vocabulary..
-        if (vocab.containsKey(bigram)) {
-            // Get the counter from the hashtable
-            counter = vocab.get(bigram);
+    static File[] listingRegular = new File[0];
+    static File[] listingSpam = new File[0];
+    static File[] testListingRegular = new File[0];
+    static File[] testListingSpam = new File[0];
+
+    /// Every thread gets its own tokeniser, as it keeps its buffers.
+    private static ThreadLocal<Tokeniser> tokeniser = new ThreadLocal<Tokeniser>() {
+        protected Tokeniser initialValue() {
+            return new Tokeniser(MINIMAL_WORD_SIZE);
         }
+    };
 
-        // Increase the counter appropriately
-        counter.incrementCounter(type);
+    // Tokenised train and test messages, a cache for each, when
+    // TOKEN_CACHE is set
+    static TokenCache[] tokenCaches = null;
 
-        // Put the word with its counter into the hashtable
-        vocab.put(bigram, counter);
+    /// Tokenise a message, or replay its tokens from the token cache
+    /// when it is part of it.
+    static void tokenise(File message, Tokeniser.TokenConsumer consumer) {
+        if (!TokenCache.replay(tokenCaches, message, consumer)) {
+            Bayespam.tokenise(tokeniser.get(), message, consumer);
+        }
     }
 
-    private static double unlog(double a) {
-        return Math.exp(a);
+    /// Combines the words of the tokeniser into bigrams. Within a line,
+    /// every two accepted words form one bigram ("first second"), a word
+    /// that is left over at the end of a line is dropped.
+    static abstract class BigramConsumer extends NGramConsumer {
+        BigramConsumer() {
+            super(2);
+        }
+
+        /// Called for every bigram. The characters are only
+        /// valid during the call.
+        abstract void bigram(char[] chars, int start, int length);
+
+        public void ngram(int order, char[] chars, int start, int length) {
+            bigram(chars, start, length);
+        }
     }
 
-    // List the regular and spam messages
-    private static void listDirs(File dirLocation, boolean train) {
-        // List all files in the directory passed
-        File[] dirListing = dirLocation.listFiles();
-	    String folderName; 
-	    Boolean spamFound = false, regularFound = false;
-
-        // Check that there are exactly 2 subdirectories
-        if (dirListing.length != 2) {
-            System.out.println("- Error: the directory should contain exactly"
-                               + " 2 subdirectories (named spam and regular)."
-                               + "\n");
-            Runtime.getRuntime().exit(0);
+    /// Pairs the words of the tokeniser like BigramConsumer, but passes
+    /// on the ints of the two words instead of the text of the bigram.
+    static abstract class WordPairConsumer extends NGramConsumer {
+        WordPairConsumer() {
+            super(2);
         }
-	
-        // Loop through all subdirectories
-        for (File file : dirListing) {
-            folderName = file.toString();
-            // If the folder_name ends in the word spam,
-            // store it as the spam folder
-            if (folderName.length() > 3 
-                    && folderName.substring(folderName.length() - 4).equals("spam")) {
-                if (train) {
-                    listingSpam = file.listFiles();
-                } else {
-                    testListingSpam = file.listFiles();
-                }
-                spamFound = true;
-                // If the folder_name ends in the word regular, 
-                // store it as the regular folder
-            } else if (folderName.length() > 6 
-                    && folderName.substring(folderName.length() - 7).equals("regular")) {
-                if (train) {
-                    listingRegular = file.listFiles();
-                } else {
-                    testListingRegular = file.listFiles();
-                }
-                regularFound = true;
-            }
+
+        /// The int that stands for a word, for example its id.
+        public abstract int word(char[] chars, int start, int length);
+
+        /// Called for every bigram, with the ints of its two words.
+        abstract void pair(int first, int second);
+
+        public void ngram(int order, int[] words, int first) {
+            pair(words[first], words[first + 1]);
         }
-	
-        if (!spamFound) {
-            System.out.println("- Error: directory with spam messages not found."
-                               + " Make sure your input directory"
-                               + " contains a folder named spam.\n");
-            Runtime.getRuntime().exit(0);
+
+        public void ngram(int order, char[] chars, int start, int length) {
         }
+    }
 
-        if (!regularFound) {
-            System.out.println("- Error: directory with regular messages not found."
-                               + " Make sure your input directory"
-                               + " contains a folder named regular\n");
-            Runtime.getRuntime().exit(0);
+    // Every word of the training messages gets an id here,
+    // the counters of the table are not used
+    static TermTable words = new TermTable();
+
+    // The regular and spam counter of every bigram, with the ids
+    // of its two words as key (see LongCountTable.pair())
+    static LongCountTable bigrams = new LongCountTable();
+
+    // The filtered vocabulary, with the text of every bigram
+    static TermTable vocab = new TermTable();
+    
+    // Add a bigram to the vocabulary
+    private static void addBigram(int first, int second, MessageType type) {
+        bigrams.increment(LongCountTable.pair(first, second),
+                          type == MessageType.SPAM);
+    }
+
+    /// The text of a bigram key, "first second".
+    static String bigram(long key) {
+        return words.term((int) (key >>> 32)) + " " + words.term((int) key);
+    }
+
+    /// List the regular and spam messages, see Bayespam.listDirs().
+    static void listDirs(File dirLocation, boolean train) {
+        Bayespam.listDirs(dirLocation, train);
+        if (train) {
+            listingRegular = Bayespam.listingRegular;
+            listingSpam = Bayespam.listingSpam;
+        } else {
+            testListingRegular = Bayespam.testListingRegular;
+            testListingSpam = Bayespam.testListingSpam;
         }
     }
     
     // Print the current content of the vocabulary
     private static void printVocab() {
-        MultipleCounter counter = new MultipleCounter();
-
-        for (Enumeration<String> enumeration = vocab.keys();
-                enumeration.hasMoreElements() ;) {   
-            String bigram;
-            
-            bigram = enumeration.nextElement();
-            counter  = vocab.get(bigram);
-            
-            System.out.println( bigram
+        for (int id = 0; id < vocab.size(); id++) {
+            System.out.println(vocab.term(id)
                                + " | in regular: " 
-                               + counter.counterRegular 
+                               + vocab.getRegularCount(id) 
                                + " in spam: " 
-                               + counter.counterSpam);
+                               + vocab.getSpamCount(id));
         }
     }
     
-    /// function for checking numerals
-    public static boolean isNumeric(final CharSequence charSequence) {
-        final int size = charSequence.length();
-        for (int i = 0; i < size; i++) {
-            if (!Character.isDigit(charSequence.charAt(i))) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-
     // Read the words from messages and add them to your vocabulary.
     // The boolean type determines whether the messages are regular or not  
-    private static void readMessages(MessageType type) {
+    static void readMessages(MessageType type) {
+        readMessages(type, null);
+    }
+
+    /// Same as readMessages() above, but bigrams that the sketch estimates
+    /// to occur less than FREQUENCY_LIMIT times are not added. The sketch
+    /// never underestimates, so these would be filtered out anyway.
+    static void readMessages(MessageType type, final CountMinSketch sketch) {
         File[] messages = new File[0];
 
         messages = (type == MessageType.NORMAL) ? listingRegular : listingSpam;
 
-        for (int i = 0; i < messages.length; ++i) {
-            List<String> tokens = tokeniseMessage(messages[i]);
-            for (String token : tokens) {
-                /// Do not accept words that have less than 4 letters
-                /// Only accept words that have less than 4 characters
-                /// and that are not numeric.
-                if (token.length() >= MINIMAL_WORD_SIZE && !isNumeric(token)) {
-
-                    // Add them to the vocabulary
-                    addBigram(token, type);                                          
+        /// The tokeniser only passes on words that have at least
+        /// MINIMAL_WORD_SIZE characters and that are not numeric.
+        final MessageType messageType = type;
+        WordPairConsumer consumer = new WordPairConsumer() {
+            public int word(char[] chars, int start, int length) {
+                return words.add(chars, start, length, 0, 0);
+            }
+
+            void pair(int first, int second) {
+                if (sketch != null && sketch.estimate(
+                        HashedFeatureTable.combine(first, second)) < FREQUENCY_LIMIT) {
+                    return;
                 }
+                // Add them to the vocabulary
+                addBigram(first, second, messageType);
             }
+        };
+
+        for (int i = 0; i < messages.length; ++i) {
+            tokenise(messages[i], consumer);
         }
     }
 
-    /// Replacement of the earlier tokenisation in the readMessages()
-    /// method. This way code can be reused.
-    public static List<String> tokeniseMessage(File message) {
-        List<String> tokens = new ArrayList<String>();
-
-        BufferedReader in = null;
-        FileInputStream fileInputStream = null;
-
-        try {
-            fileInputStream = new FileInputStream(message);
-            in = new BufferedReader(new InputStreamReader(fileInputStream));
-            String line, word;
-
-            // Read a line
-            while ((line = in.readLine()) != null) {                
-
-                /// Remove punctuation
-                line = line.replaceAll("\\p{Punct}","");
-
-                /// Convert to lower case
-                line = line.toLowerCase();                
-
-                // Parse it into words
-                StringTokenizer st = new StringTokenizer(line);                
-
-                // While there are stille words left..
-                while (st.hasMoreTokens()) {
-                    final int minSize = MINIMAL_WORD_SIZE;
-                    String first = st.nextToken();
-                    if ((first.length() < minSize) || isNumeric(first)) {
-                        continue;
-                    }
-                    while (st.hasMoreTokens()) {
-                        String second = st.nextToken();
-                        if ((second.length() < minSize) || isNumeric(second)) {
-                            continue;
-                        }
-                        String token = first + " " + second;
-                        tokens.add(token);
-                        break;
-                    }
-                }
+    /// First pass over the training messages: count every bigram in a
+    /// count-min sketch with rows of 2^bits cells. The words get their
+    /// ids here already, readMessages() uses the same ones.
+    static CountMinSketch sketchBigrams(int bits) {
+        final CountMinSketch sketch = new CountMinSketch(bits);
+        WordPairConsumer consumer = new WordPairConsumer() {
+            public int word(char[] chars, int start, int length) {
+                return words.add(chars, start, length, 0, 0);
+            }
+
+            void pair(int first, int second) {
+                sketch.add(HashedFeatureTable.combine(first, second));
             }
-        } catch (FileNotFoundException fnfe) {
-            fnfe.printStackTrace();
-        } catch(IOException ioe) {
-            ioe.printStackTrace();
-        } finally {
-            /// Always close at the end, even if things go wrong.
-            try {
-                in.close();
-                fileInputStream.close();
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
+        };
+
+        for (File[] messages : new File[][] { listingRegular, listingSpam }) {
+            for (int i = 0; i < messages.length; ++i) {
+                tokenise(messages[i], consumer);
             }
         }
+        return sketch;
+    }
+
+    /// Count the bigrams of messages into a hashed feature space.
+    static void readMessages(File[] messages, final HashedFeatureTable features,
+            final boolean spam) {
+        HashedFeatureTable.FeatureConsumer consumer =
+                new HashedFeatureTable.FeatureConsumer(2) {
+            public void feature(int hash) {
+                features.increment(hash, spam);
+            }
+        };
+
+        for (int i = 0; i < messages.length; ++i) {
+            tokenise(messages[i], consumer);
+        }
+    }
+
+    /// Replacement of the earlier tokenisation in the readMessages()
+    /// method. This way code can be reused. Returns the bigrams
+    /// of the message.
+    public static List<String> tokeniseMessage(File message) {
+        final List<String> tokens = new ArrayList<String>();
+
+        tokenise(message, new BigramConsumer() {
+            void bigram(char[] chars, int start, int length) {
+                tokens.add(new String(chars, start, length));
+            }
+        });
 
         return tokens;
     }
     
-    /// Filter vocabulary to eliminate low-frequency bigrams
+    /// Filter vocabulary to eliminate low-frequency bigrams. Only the
+    /// bigrams that are left are written out as text, in the order
+    /// in which they were first counted.
     public static void filterByFrequency() {
-        Set<String> keys = vocab.keySet();
-        Iterator<String> iterator = keys.iterator();
-        while (iterator.hasNext()) {
-            MultipleCounter counters = vocab.get(iterator.next());
-            if ((counters.counterRegular + counters.counterSpam) < FREQUENCY_LIMIT) {
-                iterator.remove();
-            }
+        bigrams = bigrams.filter(FREQUENCY_LIMIT);
+
+        vocab = new TermTable(bigrams.size());
+        for (int id = 0; id < bigrams.size(); id++) {
+            String bigram = bigram(bigrams.getKey(id));
+            vocab.add(bigram.toCharArray(), 0, bigram.length(),
+                      bigrams.getRegularCount(id), bigrams.getSpamCount(id));
         }
     }
 
-    /// Calculate the probability that a certain message classifies
-    /// as one or the other type. Returns true if the message is regular,
-    /// false if it is spam.
-    public static boolean classifyMessage(File message, 
-            Hashtable<String, CategoricalProbabilities> probabilities,
-            Hashtable<String, MultipleCounter> vocabulary,
-            double regularPrioriProbability,
-            double spamPrioriProbability,
-            int amountOfWords) {
-
-        /// Get all the words in the message.
-        List<String> words = tokeniseMessage(message);
-        double wordProbability = 0;
-        double regularProbability = 0;
-        double spamProbability = 0;
-
-        /// Use Bayes to calculate the likelihood of the message being
-        /// either regular or spam.
-        for (String word : words) {
-            CategoricalProbabilities wordProbabilities = probabilities.get(word);
-
-            /// Skip over words that are not part of the vocabulary.
-            if (wordProbabilities == null) {
-                continue;
+    /// Classify a message with the model compiled from the filtered
+    /// vocabulary: one lookup per bigram. Returns true if the message
+    /// is regular, false if it is spam.
+    public static boolean classifyMessage(File message, CompiledModel model) {
+        final CompiledModel.Score score = model.newScore();
+
+        tokenise(message, new BigramConsumer() {
+            void bigram(char[] chars, int start, int length) {
+                score.add(chars, start, length);
             }
-            
-            if (wordProbabilities != null) {
-                regularProbability += wordProbabilities.getRegularProbability();
-                spamProbability += wordProbabilities.getSpamProbability();
+        });
+
+        return score.isRegular();
+    }
+
+    /// Same as classifyMessage() above, with the model off the heap.
+    public static boolean classifyMessage(File message, OffHeapModel model) {
+        final OffHeapModel.Score score = model.newScore();
+
+        tokenise(message, new BigramConsumer() {
+            void bigram(char[] chars, int start, int length) {
+                score.add(chars, start, length);
             }
-            
-            MultipleCounter wordCounter = vocabulary.get(word);
-            if (wordCounter != null) {
-                wordProbability += 
-                        (wordCounter.counterRegular + wordCounter.counterSpam)
-                        / (double) amountOfWords;
+        });
+
+        return score.isRegular();
+    }
+
+    /// Same as classifyMessage() above, with a hashed feature space
+    /// instead of the exact vocabulary.
+    public static boolean classifyMessage(File message,
+            HashedFeatureTable.Model model) {
+        final HashedFeatureTable.Model.Score score = model.newScore();
+
+        tokenise(message, new HashedFeatureTable.FeatureConsumer(2) {
+            public void feature(int hash) {
+                score.add(hash);
             }
+        });
+
+        return score.isRegular();
+    }
+
+    /// Train and test with a hashed feature space of HASH_BITS bits. The
+    /// bigrams themselves are not kept, so there is no vocabulary to print.
+    private static void runHashed() {
+        HashedFeatureTable features = new HashedFeatureTable(HASH_BITS);
+
+        readMessages(listingRegular, features, false);
+        readMessages(listingSpam, features, true);
+        features.filter(FREQUENCY_LIMIT);
+
+        System.out.println(listingRegular.length);
+        System.out.println(listingSpam.length);
 
+        HashedFeatureTable.Model model =
+                features.compile(listingRegular.length, listingSpam.length);
+        int trueNegatives = 0,
+            falsePositives = 0;
+
+        for (int i = 0; i < testListingRegular.length; i++) {
+            trueNegatives += classifyMessage(testListingRegular[i], model)? 1:0;
+        }
+        for (int i = 0; i < testListingSpam.length; i++) {
+            falsePositives += classifyMessage(testListingSpam[i], model)? 1:0;
         }
 
-        double probabilityRegular = (1 / wordProbability) 
-                                    + regularPrioriProbability 
-                                    + regularProbability;
-        double probabilitySpam = (1 / wordProbability)
-                                 + spamPrioriProbability
-                                 + spamProbability;
-       
-       return probabilityRegular > probabilitySpam; 
+        Bayespam.printConfusionMatrix(trueNegatives, falsePositives,
+                             testListingRegular.length, testListingSpam.length);
     }
 
-    public static void printConfusionMatrix(int trueNegatives,
-            int falsePositives, int nMessagesRegular, int nMessagesSpam) {
-        int truePositives = nMessagesSpam - falsePositives;
-        System.out.println("Total:" + (nMessagesRegular + nMessagesSpam) +
-                "\tRegular\tSpam\n");
-        System.out.println("Classified:\n");
-        System.out.println("Regular:\t" + trueNegatives +
-                "\t" + (nMessagesRegular - trueNegatives));
-        System.out.println("Spam:\t\t" + falsePositives +
-                "\t" + (nMessagesSpam - falsePositives));
-        System.out.printf("\nAccuracy: %.0f%%\n", 
-                (trueNegatives + truePositives)*100/
-                (double)(nMessagesRegular + nMessagesSpam));
+    /// Classify the test set with an OffHeapModel of the filtered
+    /// vocabulary. The tables of the training run are dropped before,
+    /// so that the heap only needs room for the messages being classified.
+    private static void runOffHeap(OffHeapModel model) {
+        words = new TermTable();
+        bigrams = new LongCountTable();
+        vocab = new TermTable();
+
+        System.err.println("- Off-heap model: " + model.size() + " bigrams in "
+                           + model.getShards() + " shards, "
+                           + model.memoryFootprint() + " bytes");
+
+        int trueNegatives = 0,
+            falsePositives = 0;
+
+        for (int i = 0; i < testListingRegular.length; i++) {
+            trueNegatives += classifyMessage(testListingRegular[i], model)? 1:0;
+        }
+        for (int i = 0; i < testListingSpam.length; i++) {
+            falsePositives += classifyMessage(testListingSpam[i], model)? 1:0;
+        }
+
+        Bayespam.printConfusionMatrix(trueNegatives, falsePositives,
+                             testListingRegular.length, testListingSpam.length);
     }
-   
+
     public static void main(String[] args) {
         // Location of the directory (the path) 
         // taken from the cmd line (first arg)
@@ -323,64 +359,47 @@ public class BigramBayespam {
         File testDirLocation = new File(args[1]);
         listDirs(testDirLocation, false);
 
+        if (TOKEN_CACHE != null) {
+            tokenCaches = Bayespam.openTokenCaches(new File(TOKEN_CACHE), MINIMAL_WORD_SIZE,
+                    new File[][] { listingRegular, listingSpam },
+                    new File[][] { testListingRegular, testListingSpam });
+        }
+
+        if (HASH_BITS > 0) {
+            runHashed();
+            return;
+        }
+
+        /// With a sketch the messages are read twice, first to estimate
+        /// the bigram frequencies and then to count the frequent ones.
+        CountMinSketch sketch = (SKETCH_BITS > 0) ? sketchBigrams(SKETCH_BITS) : null;
+
         // Read the e-mail messages
-        readMessages(MessageType.NORMAL);
-        readMessages(MessageType.SPAM);
+        readMessages(MessageType.NORMAL, sketch);
+        readMessages(MessageType.SPAM, sketch);
         
         /// Filter out low frequency bigrams
         filterByFrequency();
 
+        /// The bigrams are the n-grams of order 2 of an NGramModel, which
+        /// calculates the a priori and the class conditional probabilities.
+        /// They are filtered already, so it keeps all of them.
+        NGramModel model = new NGramModel(new int[] { 2 }, new int[] { 1 });
+        model.addCounts(vocab, listingRegular.length, listingSpam.length);
+        model.compile();
+        vocab = model.getVocabulary();
+
         // Print out the hash table
         printVocab();
         System.out.println(listingRegular.length);
         System.out.println(listingSpam.length);
 
-        /// Calculate a priori class probabilities.
-        int nMessagesRegular = listingRegular.length;
-        int nMessagesSpam = listingSpam.length;
-        int totalMessages = nMessagesRegular + nMessagesSpam;
-        double regularPrioriProbability = 
-                Math.log(nMessagesRegular / (double) totalMessages);
-        double spamPrioriProbability = 
-                Math.log(nMessagesSpam / (double) totalMessages); 
-
-        /// Count the number of words in the vocab of the regular and spam mails.
-        Set<Map.Entry<String, MultipleCounter>> entrySet = vocab.entrySet();
-        int nWordsRegular = 0;
-        int nWordsSpam = 0;
-        for (Map.Entry<String, MultipleCounter> entry : entrySet) {
-            nWordsRegular += entry.getValue().counterRegular;
-            nWordsSpam += entry.getValue().counterSpam;
-        }
-
-        Hashtable<String, CategoricalProbabilities> vocabProbabilities
-                = new Hashtable<String, CategoricalProbabilities>();
-
-        // Calculate class conditionals.
-        for (Map.Entry<String, MultipleCounter> entry : entrySet) {
-            int currentEntryRegular = entry.getValue().counterRegular;
-            int currentEntrySpam = entry.getValue().counterSpam;
-            double regularProbability, spamProbability;
-            
-            if (currentEntryRegular == 0) {
-                regularProbability = 
-                        Math.log(EPSILON / (double) (nWordsRegular + nWordsSpam));
-            } else {
-                regularProbability = Math.log(currentEntryRegular / (double) nWordsRegular);
-            }
-            
-            if (currentEntrySpam == 0) {
-                spamProbability = 
-                        Math.log(EPSILON / (double) (nWordsRegular + nWordsSpam));
-            } else {
-                spamProbability = Math.log(currentEntrySpam / (double) nWordsSpam);
-            }
-            
-            CategoricalProbabilities probabilities = 
-                    new CategoricalProbabilities(regularProbability, 
-                                                 spamProbability);
-            
-            vocabProbabilities.put(entry.getKey(), probabilities);
+        /// The NGramModel is dropped as soon as its terms are off the heap.
+        if (OFF_HEAP) {
+            OffHeapModel offHeapModel = OffHeapModel.build(model);
+            model = null;
+            runOffHeap(offHeapModel);
+            return;
         }
 
         // Now all students must continue from here:
@@ -398,25 +417,24 @@ public class BigramBayespam {
         
         /// Calculating confusion matrix.
         
+        /// Compile the model for the classification of the test set.
+        CompiledModel compiledModel = model.compiledModel();
+
         /// We assume that finding spam is positive.
         int trueNegatives = 0,
             falsePositives = 0;
 
-        for (int i = 0; i < nMessagesRegular; i++) {
+        for (int i = 0; i < testListingRegular.length; i++) {
             trueNegatives += 
-                    classifyMessage(testListingRegular[i], vocabProbabilities, vocab,
-                    regularPrioriProbability, spamPrioriProbability,
-                    nWordsRegular + nWordsSpam)? 1:0; 
+                    classifyMessage(testListingRegular[i], compiledModel)? 1:0; 
         }
-        for (int i = 0; i < nMessagesSpam; i++) {
+        for (int i = 0; i < testListingSpam.length; i++) {
             falsePositives += 
-                    classifyMessage(testListingSpam[i], vocabProbabilities, vocab,
-                    regularPrioriProbability, spamPrioriProbability,
-                    nWordsRegular + nWordsSpam)? 1:0; 
+                    classifyMessage(testListingSpam[i], compiledModel)? 1:0; 
         }
         
-        printConfusionMatrix(trueNegatives, falsePositives,
-                             nMessagesRegular, nMessagesSpam);
+        Bayespam.printConfusionMatrix(trueNegatives, falsePositives,
+                                      testListingRegular.length, testListingSpam.length);
         
         
         // 8) Improve the code and the performance (speed, accuracy)
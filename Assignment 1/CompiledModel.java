@@ -0,0 +1,254 @@
+import java.util.Map;
+
+/// The trained model compiled into dense arrays for classification. Every
+/// term keeps the id it has in the vocabulary and the values that
+/// classifyMessage() needs for it are precomputed per id: the two
+/// log-probabilities and the share of the term in all counted words. A
+/// word of a message then takes one lookup in the vocabulary and a few
+/// array reads, instead of a lookup in both hash tables and a division.
+///
+/// The scores are added up in the same order and with the same values as
+/// in classifyMessage(), so the classification does not change.
+public class CompiledModel {
+    /// This defines the number of word ids a BatchScore collects
+    /// before it adds up their values.
+    public final static int BATCH_SIZE = 256;
+
+    private final TermTable vocabulary;
+    private final double[] regularProbabilities;
+    private final double[] spamProbabilities;
+    private final double[] wordProbabilities;
+    private final double regularPrioriProbability;
+    private final double spamPrioriProbability;
+    // Largest change of the margin that a single word can make
+    private final double maxLogRatio;
+
+    /// Compile the result of a training run.
+    public static CompiledModel compile(TermTable vocabulary,
+            Map<String, CategoricalProbabilities> probabilities,
+            double regularPrioriProbability,
+            double spamPrioriProbability,
+            int amountOfWords) {
+        int nTerms = vocabulary.size();
+        double[] regular = new double[nTerms];
+        double[] spam = new double[nTerms];
+        double[] words = new double[nTerms];
+
+        for (int id = 0; id < nTerms; id++) {
+            CategoricalProbabilities wordProbabilities =
+                    probabilities.get(vocabulary.term(id));
+            regular[id] = wordProbabilities.getRegularProbability();
+            spam[id] = wordProbabilities.getSpamProbability();
+            words[id] = (vocabulary.getRegularCount(id) + vocabulary.getSpamCount(id))
+                        / (double) amountOfWords;
+        }
+
+        return new CompiledModel(vocabulary, regular, spam, words,
+                                 regularPrioriProbability, spamPrioriProbability);
+    }
+
+    CompiledModel(TermTable vocabulary, double[] regularProbabilities,
+            double[] spamProbabilities, double[] wordProbabilities,
+            double regularPrioriProbability, double spamPrioriProbability) {
+        this.vocabulary = vocabulary;
+        this.regularProbabilities = regularProbabilities;
+        this.spamProbabilities = spamProbabilities;
+        this.wordProbabilities = wordProbabilities;
+        this.regularPrioriProbability = regularPrioriProbability;
+        this.spamPrioriProbability = spamPrioriProbability;
+
+        double max = 0;
+        for (int id = 0; id < regularProbabilities.length; id++) {
+            max = Math.max(max, Math.abs(regularProbabilities[id] - spamProbabilities[id]));
+        }
+        this.maxLogRatio = max;
+    }
+
+    /// Running score of one message.
+    public class Score {
+        double wordProbability = 0;
+        double regularProbability = 0;
+        double spamProbability = 0;
+        // Skipped words, only counted when Metrics are enabled
+        int unknownWords = 0;
+
+        /// Add a word of the message. Words that are not part of the
+        /// vocabulary are skipped.
+        public void add(char[] chars, int start, int length) {
+            int id = vocabulary.find(chars, start, length);
+
+            if (id >= 0) {
+                regularProbability += regularProbabilities[id];
+                spamProbability += spamProbabilities[id];
+                wordProbability += wordProbabilities[id];
+            } else if (Metrics.ENABLED) {
+                ++unknownWords;
+            }
+        }
+
+        /// True if the message is regular, false if it is spam.
+        public boolean isRegular() {
+            double probabilityRegular = (1 / wordProbability)
+                                        + regularPrioriProbability
+                                        + regularProbability;
+            double probabilitySpam = (1 / wordProbability)
+                                     + spamPrioriProbability
+                                     + spamProbability;
+
+            return probabilityRegular > probabilitySpam;
+        }
+
+        /// The log-probability of regular minus that of spam, without the
+        /// term that both sides share. Negative infinity if no word of the
+        /// message is known, such a message is spam.
+        public double margin() {
+            if (wordProbability == 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return (regularPrioriProbability + regularProbability)
+                   - (spamPrioriProbability + spamProbability);
+        }
+    }
+
+    /// Score of a message that looks up the ids of its words first and
+    /// adds up their values a batch at a time with a ScoringKernel. It
+    /// can be passed to the tokeniser directly.
+    public class BatchScore extends Score implements Tokeniser.TokenConsumer {
+        private final ScoringKernel kernel;
+        private final int[] ids = new int[BATCH_SIZE];
+        private final double[] sums = new double[3];
+        private int count = 0;
+
+        BatchScore(ScoringKernel kernel) {
+            this.kernel = kernel;
+        }
+
+        public void add(char[] chars, int start, int length) {
+            int id = vocabulary.find(chars, start, length);
+
+            if (id >= 0) {
+                ids[count++] = id;
+                if (count == BATCH_SIZE) {
+                    flush();
+                }
+            } else if (Metrics.ENABLED) {
+                ++unknownWords;
+            }
+        }
+
+        /// Add the words with the given vocabulary ids at once.
+        public void add(int[] wordIds, int nWords) {
+            flush();
+            kernel.add(regularProbabilities, spamProbabilities, wordProbabilities,
+                       wordIds, nWords, sums);
+            regularProbability = sums[0];
+            spamProbability = sums[1];
+            wordProbability = sums[2];
+        }
+
+        public void token(char[] chars, int start, int length) {
+            add(chars, start, length);
+        }
+
+        public void endOfLine() {
+        }
+
+        // Add up the collected ids
+        private void flush() {
+            sums[0] = regularProbability;
+            sums[1] = spamProbability;
+            sums[2] = wordProbability;
+            kernel.add(regularProbabilities, spamProbabilities, wordProbabilities,
+                       ids, count, sums);
+            regularProbability = sums[0];
+            spamProbability = sums[1];
+            wordProbability = sums[2];
+            count = 0;
+        }
+
+        public boolean isRegular() {
+            flush();
+            return super.isRegular();
+        }
+
+        public double margin() {
+            flush();
+            return super.margin();
+        }
+    }
+
+    /// Score of a message that stops the tokeniser as soon as the words
+    /// that can still come cannot change the decision. A word changes the
+    /// margin by at most the largest log-likelihood ratio of the vocabulary,
+    /// so once a word of the message is known, the decision is final when
+    /// the margin is larger than that ratio times Tokeniser.remainingTokens().
+    ///
+    /// The bound is multiplied by a factor. With 1 the classification is
+    /// the same as with a Score, with less the tokeniser stops sooner on
+    /// the assumption that the remaining words will not all go one way.
+    public class SequentialScore extends Score implements Tokeniser.TokenConsumer {
+        private final Tokeniser tokeniser;
+        private final double bound;
+        int nTokens = 0;
+        boolean stopped = false;
+
+        SequentialScore(Tokeniser tokeniser, double factor) {
+            this.tokeniser = tokeniser;
+            this.bound = factor * maxLogRatio;
+        }
+
+        public void token(char[] chars, int start, int length) {
+            add(chars, start, length);
+            ++nTokens;
+
+            long remaining = tokeniser.remainingTokens();
+            if (wordProbability > 0 && remaining > 0
+                    && Math.abs(margin()) > bound * remaining) {
+                stopped = true;
+                tokeniser.stop();
+            }
+        }
+
+        public void endOfLine() {
+        }
+
+        /// The number of tokens that were scored.
+        public int getTokens() {
+            return nTokens;
+        }
+
+        /// True if the tokeniser was stopped before the end of the message.
+        public boolean isStopped() {
+            return stopped;
+        }
+    }
+
+    /// Start scoring a new message.
+    public Score newScore() {
+        return new Score();
+    }
+
+    /// Start scoring a new message in batches with the given kernel.
+    public BatchScore newBatchScore(ScoringKernel kernel) {
+        return new BatchScore(kernel);
+    }
+
+    /// Start scoring a new message that is tokenised by tokeniser, with
+    /// the bound of the early exit multiplied by factor.
+    public SequentialScore newSequentialScore(Tokeniser tokeniser, double factor) {
+        return new SequentialScore(tokeniser, factor);
+    }
+
+    /// The largest absolute difference of the log-probabilities of a term.
+    public double getMaxLogRatio() {
+        return maxLogRatio;
+    }
+
+    public TermTable getVocabulary() {
+        return vocabulary;
+    }
+
+    public int size() {
+        return vocabulary.size();
+    }
+}
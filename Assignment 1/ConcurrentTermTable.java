@@ -0,0 +1,80 @@
+/// Vocabulary that many threads can count into at the same time. The terms
+/// are spread over a number of stripes by their hash, and every stripe is a
+/// TermTable with its own lock. Threads only wait for each other when they
+/// count terms of the same stripe at the same moment, instead of queueing
+/// on one monitor for every word.
+///
+/// A term always goes to the same stripe, so the counts are exactly the
+/// ones a single TermTable would have. toTermTable() collects the stripes
+/// into one table when the counting is done.
+public class ConcurrentTermTable {
+    /// This defines the default number of stripes.
+    public final static int DEFAULT_STRIPES = 64;
+
+    private final TermTable[] stripes;
+    private final int mask;
+
+    public ConcurrentTermTable() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /// Create a table with nStripes stripes, rounded up to a power of two.
+    public ConcurrentTermTable(int nStripes) {
+        int size = 1;
+        while (size < nStripes) {
+            size *= 2;
+        }
+
+        stripes = new TermTable[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new TermTable();
+        }
+        mask = size - 1;
+    }
+
+    // The stripe of the term in chars[start..start + length)
+    private TermTable stripe(char[] chars, int start, int length) {
+        return stripes[HashedFeatureTable.hash(chars, start, length) & mask];
+    }
+
+    /// Count one more occurrence of a term in a regular or spam message.
+    public void increment(char[] chars, int start, int length, boolean spam) {
+        add(chars, start, length, spam ? 0 : 1, spam ? 1 : 0);
+    }
+
+    /// Add counts to a term. The term is added if it is new.
+    public void add(char[] chars, int start, int length,
+            int regularCount, int spamCount) {
+        TermTable stripe = stripe(chars, start, length);
+
+        synchronized (stripe) {
+            stripe.add(chars, start, length, regularCount, spamCount);
+        }
+    }
+
+    /// Collect all stripes into one table. The ids of the terms are
+    /// ordered by stripe, not by the moment they were first counted.
+    public TermTable toTermTable() {
+        int nTerms = size();
+        TermTable table = new TermTable(nTerms);
+
+        for (TermTable stripe : stripes) {
+            synchronized (stripe) {
+                table.merge(stripe);
+            }
+        }
+        return table;
+    }
+
+    /// The number of terms in the table.
+    public int size() {
+        int nTerms = 0;
+
+        for (TermTable stripe : stripes) {
+            synchronized (stripe) {
+                nTerms += stripe.size();
+            }
+        }
+        return nTerms;
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+/// A corpus (the regular/ and spam/ messages of a train or test directory)
+/// packed into one file. The archive is written once with
+///
+///     java CorpusArchive <corpus dir> <archive file>
+///
+/// and read through a read-only memory mapping: the messages are slices of
+/// the mapping, so reading a corpus takes one open and no copies, instead
+/// of a directory listing and an open and close per message.
+///
+/// Layout of the file (big endian):
+///
+///     header     magic, version, number of regular messages,
+///                number of spam messages
+///     index      long[messages], start of every message, the regular
+///                messages first
+///     messages   int length followed by the bytes of every message
+public class CorpusArchive {
+    /// This defines the magic number ("BSPK") and version of the format.
+    public final static int MAGIC = 0x4253504b;
+    public final static int VERSION = 1;
+
+    private final static int HEADER_SIZE = 16;
+
+    private final ByteBuffer buffer;
+    private final int nMessagesRegular;
+    private final int nMessagesSpam;
+
+    /// Wrap a buffer that contains a corpus in the archive format.
+    public CorpusArchive(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a corpus archive.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported corpus archive version "
+                                  + buffer.getInt(4) + ".");
+        }
+
+        nMessagesRegular = buffer.getInt(8);
+        nMessagesSpam = buffer.getInt(12);
+    }
+
+    /// Open an archive through a read-only memory mapping of the file.
+    /// A single mapping is limited to 2 GB.
+    public static CorpusArchive load(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Corpus archive larger than 2 GB.");
+            }
+            return new CorpusArchive(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            /// The mapping stays valid after the file is closed.
+            in.close();
+        }
+    }
+
+    /// Write the messages of a corpus to an archive.
+    public static void pack(File[] regular, File[] spam, File file)
+            throws IOException {
+        int nMessages = regular.length + spam.length;
+        File[] messages = new File[nMessages];
+        System.arraycopy(regular, 0, messages, 0, regular.length);
+        System.arraycopy(spam, 0, messages, regular.length, spam.length);
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(regular.length);
+            out.writeInt(spam.length);
+
+            long offset = HEADER_SIZE + 8L * nMessages;
+            for (File message : messages) {
+                out.writeLong(offset);
+                offset += 4 + message.length();
+            }
+
+            for (File message : messages) {
+                long length = message.length();
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Message too large: " + message);
+                }
+                out.writeInt((int) length);
+                if (Files.copy(message.toPath(), out) != length) {
+                    throw new IOException("Message changed while packing: " + message);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public int getMessagesRegular() {
+        return nMessagesRegular;
+    }
+
+    public int getMessagesSpam() {
+        return nMessagesSpam;
+    }
+
+    /// The bytes of the i-th regular or spam message, as a slice of the
+    /// archive that shares its memory.
+    public ByteBuffer message(boolean spam, int i) {
+        int index = spam ? nMessagesRegular + i : i;
+        int offset = (int) buffer.getLong(HEADER_SIZE + 8 * index);
+        int length = buffer.getInt(offset);
+
+        return buffer.slice(offset + 4, length);
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("- Usage: java CorpusArchive <corpus dir> <archive file>\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        File dirLocation = new File(args[0]);
+        if (!dirLocation.isDirectory()) {
+            System.out.println("- Error: cmd line arg not a directory.\n");
+            Runtime.getRuntime().exit(0);
+        }
+        Bayespam.listDirs(dirLocation, true);
+
+        try {
+            pack(Bayespam.listingRegular, Bayespam.listingSpam, new File(args[1]));
+        } catch (IOException ioe) {
+            System.out.println("- Error: could not write archive " + args[1]
+                               + ": " + ioe.getMessage() + "\n");
+            Runtime.getRuntime().exit(0);
+        }
+        System.out.println((Bayespam.listingRegular.length + Bayespam.listingSpam.length)
+                           + " messages packed into " + args[1]);
+    }
+}
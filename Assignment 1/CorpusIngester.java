@@ -0,0 +1,107 @@
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/// Reads a large number of small message files concurrently, so that the
+/// time spent waiting for the file system overlaps. The files are split in
+/// small batches and every batch is a task. On a JVM with virtual threads
+/// (Java 21 and later) each task runs in its own virtual thread, on older
+/// JVMs the tasks share a fixed pool of maxOpenFiles platform threads.
+///
+/// A task takes a tokeniser from a pool of maxOpenFiles tokenisers before
+/// it opens a file and returns it when the file is done, which bounds the
+/// number of open files however many tasks are waiting. The tokens are
+/// counted straight into a shared ConcurrentTermTable.
+public class CorpusIngester {
+    /// This defines the default number of files that are open at the same time.
+    public final static int DEFAULT_OPEN_FILES = 64;
+
+    /// This defines the number of files read by one task.
+    public final static int BATCH_SIZE = 16;
+
+    private final ExecutorService executor;
+    private final BlockingQueue<Tokeniser> tokenisers;
+    private final boolean virtualThreads;
+
+    public CorpusIngester(int maxOpenFiles, int minimalWordSize) {
+        ExecutorService virtual = newVirtualThreadExecutor();
+
+        virtualThreads = (virtual != null);
+        executor = virtualThreads ? virtual
+                                  : Executors.newFixedThreadPool(maxOpenFiles);
+        tokenisers = new ArrayBlockingQueue<Tokeniser>(maxOpenFiles);
+        for (int i = 0; i < maxOpenFiles; i++) {
+            tokenisers.add(new Tokeniser(minimalWordSize));
+        }
+    }
+
+    /// Executors.newVirtualThreadPerTaskExecutor(), or null if this JVM
+    /// has no virtual threads. It is looked up by reflection, so the
+    /// class still compiles and runs on Java 17.
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException roe) {
+            /// Not available, or a preview feature that is not enabled.
+            return null;
+        }
+    }
+
+    /// True if the tasks run in virtual threads.
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /// Count the tokens of all messages into sink and wait until every
+    /// message is done.
+    public void ingest(final File[] messages, final boolean spam,
+            final ConcurrentTermTable sink) {
+        final Tokeniser.TokenConsumer consumer = new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                sink.increment(chars, start, length, spam);
+            }
+
+            public void endOfLine() {
+            }
+        };
+        List<Future<?>> batches = new ArrayList<Future<?>>();
+
+        for (int start = 0; start < messages.length; start += BATCH_SIZE) {
+            final int from = start;
+            final int to = Math.min(start + BATCH_SIZE, messages.length);
+
+            batches.add(executor.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    for (int i = from; i < to; i++) {
+                        Tokeniser tokeniser = tokenisers.take();
+                        try {
+                            Bayespam.tokenise(tokeniser, messages[i], consumer);
+                        } finally {
+                            tokenisers.add(tokeniser);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> batch : batches) {
+                batch.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    /// Stop the threads.
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
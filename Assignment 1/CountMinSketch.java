@@ -0,0 +1,79 @@
+/// Count-min sketch: estimates how often every item of a stream occurs in
+/// a fixed amount of memory. Every item is counted in one cell of each of
+/// DEPTH rows, picked by a different hash of the item, and its estimate is
+/// the smallest of those cells. Collisions can only add to a cell, so an
+/// estimate is never lower than the true count.
+///
+/// Items are given by a 32 bit key that is already well mixed, and the
+/// row hashes are derived from it. BigramBayespam keys a bigram by
+/// HashedFeatureTable.combine() of the TermTable ids of its two words, so
+/// the same bigram gets the same key in both passes over the messages.
+/// Counting uses the conservative update:
+/// only the cells that hold the current minimum are incremented, which
+/// keeps the overestimates lower without ever underestimating.
+///
+/// The sketch is not synchronized, it is meant to be filled by one thread.
+public class CountMinSketch {
+    /// This defines the number of rows.
+    public final static int DEPTH = 4;
+
+    // Odd multipliers that derive the row hashes
+    private final static int[] SEEDS = {
+        0x9e3779b1, 0x85ebca77, 0xc2b2ae3d, 0x27d4eb2f
+    };
+
+    private final int mask;
+    private final int[] cells;
+    private final int[] index = new int[DEPTH];
+
+    /// Create a sketch with rows of 2^bits cells.
+    public CountMinSketch(int bits) {
+        if (bits < 1 || bits > 28) {
+            throw new IllegalArgumentException("bits must be between 1 and 28");
+        }
+        this.mask = (1 << bits) - 1;
+        this.cells = new int[DEPTH << bits];
+    }
+
+    // Find the cell of the item in every row
+    private void locate(int hash) {
+        for (int row = 0; row < DEPTH; row++) {
+            int h = hash * SEEDS[row];
+            index[row] = (row * (mask + 1)) + ((h ^ (h >>> 15)) & mask);
+        }
+    }
+
+    /// Count one more occurrence of an item and return its new estimate.
+    public int add(int hash) {
+        locate(hash);
+
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, cells[index[row]]);
+        }
+        ++estimate;
+        for (int row = 0; row < DEPTH; row++) {
+            if (cells[index[row]] < estimate) {
+                cells[index[row]] = estimate;
+            }
+        }
+        return estimate;
+    }
+
+    /// Estimate the number of occurrences of an item, never lower than
+    /// the true number.
+    public int estimate(int hash) {
+        locate(hash);
+
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, cells[index[row]]);
+        }
+        return estimate;
+    }
+
+    /// Bytes used by the cells.
+    public long memoryFootprint() {
+        return 4L * cells.length;
+    }
+}
@@ -0,0 +1,347 @@
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/// k-fold cross-validation of the classifiers over a grid of settings:
+///
+///     java CrossValidation <corpus dir>... [-folds K] [-threads N]
+///
+/// The messages of all corpus directories (each with regular/ and spam/)
+/// are pooled, tokenised once into an in-memory TokenCache with the
+/// smallest word size and split in K folds with the same share of spam.
+/// Every setting of EPSILON, MINIMAL_WORD_SIZE and FREQUENCY_LIMIT is then
+/// evaluated for unigrams and bigrams: trained on K - 1 folds and tested on
+/// the remaining one, for every fold. The settings and their folds run in
+/// parallel on a fork-join pool and only read the shared tokens.
+///
+/// The best setting can be used by the classifiers with -Dbayespam.epsilon=E,
+/// -Dbayespam.wordsize=N and -Dbayespam.frequencylimit=N.
+///
+/// For every setting the accuracy, FAR (false accept rate, the share of
+/// spam classified as regular), FRR (false reject rate, the share of
+/// regular messages classified as spam) and the wall time are printed.
+public class CrossValidation {
+    /// This defines the grid of settings that is evaluated.
+    public final static double[] EPSILONS = { 0.01, 0.1, 1 };
+    public final static int[] MINIMAL_WORD_SIZES = { 2, 3, 4, 5, 6 };
+    public final static int[] FREQUENCY_LIMITS = { 1, 3, 6, 10 };
+
+    /// This defines the default number of folds.
+    public final static int DEFAULT_FOLDS = 10;
+
+    /// One point of the grid.
+    static class Configuration {
+        final boolean bigrams;
+        final double epsilon;
+        final int minimalWordSize;
+        final int frequencyLimit;
+
+        Configuration(boolean bigrams, double epsilon, int minimalWordSize,
+                int frequencyLimit) {
+            this.bigrams = bigrams;
+            this.epsilon = epsilon;
+            this.minimalWordSize = minimalWordSize;
+            this.frequencyLimit = frequencyLimit;
+        }
+
+        public String toString() {
+            return String.format(Locale.ROOT, "%s\t%s\t%d\t%d",
+                    bigrams ? "bigrams" : "unigrams", epsilon, minimalWordSize,
+                    frequencyLimit);
+        }
+    }
+
+    /// Confusion counts of all folds of a configuration.
+    static class Result {
+        final Configuration configuration;
+        int trueNegatives = 0;
+        int falseNegatives = 0;
+        int falsePositives = 0;
+        int truePositives = 0;
+        double time;
+
+        Result(Configuration configuration) {
+            this.configuration = configuration;
+        }
+
+        double accuracy() {
+            return (trueNegatives + truePositives)
+                   / (double) (trueNegatives + falseNegatives + falsePositives + truePositives);
+        }
+
+        /// Share of the spam messages that is classified as regular.
+        double falseAcceptRate() {
+            return falseNegatives / (double) (falseNegatives + truePositives);
+        }
+
+        /// Share of the regular messages that is classified as spam.
+        double falseRejectRate() {
+            return falsePositives / (double) (trueNegatives + falsePositives);
+        }
+    }
+
+    private final TokenCache tokens;
+    private final File[] messages;
+    private final boolean[] spam;
+    private final int[] folds;
+    private final int nFolds;
+
+    /// Tokenise the messages once and split them in folds. The order of
+    /// the messages in a class is shuffled with a fixed seed first.
+    public CrossValidation(File[] regular, File[] spamMessages, int nFolds) {
+        this.nFolds = nFolds;
+        this.messages = new File[regular.length + spamMessages.length];
+        this.spam = new boolean[messages.length];
+        this.folds = new int[messages.length];
+
+        System.arraycopy(regular, 0, messages, 0, regular.length);
+        System.arraycopy(spamMessages, 0, messages, regular.length, spamMessages.length);
+        Arrays.fill(spam, regular.length, messages.length, true);
+
+        Random random = new Random(42);
+        for (int[] range : new int[][] { { 0, regular.length },
+                                         { regular.length, messages.length } }) {
+            List<Integer> order = new ArrayList<Integer>();
+            for (int i = range[0]; i < range[1]; i++) {
+                order.add(i);
+            }
+            Collections.shuffle(order, random);
+            for (int i = 0; i < order.size(); i++) {
+                folds[order.get(i)] = i % nFolds;
+            }
+        }
+
+        int smallest = Integer.MAX_VALUE;
+        for (int minimalWordSize : MINIMAL_WORD_SIZES) {
+            smallest = Math.min(smallest, minimalWordSize);
+        }
+        tokens = TokenCache.build(messages, smallest);
+    }
+
+    /// Evaluate all configurations on a pool of nThreads threads, in the
+    /// order of the list.
+    public List<Result> evaluate(List<Configuration> configurations, int nThreads) {
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+        List<ConfigurationTask> tasks = new ArrayList<ConfigurationTask>();
+        List<Result> results = new ArrayList<Result>();
+
+        try {
+            for (Configuration configuration : configurations) {
+                tasks.add(new ConfigurationTask(configuration));
+            }
+            for (ConfigurationTask task : tasks) {
+                pool.execute(task);
+            }
+            for (ConfigurationTask task : tasks) {
+                results.add(task.join());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    // Cross-validation of one configuration, with a subtask per fold
+    @SuppressWarnings("serial")
+    private class ConfigurationTask extends RecursiveTask<Result> {
+        private final Configuration configuration;
+
+        ConfigurationTask(Configuration configuration) {
+            this.configuration = configuration;
+        }
+
+        protected Result compute() {
+            long start = System.nanoTime();
+            List<FoldTask> foldTasks = new ArrayList<FoldTask>();
+            for (int fold = 0; fold < nFolds; fold++) {
+                foldTasks.add(new FoldTask(configuration, fold));
+            }
+            invokeAll(foldTasks);
+
+            Result result = new Result(configuration);
+            for (FoldTask task : foldTasks) {
+                int[] counts = task.join();
+                result.trueNegatives += counts[0];
+                result.falseNegatives += counts[1];
+                result.falsePositives += counts[2];
+                result.truePositives += counts[3];
+            }
+            result.time = (System.nanoTime() - start) / 1e9;
+            return result;
+        }
+    }
+
+    // Train on all folds but one and test on that one. Returns the true
+    // negatives, false negatives, false positives and true positives.
+    @SuppressWarnings("serial")
+    private class FoldTask extends RecursiveTask<int[]> {
+        private final Configuration configuration;
+        private final int fold;
+
+        FoldTask(Configuration configuration, int fold) {
+            this.configuration = configuration;
+            this.fold = fold;
+        }
+
+        protected int[] compute() {
+            CompiledModel model = train(configuration, fold);
+            int[] counts = new int[4];
+
+            for (int i = 0; i < messages.length; i++) {
+                if (folds[i] != fold) {
+                    continue;
+                }
+
+                final CompiledModel.Score score = model.newScore();
+                replay(configuration, messages[i], new Tokeniser.TokenConsumer() {
+                    public void token(char[] chars, int start, int length) {
+                        score.add(chars, start, length);
+                    }
+
+                    public void endOfLine() {
+                    }
+                });
+
+                boolean regular = score.isRegular();
+                counts[(spam[i] ? 1 : 0) + (regular ? 0 : 2)]++;
+            }
+            return counts;
+        }
+    }
+
+    // Pass the words or bigrams of a message, as the classifiers would see
+    // them with the word size of the configuration
+    private void replay(Configuration configuration, File message,
+            final Tokeniser.TokenConsumer consumer) {
+        final int minimalWordSize = configuration.minimalWordSize;
+        final Tokeniser.TokenConsumer terms = configuration.bigrams
+                ? new BigramBayespam.BigramConsumer() {
+                      void bigram(char[] chars, int start, int length) {
+                          consumer.token(chars, start, length);
+                      }
+                  }
+                : consumer;
+
+        tokens.replay(message, new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                if (length >= minimalWordSize) {
+                    terms.token(chars, start, length);
+                }
+            }
+
+            public void endOfLine() {
+                terms.endOfLine();
+            }
+        });
+    }
+
+    // Train a model on all folds except one: an NGramModel with the epsilon
+    // and frequency limit of the configuration
+    private CompiledModel train(Configuration configuration, int testFold) {
+        final TermTable counted = new TermTable();
+        int nMessagesRegular = 0;
+        int nMessagesSpam = 0;
+
+        for (int i = 0; i < messages.length; i++) {
+            if (folds[i] == testFold) {
+                continue;
+            }
+
+            final boolean isSpam = spam[i];
+            if (isSpam) {
+                ++nMessagesSpam;
+            } else {
+                ++nMessagesRegular;
+            }
+            replay(configuration, messages[i], new Tokeniser.TokenConsumer() {
+                public void token(char[] chars, int start, int length) {
+                    counted.increment(chars, start, length, isSpam);
+                }
+
+                public void endOfLine() {
+                }
+            });
+        }
+
+        NGramModel model = new NGramModel(
+                new int[] { configuration.bigrams ? 2 : 1 },
+                new int[] { configuration.frequencyLimit }, configuration.epsilon);
+        model.addCounts(counted, nMessagesRegular, nMessagesSpam);
+        model.compile();
+        return model.compiledModel();
+    }
+
+    /// All points of the grid, unigrams first.
+    public static List<Configuration> grid() {
+        List<Configuration> configurations = new ArrayList<Configuration>();
+
+        for (boolean bigrams : new boolean[] { false, true }) {
+            for (double epsilon : EPSILONS) {
+                for (int minimalWordSize : MINIMAL_WORD_SIZES) {
+                    for (int frequencyLimit : FREQUENCY_LIMITS) {
+                        configurations.add(new Configuration(bigrams, epsilon,
+                                minimalWordSize, frequencyLimit));
+                    }
+                }
+            }
+        }
+        return configurations;
+    }
+
+    public static void main(String[] args) {
+        List<File> regular = new ArrayList<File>();
+        List<File> spamMessages = new ArrayList<File>();
+        int nFolds = DEFAULT_FOLDS;
+        int nThreads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-folds") && i + 1 < args.length) {
+                nFolds = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                nThreads = Integer.parseInt(args[++i]);
+            } else {
+                File dirLocation = new File(args[i]);
+                if (!dirLocation.isDirectory()) {
+                    System.out.println("- Error: cmd line arg not a directory.\n");
+                    Runtime.getRuntime().exit(0);
+                }
+                Bayespam.listDirs(dirLocation, true);
+                regular.addAll(Arrays.asList(Bayespam.listingRegular));
+                spamMessages.addAll(Arrays.asList(Bayespam.listingSpam));
+            }
+        }
+        if (regular.isEmpty() && spamMessages.isEmpty()) {
+            System.out.println("- Usage: java CrossValidation <corpus dir>..."
+                               + " [-folds K] [-threads N]\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        long start = System.nanoTime();
+        CrossValidation validation = new CrossValidation(
+                regular.toArray(new File[0]), spamMessages.toArray(new File[0]), nFolds);
+        double tokeniseTime = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        List<Result> results = validation.evaluate(grid(), nThreads);
+        double totalTime = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("features\tepsilon\tsize\tlimit\taccuracy\tFAR\tFRR\tms");
+        Result best = null;
+        for (Result result : results) {
+            System.out.printf(Locale.ROOT, "%s\t%.1f%%\t\t%.1f%%\t%.1f%%\t%.1f\n",
+                    result.configuration, 100 * result.accuracy(),
+                    100 * result.falseAcceptRate(), 100 * result.falseRejectRate(),
+                    result.time * 1e3);
+            if (best == null || result.accuracy() > best.accuracy()) {
+                best = result;
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "\n%d messages, %d folds, %d configurations"
+                + " on %d threads: tokenised in %.1f ms, evaluated in %.1f ms\n",
+                regular.size() + spamMessages.size(), nFolds, results.size(), nThreads,
+                tokeniseTime * 1e3, totalTime * 1e3);
+        System.out.println("Best: " + best.configuration);
+    }
+}
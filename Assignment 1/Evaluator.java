@@ -0,0 +1,232 @@
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// Classifies a test set with several threads. Every worker claims small
+/// batches of messages from a shared cursor and keeps its own Result: the
+/// confusion matrix and a histogram of the score margins per class. The
+/// workers share nothing else while they run, their results are merged
+/// when all messages are done.
+///
+/// The messages are classified with Bayespam.scoreMessage(), so every
+/// message gets the same class as in the sequential evaluation and the
+/// merged confusion matrix is the same.
+public class Evaluator {
+    /// This defines the number of messages a worker claims at a time.
+    public final static int BATCH_SIZE = 16;
+
+    /// This defines the histogram of the margins: bins of BIN_WIDTH
+    /// (natural log) from -BIN_LIMIT to BIN_LIMIT, margins beyond that are
+    /// counted in the first or the last bin.
+    public final static int BIN_WIDTH = 10;
+    public final static int BIN_LIMIT = 200;
+    public final static int BINS = 2 * BIN_LIMIT / BIN_WIDTH;
+
+    /// A test set: the regular or spam messages by index.
+    public interface TestSet {
+        int size(boolean spam);
+
+        CompiledModel.Score score(boolean spam, int i, CompiledModel model);
+    }
+
+    /// Confusion matrix and margin histograms of (part of) a test set.
+    public static class Result {
+        int trueNegatives = 0;
+        int falsePositives = 0;
+        int nMessagesRegular = 0;
+        int nMessagesSpam = 0;
+        final long[][] histogram = new long[2][BINS];
+        long nanos = 0;
+
+        // Count a classified message
+        void add(boolean spam, CompiledModel.Score score) {
+            boolean regular = score.isRegular();
+
+            if (spam) {
+                ++nMessagesSpam;
+                falsePositives += regular ? 1 : 0;
+            } else {
+                ++nMessagesRegular;
+                trueNegatives += regular ? 1 : 0;
+            }
+            ++histogram[spam ? 1 : 0][bin(score.margin())];
+        }
+
+        /// Add the counts of another result to this one.
+        public void merge(Result other) {
+            trueNegatives += other.trueNegatives;
+            falsePositives += other.falsePositives;
+            nMessagesRegular += other.nMessagesRegular;
+            nMessagesSpam += other.nMessagesSpam;
+            for (int c = 0; c < 2; c++) {
+                for (int b = 0; b < BINS; b++) {
+                    histogram[c][b] += other.histogram[c][b];
+                }
+            }
+        }
+
+        public int getTrueNegatives() {
+            return trueNegatives;
+        }
+
+        /// Spam messages classified as regular.
+        public int getFalsePositives() {
+            return falsePositives;
+        }
+
+        public int getMessages() {
+            return nMessagesRegular + nMessagesSpam;
+        }
+
+        public int getMessagesRegular() {
+            return nMessagesRegular;
+        }
+
+        public int getMessagesSpam() {
+            return nMessagesSpam;
+        }
+
+        /// Messages of a class whose margin falls in bin b.
+        public long getHistogram(boolean spam, int b) {
+            return histogram[spam ? 1 : 0][b];
+        }
+
+        /// Messages classified per second.
+        public double throughput() {
+            return getMessages() / (nanos / 1e9);
+        }
+
+        /// True if the counts are the same as those of another result.
+        public boolean sameCounts(Result other) {
+            return trueNegatives == other.trueNegatives
+                   && falsePositives == other.falsePositives
+                   && nMessagesRegular == other.nMessagesRegular
+                   && nMessagesSpam == other.nMessagesSpam
+                   && Arrays.deepEquals(histogram, other.histogram);
+        }
+
+        /// Print the throughput and the non-empty bins of the histograms.
+        public void print(PrintStream out, int nThreads) {
+            out.printf("Evaluated %d messages in %.1f ms with %d threads"
+                       + " (%.0f messages/s)\n", getMessages(), nanos / 1e6,
+                       nThreads, throughput());
+            out.println("margin\t\tregular\tspam");
+            for (int b = 0; b < BINS; b++) {
+                if (histogram[0][b] + histogram[1][b] > 0) {
+                    out.printf("%s\t%d\t%d\n", binLabel(b), histogram[0][b],
+                               histogram[1][b]);
+                }
+            }
+        }
+    }
+
+    // Histogram bin of a margin
+    static int bin(double margin) {
+        if (Double.isNaN(margin) || margin < -BIN_LIMIT) {
+            return 0;
+        }
+        return Math.min(BINS - 1, (int) Math.floor((margin + BIN_LIMIT) / BIN_WIDTH));
+    }
+
+    // Range of a histogram bin, the outer bins are open
+    static String binLabel(int b) {
+        int from = b * BIN_WIDTH - BIN_LIMIT;
+        if (b == 0) {
+            return "< " + (from + BIN_WIDTH);
+        } else if (b == BINS - 1) {
+            return ">= " + from;
+        }
+        return "[" + from + ", " + (from + BIN_WIDTH) + ")";
+    }
+
+    private final CompiledModel model;
+    private final int nThreads;
+
+    public Evaluator(CompiledModel model, int nThreads) {
+        this.model = model;
+        this.nThreads = Math.max(1, nThreads);
+    }
+
+    /// The test set of two listings of files.
+    public static TestSet listings(final File[] regular, final File[] spam) {
+        return new TestSet() {
+            public int size(boolean isSpam) {
+                return isSpam ? spam.length : regular.length;
+            }
+
+            public CompiledModel.Score score(boolean isSpam, int i, CompiledModel model) {
+                return Bayespam.scoreMessage(isSpam ? spam[i] : regular[i], model);
+            }
+        };
+    }
+
+    /// The test set of a packed corpus.
+    public static TestSet archive(final CorpusArchive archive) {
+        return new TestSet() {
+            public int size(boolean spam) {
+                return spam ? archive.getMessagesSpam() : archive.getMessagesRegular();
+            }
+
+            public CompiledModel.Score score(boolean spam, int i, CompiledModel model) {
+                ByteBuffer message = archive.message(spam, i);
+                return Bayespam.scoreMessage(message, model);
+            }
+        };
+    }
+
+    /// Classify every message of the test set and return the merged result.
+    public Result evaluate(final TestSet messages) {
+        final int nRegular = messages.size(false);
+        final int nMessages = nRegular + messages.size(true);
+        final AtomicInteger cursor = new AtomicInteger(0);
+        long start = System.nanoTime();
+
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        List<Future<Result>> partials = new ArrayList<Future<Result>>();
+
+        for (int t = 0; t < nThreads; t++) {
+            partials.add(pool.submit(new Callable<Result>() {
+                public Result call() {
+                    Result result = new Result();
+                    int from;
+
+                    while ((from = cursor.getAndAdd(BATCH_SIZE)) < nMessages) {
+                        int to = Math.min(from + BATCH_SIZE, nMessages);
+                        for (int m = from; m < to; m++) {
+                            boolean spam = (m >= nRegular);
+                            int i = spam ? m - nRegular : m;
+                            result.add(spam, messages.score(spam, i, model));
+                        }
+                    }
+                    return result;
+                }
+            }));
+        }
+
+        Result merged = new Result();
+        try {
+            for (Future<Result> partial : partials) {
+                merged.merge(partial.get());
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ie);
+        } catch (ExecutionException ee) {
+            throw new RuntimeException(ee.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        merged.nanos = System.nanoTime() - start;
+        return merged;
+    }
+
+    public int getThreads() {
+        return nThreads;
+    }
+}
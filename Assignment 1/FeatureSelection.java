@@ -0,0 +1,143 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/// Feature selection after training: ranks the terms of a vocabulary by how
+/// well they tell regular from spam messages and keeps the best K. Terms with
+/// about the same log-probability in both classes add next to nothing to the
+/// score of a message, so a model of the best few terms classifies about as
+/// well as the whole vocabulary, with a much smaller table to look up in.
+///
+/// The counts of the selected terms are kept as they are. Their probabilities
+/// should still be calculated with the word counts of the whole vocabulary,
+/// so that a reduced model gives every term the same weight as the full one.
+public class FeatureSelection {
+    /// The ways to rank the terms.
+    public enum Criterion {
+        /// The information gain of the term about the class of a word
+        /// of the training set (the mutual information of both). It
+        /// favours terms that are frequent and mostly in one class.
+        INFORMATION_GAIN,
+
+        /// The absolute log-likelihood ratio of the term, the difference of
+        /// its class conditional log-probabilities. It favours terms that
+        /// are strongly in one class, however rare. Ties go to the more
+        /// frequent term.
+        LOG_LIKELIHOOD_RATIO
+    }
+
+    private FeatureSelection() {
+    }
+
+    /// The criterion with the given short name, "ig" or "llr".
+    public static Criterion criterion(String name) {
+        if (name.equals("ig")) {
+            return Criterion.INFORMATION_GAIN;
+        } else if (name.equals("llr")) {
+            return Criterion.LOG_LIKELIHOOD_RATIO;
+        }
+        throw new IllegalArgumentException("unknown criterion " + name);
+    }
+
+    /// The score of every term of the vocabulary, by id. Higher is better.
+    public static double[] scores(TermTable vocabulary, Criterion criterion) {
+        int nWordsRegular = 0;
+        int nWordsSpam = 0;
+        for (int id = 0; id < vocabulary.size(); id++) {
+            nWordsRegular += vocabulary.getRegularCount(id);
+            nWordsSpam += vocabulary.getSpamCount(id);
+        }
+
+        double[] scores = new double[vocabulary.size()];
+        for (int id = 0; id < vocabulary.size(); id++) {
+            int regular = vocabulary.getRegularCount(id);
+            int spam = vocabulary.getSpamCount(id);
+
+            if (criterion == Criterion.INFORMATION_GAIN) {
+                scores[id] = informationGain(regular, spam, nWordsRegular, nWordsSpam);
+            } else {
+                scores[id] = Math.abs(
+                        Bayespam.logProbability(regular, nWordsRegular,
+                                nWordsRegular + nWordsSpam, Bayespam.EPSILON)
+                        - Bayespam.logProbability(spam, nWordsSpam,
+                                nWordsRegular + nWordsSpam, Bayespam.EPSILON));
+            }
+        }
+        return scores;
+    }
+
+    // Entropy of the class in natural log, for the given number
+    // of regular and spam words
+    private static double entropy(double regular, double spam) {
+        double total = regular + spam;
+        double entropy = 0;
+        if (regular > 0) {
+            entropy -= (regular / total) * Math.log(regular / total);
+        }
+        if (spam > 0) {
+            entropy -= (spam / total) * Math.log(spam / total);
+        }
+        return entropy;
+    }
+
+    // Reduction of the entropy of the class of a word when it is
+    // known whether the word is the term
+    private static double informationGain(int regular, int spam,
+            int nWordsRegular, int nWordsSpam) {
+        double total = nWordsRegular + (double) nWordsSpam;
+        double term = regular + (double) spam;
+
+        return entropy(nWordsRegular, nWordsSpam)
+               - (term / total) * entropy(regular, spam)
+               - ((total - term) / total)
+                 * entropy(nWordsRegular - regular, nWordsSpam - (double) spam);
+    }
+
+    /// The ids of the vocabulary, best first.
+    public static int[] rank(final TermTable vocabulary, Criterion criterion) {
+        final double[] scores = scores(vocabulary, criterion);
+        Integer[] ids = new Integer[vocabulary.size()];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = id;
+        }
+
+        Arrays.sort(ids, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                int order = Double.compare(scores[b], scores[a]);
+                if (order == 0) {
+                    order = Integer.compare(count(b), count(a));
+                }
+                return (order != 0) ? order : Integer.compare(a, b);
+            }
+
+            private int count(int id) {
+                return vocabulary.getRegularCount(id) + vocabulary.getSpamCount(id);
+            }
+        });
+
+        int[] ranked = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            ranked[i] = ids[i];
+        }
+        return ranked;
+    }
+
+    /// A new vocabulary of the k best terms with their counts, in the
+    /// order of their ids in the given one.
+    public static TermTable select(TermTable vocabulary, Criterion criterion, int k) {
+        return select(vocabulary, rank(vocabulary, criterion), k);
+    }
+
+    /// Same as select() above, with the ranking already known.
+    public static TermTable select(TermTable vocabulary, int[] ranked, int k) {
+        int[] selected = Arrays.copyOf(ranked, Math.min(k, ranked.length));
+        Arrays.sort(selected);
+
+        TermTable reduced = new TermTable(selected.length);
+        for (int id : selected) {
+            String term = vocabulary.term(id);
+            reduced.add(term.toCharArray(), 0, term.length(),
+                        vocabulary.getRegularCount(id), vocabulary.getSpamCount(id));
+        }
+        return reduced;
+    }
+}
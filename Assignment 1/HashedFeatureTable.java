@@ -0,0 +1,217 @@
+/// Vocabulary for the hashing trick: unigrams or bigrams are hashed
+/// straight into a fixed number of count slots (2^bits), without storing
+/// the terms. A bigram hash is combined from the hashes of its two words,
+/// so no concatenated bigram is ever built. The memory use is fixed by the
+/// number of bits, at the price of terms that share a slot.
+///
+/// The table is not synchronized, it is meant to be filled by one thread.
+public class HashedFeatureTable {
+    private final int bits;
+    private final int mask;
+    private final int[] regularCounts;
+    private final int[] spamCounts;
+
+    /// Create a table with 2^bits slots.
+    public HashedFeatureTable(int bits) {
+        if (bits < 1 || bits > 30) {
+            throw new IllegalArgumentException("bits must be between 1 and 30");
+        }
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+        this.regularCounts = new int[1 << bits];
+        this.spamCounts = new int[1 << bits];
+    }
+
+    /// Hash of a word, mixed so that every bit depends on every character.
+    public static int hash(char[] chars, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return mix(h);
+    }
+
+    /// Hash of a bigram from the hashes of its two words, or from their
+    /// ids in a TermTable as for the CountMinSketch of BigramBayespam. The
+    /// order of the words matters.
+    public static int combine(int first, int second) {
+        return mix(first * 0x9e3779b9 + second);
+    }
+
+    // Finalisation step of MurmurHash3
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /// Passes the feature hashes of a message on: the hash of every word
+    /// for unigrams, or for bigrams the combined hash of every two words
+    /// of a line, paired by NGramConsumer as for BigramBayespam.
+    public static abstract class FeatureConsumer extends NGramConsumer {
+        /// The order is 1 for unigrams and 2 for bigrams.
+        public FeatureConsumer(int order) {
+            super(checkOrder(order));
+        }
+
+        private static int checkOrder(int order) {
+            if (order != 1 && order != 2) {
+                throw new IllegalArgumentException("order must be 1 or 2");
+            }
+            return order;
+        }
+
+        /// Called for the hash of every feature of the message.
+        public abstract void feature(int hash);
+
+        public int word(char[] chars, int start, int length) {
+            return hash(chars, start, length);
+        }
+
+        public void ngram(int order, int[] words, int first) {
+            feature((order == 1) ? words[first] : combine(words[first], words[first + 1]));
+        }
+
+        public void ngram(int order, char[] chars, int start, int length) {
+        }
+    }
+
+    /// Count one more occurrence of a feature.
+    public void increment(int hash, boolean spam) {
+        if (spam) {
+            ++spamCounts[hash & mask];
+        } else {
+            ++regularCounts[hash & mask];
+        }
+    }
+
+    /// Clear the slots that are counted less than minimalCount times
+    /// (regular and spam together).
+    public void filter(int minimalCount) {
+        for (int slot = 0; slot <= mask; slot++) {
+            if (regularCounts[slot] + spamCounts[slot] < minimalCount) {
+                regularCounts[slot] = 0;
+                spamCounts[slot] = 0;
+            }
+        }
+    }
+
+    public int slot(int hash) {
+        return hash & mask;
+    }
+
+    /// The number of slots.
+    public int size() {
+        return mask + 1;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public int getRegularCount(int slot) {
+        return regularCounts[slot];
+    }
+
+    public int getSpamCount(int slot) {
+        return spamCounts[slot];
+    }
+
+    /// Bytes used by the count arrays.
+    public long memoryFootprint() {
+        return 8L * size();
+    }
+
+    /// Calculate the log-probabilities of every used slot, with the same
+    /// formulas as Bayespam.calculateProbabilities(), for classification.
+    public Model compile(int nMessagesRegular, int nMessagesSpam) {
+        return new Model(nMessagesRegular, nMessagesSpam);
+    }
+
+    /// Dense scoring arrays of a hashed vocabulary.
+    public class Model {
+        private final double[] regularProbabilities = new double[size()];
+        private final double[] spamProbabilities = new double[size()];
+        private final double[] wordProbabilities = new double[size()];
+        private final double regularPrioriProbability;
+        private final double spamPrioriProbability;
+
+        Model(int nMessagesRegular, int nMessagesSpam) {
+            int totalMessages = nMessagesRegular + nMessagesSpam;
+            int nWordsRegular = 0;
+            int nWordsSpam = 0;
+
+            regularPrioriProbability =
+                    Math.log(nMessagesRegular / (double) totalMessages);
+            spamPrioriProbability =
+                    Math.log(nMessagesSpam / (double) totalMessages);
+
+            for (int slot = 0; slot <= mask; slot++) {
+                nWordsRegular += regularCounts[slot];
+                nWordsSpam += spamCounts[slot];
+            }
+
+            int amountOfWords = nWordsRegular + nWordsSpam;
+            for (int slot = 0; slot <= mask; slot++) {
+                int currentEntryRegular = regularCounts[slot];
+                int currentEntrySpam = spamCounts[slot];
+
+                /// Empty slots are not part of the vocabulary.
+                if (currentEntryRegular + currentEntrySpam == 0) {
+                    continue;
+                }
+
+                regularProbabilities[slot] = Bayespam.logProbability(currentEntryRegular,
+                        nWordsRegular, amountOfWords, Bayespam.EPSILON);
+                spamProbabilities[slot] = Bayespam.logProbability(currentEntrySpam,
+                        nWordsSpam, amountOfWords, Bayespam.EPSILON);
+                wordProbabilities[slot] = (currentEntryRegular + currentEntrySpam)
+                                          / (double) amountOfWords;
+            }
+        }
+
+        /// Running score of one message.
+        public class Score {
+            double wordProbability = 0;
+            double regularProbability = 0;
+            double spamProbability = 0;
+
+            /// Add a feature of the message, features in empty slots
+            /// are skipped.
+            public void add(int hash) {
+                int slot = hash & mask;
+
+                if (wordProbabilities[slot] != 0) {
+                    regularProbability += regularProbabilities[slot];
+                    spamProbability += spamProbabilities[slot];
+                    wordProbability += wordProbabilities[slot];
+                }
+            }
+
+            /// True if the message is regular, false if it is spam.
+            public boolean isRegular() {
+                double probabilityRegular = (1 / wordProbability)
+                                            + regularPrioriProbability
+                                            + regularProbability;
+                double probabilitySpam = (1 / wordProbability)
+                                         + spamPrioriProbability
+                                         + spamProbability;
+
+                return probabilityRegular > probabilitySpam;
+            }
+        }
+
+        /// Start scoring a new message.
+        public Score newScore() {
+            return new Score();
+        }
+
+        /// Bytes used by the scoring arrays.
+        public long memoryFootprint() {
+            return 24L * size();
+        }
+    }
+}
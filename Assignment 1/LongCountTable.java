@@ -0,0 +1,169 @@
+import java.util.Arrays;
+
+/// Regular and spam counters for keys that are a single long, such as a
+/// bigram made of the ids of its two words. Like TermTable, every key gets
+/// an int id in the order the keys are first counted, the keys and counters
+/// are kept in parallel arrays indexed by that id and the ids are found
+/// with an open addressing (linear probing) table. Nothing is allocated
+/// per key.
+///
+/// The table is not synchronized, it is meant to be filled by one thread.
+public class LongCountTable {
+    /// This defines the initial number of keys and the maximal load
+    /// of the open addressing table.
+    public final static int DEFAULT_CAPACITY = 1024;
+    public final static double LOAD_FACTOR = 0.6;
+
+    // Open addressing table of key id + 1 (0 marks an empty slot)
+    private int[] slots;
+
+    // Key data, indexed by key id
+    private long[] keys;
+    private int[] regularCounts;
+    private int[] spamCounts;
+
+    private int size = 0;
+
+    public LongCountTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /// Create a table with room for expectedKeys keys.
+    public LongCountTable(int expectedKeys) {
+        int capacity = Math.max(expectedKeys, 16);
+        int nSlots = 16;
+        while (capacity > nSlots * LOAD_FACTOR) {
+            nSlots *= 2;
+        }
+
+        slots = new int[nSlots];
+        keys = new long[capacity];
+        regularCounts = new int[capacity];
+        spamCounts = new int[capacity];
+    }
+
+    /// The key of a pair of ints, for example two word ids.
+    public static long pair(int first, int second) {
+        return ((long) first << 32) | (second & 0xffffffffL);
+    }
+
+    // Hash of a key with all bits mixed (finalisation step of MurmurHash3)
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /// Find the id of a key, or -1 if it is not part of the table.
+    public int find(long key) {
+        int mask = slots.length - 1;
+        int entry;
+
+        for (int slot = hash(key) & mask; (entry = slots[slot]) != 0;
+                slot = (slot + 1) & mask) {
+            if (keys[entry - 1] == key) {
+                return entry - 1;
+            }
+        }
+        return -1;
+    }
+
+    /// Count one more occurrence of a key in a regular or spam message
+    /// and return its id. The key is added if it is new.
+    public int increment(long key, boolean spam) {
+        return add(key, spam ? 0 : 1, spam ? 1 : 0);
+    }
+
+    /// Add counts to a key and return its id. The key is added if it is new.
+    public int add(long key, int regularCount, int spamCount) {
+        int mask = slots.length - 1;
+        int slot = hash(key) & mask;
+        int entry;
+
+        while ((entry = slots[slot]) != 0) {
+            if (keys[entry - 1] == key) {
+                regularCounts[entry - 1] += regularCount;
+                spamCounts[entry - 1] += spamCount;
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == keys.length) {
+            int capacity = 2 * keys.length;
+            keys = Arrays.copyOf(keys, capacity);
+            regularCounts = Arrays.copyOf(regularCounts, capacity);
+            spamCounts = Arrays.copyOf(spamCounts, capacity);
+        }
+
+        int id = size++;
+        keys[id] = key;
+        regularCounts[id] = regularCount;
+        spamCounts[id] = spamCount;
+        slots[slot] = id + 1;
+
+        if (size > slots.length * LOAD_FACTOR) {
+            rehash(2 * slots.length);
+        }
+        return id;
+    }
+
+    // Rebuild the open addressing table with more slots
+    private void rehash(int nSlots) {
+        int mask = nSlots - 1;
+        slots = new int[nSlots];
+
+        for (int id = 0; id < size; id++) {
+            int slot = hash(keys[id]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    /// Return a new table with only the keys that occur at least
+    /// minimalCount times (regular and spam together), in the same order.
+    public LongCountTable filter(int minimalCount) {
+        int retained = 0;
+        for (int id = 0; id < size; id++) {
+            if (regularCounts[id] + spamCounts[id] >= minimalCount) {
+                ++retained;
+            }
+        }
+
+        LongCountTable filtered = new LongCountTable(retained);
+        for (int id = 0; id < size; id++) {
+            if (regularCounts[id] + spamCounts[id] >= minimalCount) {
+                filtered.add(keys[id], regularCounts[id], spamCounts[id]);
+            }
+        }
+        return filtered;
+    }
+
+    /// The number of keys in the table, ids are 0 .. size() - 1.
+    public int size() {
+        return size;
+    }
+
+    public long getKey(int id) {
+        return keys[id];
+    }
+
+    public int getRegularCount(int id) {
+        return regularCounts[id];
+    }
+
+    public int getSpamCount(int id) {
+        return spamCounts[id];
+    }
+
+    /// Approximate number of bytes used by the arrays of the table.
+    public long memoryFootprint() {
+        return 4L * slots.length + 8L * keys.length
+               + 4L * (regularCounts.length + spamCounts.length);
+    }
+}
@@ -0,0 +1,298 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/// Timers, counters and a latency histogram of the hot paths of the spam
+/// filter. Metrics are only collected with -Dbayespam.metrics=true: every
+/// measuring site checks ENABLED first, which is a constant, so without it
+/// the JIT removes the measuring code. The counters are LongAdders, which
+/// threads can add to without contending. Nothing reads the clock or adds
+/// to a LongAdder per token: the tokeniser times whole messages (and the
+/// reads of a file chunk by chunk), and the vocabulary update is timed per
+/// line or chunk of tokens.
+///
+/// The stages nest: "file read" and "tokenise" (decoding and splitting,
+/// including the consumer of the tokens) are parts of reading a message,
+/// "vocabulary update" is part of "tokenise" while training, and
+/// "classify" is the whole classification of a message.
+///
+/// The metrics are available through JMX (see MetricsMXBean), every
+/// -Dbayespam.metrics.interval=SECONDS as a text dump on System.err, and
+/// once more when the JVM exits. They start themselves the first time
+/// this class is used, so every entry point that measures also reports.
+public class Metrics implements MetricsMXBean {
+    /// This defines whether metrics are collected.
+    public final static boolean ENABLED = Boolean.getBoolean("bayespam.metrics");
+
+    /// This defines the number of seconds between two dumps, 0 for
+    /// a dump at the end only.
+    public final static int DUMP_INTERVAL = Integer.getInteger("bayespam.metrics.interval", 0);
+
+    /// Total time and number of events of a stage.
+    public static class Timer {
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder events = new LongAdder();
+
+        public void record(long elapsedNanos) {
+            record(elapsedNanos, 1);
+        }
+
+        /// Add the time of a number of events at once.
+        public void record(long elapsedNanos, long nEvents) {
+            nanos.add(elapsedNanos);
+            events.add(nEvents);
+        }
+
+        public long getNanos() {
+            return nanos.sum();
+        }
+
+        public long getEvents() {
+            return events.sum();
+        }
+    }
+
+    /// Histogram of latencies in power of two buckets: bucket b counts
+    /// the latencies of 2^b up to 2^(b + 1) nanoseconds.
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        public void record(long elapsedNanos) {
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, elapsedNanos)));
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (int b = 0; b < buckets.length(); b++) {
+                count += buckets.get(b);
+            }
+            return count;
+        }
+
+        /// Upper bound of the given percentile (0 - 100) in nanoseconds,
+        /// or 0 if nothing has been recorded.
+        public long percentile(double percentile) {
+            long count = getCount();
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+
+            for (int b = 0; b < buckets.length() && count > 0; b++) {
+                seen += buckets.get(b);
+                if (seen >= Math.max(1, rank)) {
+                    return (b >= 62) ? Long.MAX_VALUE : 1L << (b + 1);
+                }
+            }
+            return 0;
+        }
+    }
+
+    public final static Timer FILE_READ = new Timer();
+    public final static Timer TOKENISE = new Timer();
+    public final static Timer VOCABULARY_UPDATE = new Timer();
+    public final static Timer PROBABILITIES = new Timer();
+    public final static Timer CLASSIFY = new Timer();
+
+    public final static LongAdder TOKENS = new LongAdder();
+    public final static LongAdder TOKENS_TOO_SHORT = new LongAdder();
+    public final static LongAdder TOKENS_TOO_LONG = new LongAdder();
+    public final static LongAdder TOKENS_NUMERIC = new LongAdder();
+    public final static LongAdder TOKENS_OUT_OF_VOCABULARY = new LongAdder();
+
+    public final static Histogram CLASSIFY_LATENCY = new Histogram();
+
+    /// The number of characters of tokens that timed() keeps before it
+    /// passes them on.
+    public final static int CHUNK_SIZE = Tokeniser.BUFFER_SIZE;
+
+    private static boolean started = false;
+
+    static {
+        start();
+    }
+
+    private Metrics() {
+    }
+
+    /// Register the MXBean, start the periodic dump and dump once more at
+    /// exit. Does nothing if metrics are not enabled or already started,
+    /// which they are as soon as this class is initialised.
+    public static synchronized void start() {
+        if (!ENABLED || started) {
+            return;
+        }
+        started = true;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(),
+                    new ObjectName("bayespam:type=Metrics"));
+        } catch (JMException jme) {
+            System.err.println("- Warning: could not register the metrics MXBean: "
+                               + jme.getMessage());
+        }
+
+        if (DUMP_INTERVAL > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable task) {
+                            Thread thread = new Thread(task, "metrics-dump");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            dumper.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    System.err.print(dumpMetrics());
+                }
+            }, DUMP_INTERVAL, DUMP_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread("metrics-exit") {
+            public void run() {
+                System.err.print(dumpMetrics());
+            }
+        });
+    }
+
+    /// Wrap a consumer so that the time of its token() calls is recorded
+    /// in timer, as one event per token. The tokens are kept until the end
+    /// of their line, or until CHUNK_SIZE characters are kept, and then
+    /// passed on together, so the clock is read twice per chunk of tokens
+    /// instead of twice per token. Returns consumer itself when metrics are
+    /// not enabled.
+    public static Tokeniser.TokenConsumer timed(final Tokeniser.TokenConsumer consumer,
+            final Timer timer) {
+        if (!ENABLED) {
+            return consumer;
+        }
+
+        return new Tokeniser.TokenConsumer() {
+            private final char[] chars = new char[CHUNK_SIZE];
+            private final int[] ends = new int[CHUNK_SIZE];
+            private int length = 0;
+            private int nTokens = 0;
+
+            public void token(char[] token, int start, int tokenLength) {
+                if (length + tokenLength > chars.length || nTokens == ends.length) {
+                    flush();
+                }
+                /// A token longer than a chunk is passed on by itself.
+                if (tokenLength > chars.length) {
+                    long begin = System.nanoTime();
+                    consumer.token(token, start, tokenLength);
+                    timer.record(System.nanoTime() - begin);
+                    return;
+                }
+                System.arraycopy(token, start, chars, length, tokenLength);
+                length += tokenLength;
+                ends[nTokens++] = length;
+            }
+
+            public void endOfLine() {
+                flush();
+                consumer.endOfLine();
+            }
+
+            // Pass on the kept tokens
+            private void flush() {
+                if (nTokens == 0) {
+                    return;
+                }
+
+                long begin = System.nanoTime();
+                int start = 0;
+                for (int i = 0; i < nTokens; i++) {
+                    consumer.token(chars, start, ends[i] - start);
+                    start = ends[i];
+                }
+                timer.record(System.nanoTime() - begin, nTokens);
+                length = 0;
+                nTokens = 0;
+            }
+        };
+    }
+
+    /// All metrics as text.
+    public static String dumpMetrics() {
+        StringBuilder text = new StringBuilder("- Metrics:\n");
+        appendTimer(text, "file read", FILE_READ, "messages");
+        appendTimer(text, "tokenise", TOKENISE, "messages");
+        appendTimer(text, "vocabulary update", VOCABULARY_UPDATE, "tokens");
+        appendTimer(text, "probabilities", PROBABILITIES, "models");
+        appendTimer(text, "classify", CLASSIFY, "messages");
+        text.append(String.format("  tokens seen %d, too short %d, too long %d,"
+                                  + " numeric %d, out of vocabulary %d\n",
+                TOKENS.sum(), TOKENS_TOO_SHORT.sum(), TOKENS_TOO_LONG.sum(),
+                TOKENS_NUMERIC.sum(), TOKENS_OUT_OF_VOCABULARY.sum()));
+        text.append(String.format("  classify latency p50 < %d us, p90 < %d us,"
+                                  + " p99 < %d us, max < %d us\n",
+                CLASSIFY_LATENCY.percentile(50) / 1000,
+                CLASSIFY_LATENCY.percentile(90) / 1000,
+                CLASSIFY_LATENCY.percentile(99) / 1000,
+                CLASSIFY_LATENCY.percentile(100) / 1000));
+        return text.toString();
+    }
+
+    private static void appendTimer(StringBuilder text, String name, Timer timer,
+            String events) {
+        text.append(String.format("  %-18s %10.1f ms  %10d %s\n", name,
+                                  timer.getNanos() / 1e6, timer.getEvents(), events));
+    }
+
+    public long getFileReadNanos() {
+        return FILE_READ.getNanos();
+    }
+
+    public long getTokeniseNanos() {
+        return TOKENISE.getNanos();
+    }
+
+    public long getVocabularyUpdateNanos() {
+        return VOCABULARY_UPDATE.getNanos();
+    }
+
+    public long getProbabilitiesNanos() {
+        return PROBABILITIES.getNanos();
+    }
+
+    public long getClassifyNanos() {
+        return CLASSIFY.getNanos();
+    }
+
+    public long getMessagesClassified() {
+        return CLASSIFY.getEvents();
+    }
+
+    public long getTokensSeen() {
+        return TOKENS.sum();
+    }
+
+    public long getTokensTooShort() {
+        return TOKENS_TOO_SHORT.sum();
+    }
+
+    public long getTokensTooLong() {
+        return TOKENS_TOO_LONG.sum();
+    }
+
+    public long getTokensNumeric() {
+        return TOKENS_NUMERIC.sum();
+    }
+
+    public long getTokensOutOfVocabulary() {
+        return TOKENS_OUT_OF_VOCABULARY.sum();
+    }
+
+    public long getClassifyLatencyPercentile(double percentile) {
+        return CLASSIFY_LATENCY.percentile(percentile);
+    }
+
+    public String dump() {
+        return dumpMetrics();
+    }
+}
@@ -0,0 +1,32 @@
+/// Management interface of Metrics, registered as "bayespam:type=Metrics"
+/// in the platform MBean server. Times are in nanoseconds.
+public interface MetricsMXBean {
+    long getFileReadNanos();
+
+    long getTokeniseNanos();
+
+    long getVocabularyUpdateNanos();
+
+    long getProbabilitiesNanos();
+
+    long getClassifyNanos();
+
+    long getMessagesClassified();
+
+    long getTokensSeen();
+
+    long getTokensTooShort();
+
+    long getTokensTooLong();
+
+    long getTokensNumeric();
+
+    long getTokensOutOfVocabulary();
+
+    /// Upper bound of the given percentile (0 - 100) of the
+    /// classification latency.
+    long getClassifyLatencyPercentile(double percentile);
+
+    /// All metrics as text, as in the periodic dump.
+    String dump();
+}
@@ -0,0 +1,134 @@
+/// Combines the words of the tokeniser into n-grams of one or more orders
+/// in a single pass. Within a line, every n accepted words form one n-gram
+/// of order n ("first second .. last"), the groups do not overlap and
+/// words that are left over at the end of a line are dropped. For order 2
+/// these are the bigrams of BigramBayespam.
+///
+/// The last words of the line are kept in one buffer, separated by
+/// spaces, so the n-grams of all orders are slices of that buffer. Next
+/// to it every word can keep an int, for example its id, so that an
+/// n-gram can also be passed on as the ints of its words.
+public abstract class NGramConsumer implements Tokeniser.TokenConsumer {
+    private final int[] orders;
+    private final int maxOrder;
+    // Number of words after which every group is complete
+    private final int period;
+
+    private char[] line = new char[64];
+    private final int[] wordStarts;
+    private final int[] wordInts;
+    private int nWords = 0;
+    private int lineLength = 0;
+    private int wordsInLine = 0;
+
+    /// Produce n-grams of the given orders, for example 1, 2, 3.
+    public NGramConsumer(int... orders) {
+        checkOrders(orders);
+
+        int max = 0;
+        int lcm = 1;
+        for (int order : orders) {
+            max = Math.max(max, order);
+            lcm = lcm / gcd(lcm, order) * order;
+        }
+
+        this.orders = orders.clone();
+        this.maxOrder = max;
+        this.period = lcm;
+        this.wordStarts = new int[max];
+        this.wordInts = new int[max];
+    }
+
+    /// Throws an IllegalArgumentException unless the orders are one or
+    /// more different orders of at least 1.
+    static void checkOrders(int[] orders) {
+        if (orders.length == 0) {
+            throw new IllegalArgumentException("no n-gram orders");
+        }
+
+        for (int i = 0; i < orders.length; i++) {
+            if (orders[i] < 1) {
+                throw new IllegalArgumentException("bad n-gram order " + orders[i]);
+            }
+            for (int j = 0; j < i; j++) {
+                if (orders[j] == orders[i]) {
+                    throw new IllegalArgumentException(
+                            "duplicate n-gram order " + orders[i]);
+                }
+            }
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        return (b == 0) ? a : gcd(b, a % b);
+    }
+
+    /// Called for every n-gram. The characters are only
+    /// valid during the call.
+    public abstract void ngram(int order, char[] chars, int start, int length);
+
+    /// The int that stands for a word, for example its id or its hash.
+    /// It is called once for every word, 0 by default.
+    public int word(char[] chars, int start, int length) {
+        return 0;
+    }
+
+    /// Called for every n-gram as well, with the ints of its words in
+    /// words[first] up to words[first + order - 1]. Does nothing by default.
+    public void ngram(int order, int[] words, int first) {
+    }
+
+    public void token(char[] chars, int start, int length) {
+        if (nWords == maxOrder) {
+            dropFirstWord();
+        }
+
+        int offset = (nWords == 0) ? 0 : lineLength + 1;
+        if (offset + length > line.length) {
+            char[] larger = new char[2 * (offset + length)];
+            System.arraycopy(line, 0, larger, 0, lineLength);
+            line = larger;
+        }
+        if (nWords > 0) {
+            line[lineLength] = ' ';
+        }
+        System.arraycopy(chars, start, line, offset, length);
+        wordInts[nWords] = word(chars, start, length);
+        wordStarts[nWords++] = offset;
+        lineLength = offset + length;
+        ++wordsInLine;
+
+        for (int order : orders) {
+            if (wordsInLine % order == 0) {
+                int first = wordStarts[nWords - order];
+                ngram(order, line, first, lineLength - first);
+                ngram(order, wordInts, nWords - order);
+            }
+        }
+
+        /// All groups are complete, none of the words is needed anymore.
+        if (wordsInLine % period == 0) {
+            nWords = 0;
+            lineLength = 0;
+        }
+    }
+
+    // Remove the oldest word from the buffer
+    private void dropFirstWord() {
+        int shift = wordStarts[1];
+
+        System.arraycopy(line, shift, line, 0, lineLength - shift);
+        lineLength -= shift;
+        for (int i = 1; i < nWords; i++) {
+            wordStarts[i - 1] = wordStarts[i] - shift;
+            wordInts[i - 1] = wordInts[i];
+        }
+        --nWords;
+    }
+
+    public void endOfLine() {
+        nWords = 0;
+        lineLength = 0;
+        wordsInLine = 0;
+    }
+}
@@ -0,0 +1,428 @@
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Hashtable;
+
+/// Classifier over n-grams of several orders at once, trained and used in a
+/// single pass over every message:
+///
+///     java NGramModel <train dir> <test dir> [orders, default 1,2,3]
+///
+/// An NGramConsumer cuts every message into the n-grams of all orders, and
+/// the n-grams of all orders are counted in one shared TermTable (the order
+/// of a term is its number of words). Every order is a model of its own: it
+/// is filtered with its own frequency limit and its probabilities are
+/// computed from its own word counts, with the formulas of Bayespam.
+///
+/// A Score collects the evidence of all orders in one pass over a message.
+/// It can decide with one order or with all orders together.
+///
+/// Bayespam and BigramBayespam are models of order 1 and 2: they count
+/// their training messages in their own ways and leave the filtering, the
+/// probabilities and the compiled model to this class.
+public class NGramModel {
+    private final int[] orders;
+    private final int[] minimalCounts;
+    private final double epsilon;
+    private TermTable vocab = new TermTable();
+    private int nMessagesRegular = 0;
+    private int nMessagesSpam = 0;
+
+    // Scoring arrays, filled by compile()
+    private int[] nWordsRegular;
+    private int[] nWordsSpam;
+    private int[] termOrders;
+    private double[] regularProbabilities;
+    private double[] spamProbabilities;
+    private double[] wordProbabilities;
+    private double regularPrioriProbability;
+    private double spamPrioriProbability;
+
+    /// Create a model for the given orders. N-grams of orders[i] that
+    /// occur less than minimalCounts[i] times are filtered out.
+    public NGramModel(int[] orders, int[] minimalCounts) {
+        this(orders, minimalCounts, Bayespam.EPSILON);
+    }
+
+    /// Same as above, with another epsilon than the one of Bayespam for
+    /// the n-grams that were never seen in one of the classes.
+    public NGramModel(int[] orders, int[] minimalCounts, double epsilon) {
+        if (orders.length != minimalCounts.length) {
+            throw new IllegalArgumentException("one minimal count per order");
+        }
+        NGramConsumer.checkOrders(orders);
+        this.orders = orders.clone();
+        this.minimalCounts = minimalCounts.clone();
+        this.epsilon = epsilon;
+    }
+
+    /// The frequency limits of the classifiers: Bayespam.FREQUENCY_LIMIT
+    /// for words and BigramBayespam.FREQUENCY_LIMIT for longer n-grams.
+    public static int[] defaultMinimalCounts(int[] orders) {
+        int[] minimalCounts = new int[orders.length];
+        for (int i = 0; i < orders.length; i++) {
+            minimalCounts[i] = (orders[i] == 1) ? Bayespam.FREQUENCY_LIMIT
+                                                : BigramBayespam.FREQUENCY_LIMIT;
+        }
+        return minimalCounts;
+    }
+
+    /// Count the n-grams of a training message.
+    public void addMessage(File message, boolean spam) {
+        Bayespam.tokenise(message, counter(spam));
+        countMessage(spam);
+    }
+
+    /// Same as addMessage() above, for a message of a packed corpus.
+    public void addMessage(ByteBuffer message, boolean spam) {
+        Bayespam.tokenise(message, counter(spam));
+        countMessage(spam);
+    }
+
+    /// Add the terms that were counted elsewhere, for example by several
+    /// threads, in nMessagesRegular regular and nMessagesSpam spam messages.
+    /// The terms should be n-grams of the orders of the model. A model
+    /// without terms yet takes counts over instead of copying it, so the
+    /// caller must not change counts afterwards.
+    public void addCounts(TermTable counts, int nMessagesRegular, int nMessagesSpam) {
+        if (vocab.size() == 0) {
+            vocab = counts;
+        } else {
+            vocab.merge(counts);
+        }
+        this.nMessagesRegular += nMessagesRegular;
+        this.nMessagesSpam += nMessagesSpam;
+    }
+
+    // Count the n-grams of one message
+    private NGramConsumer counter(final boolean spam) {
+        return new NGramConsumer(orders) {
+            public void ngram(int order, char[] chars, int start, int length) {
+                vocab.increment(chars, start, length, spam);
+            }
+        };
+    }
+
+    private void countMessage(boolean spam) {
+        if (spam) {
+            ++nMessagesSpam;
+        } else {
+            ++nMessagesRegular;
+        }
+    }
+
+    // Index of an order in orders
+    private int orderIndex(int order) {
+        for (int i = 0; i < orders.length; i++) {
+            if (orders[i] == order) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The order of a term: its number of words
+    private static int termOrder(String term) {
+        int order = 1;
+        for (int i = 0; i < term.length(); i++) {
+            if (term.charAt(i) == ' ') {
+                ++order;
+            }
+        }
+        return order;
+    }
+
+    /// Filter every order and calculate the scoring arrays. After this
+    /// no more messages can be added.
+    public void compile() {
+        int maxMinimalCount = 0;
+        for (int minimalCount : minimalCounts) {
+            maxMinimalCount = Math.max(maxMinimalCount, minimalCount);
+        }
+
+        /// Without a frequency limit every counted term is kept as it is.
+        if (maxMinimalCount > 1 && orders.length == 1) {
+            vocab = vocab.filter(maxMinimalCount);
+        } else if (maxMinimalCount > 1) {
+            TermTable filtered = new TermTable(vocab.size());
+            for (int id = 0; id < vocab.size(); id++) {
+                String term = vocab.term(id);
+                int count = vocab.getRegularCount(id) + vocab.getSpamCount(id);
+                if (count >= minimalCounts[orderIndex(termOrder(term))]) {
+                    filtered.add(term.toCharArray(), 0, term.length(),
+                                 vocab.getRegularCount(id), vocab.getSpamCount(id));
+                }
+            }
+            vocab = filtered;
+        }
+        findTermOrders();
+
+        nWordsRegular = new int[orders.length];
+        nWordsSpam = new int[orders.length];
+        for (int id = 0; id < vocab.size(); id++) {
+            nWordsRegular[termOrders[id]] += vocab.getRegularCount(id);
+            nWordsSpam[termOrders[id]] += vocab.getSpamCount(id);
+        }
+
+        int totalMessages = nMessagesRegular + nMessagesSpam;
+        regularPrioriProbability = Math.log(nMessagesRegular / (double) totalMessages);
+        spamPrioriProbability = Math.log(nMessagesSpam / (double) totalMessages);
+
+        calculateProbabilities();
+    }
+
+    /// Keep only the k best terms of a compiled model of one order, ranked
+    /// by criterion (see FeatureSelection). Their probabilities are still
+    /// calculated with the word counts of the whole vocabulary.
+    public void select(FeatureSelection.Criterion criterion, int k) {
+        requireSingleOrder();
+        vocab = FeatureSelection.select(vocab, criterion, k);
+        findTermOrders();
+        calculateProbabilities();
+    }
+
+    // The index in orders of every term of the vocabulary
+    private void findTermOrders() {
+        termOrders = new int[vocab.size()];
+        if (orders.length > 1) {
+            for (int id = 0; id < vocab.size(); id++) {
+                termOrders[id] = orderIndex(termOrder(vocab.term(id)));
+            }
+        }
+    }
+
+    // Fill the scoring arrays with the formulas of Bayespam, every order
+    // with its own word counts and the epsilon of the model
+    private void calculateProbabilities() {
+        int nTerms = vocab.size();
+        regularProbabilities = new double[nTerms];
+        spamProbabilities = new double[nTerms];
+        wordProbabilities = new double[nTerms];
+        for (int id = 0; id < nTerms; id++) {
+            int o = termOrders[id];
+            int amountOfWords = nWordsRegular[o] + nWordsSpam[o];
+            int currentEntryRegular = vocab.getRegularCount(id);
+            int currentEntrySpam = vocab.getSpamCount(id);
+
+            regularProbabilities[id] = Bayespam.logProbability(currentEntryRegular,
+                    nWordsRegular[o], amountOfWords, epsilon);
+            spamProbabilities[id] = Bayespam.logProbability(currentEntrySpam,
+                    nWordsSpam[o], amountOfWords, epsilon);
+            wordProbabilities[id] = (currentEntryRegular + currentEntrySpam)
+                                    / (double) amountOfWords;
+        }
+    }
+
+    private void requireSingleOrder() {
+        if (orders.length != 1) {
+            throw new IllegalStateException("not a model of one order");
+        }
+    }
+
+    /// The compiled model of a model of one order, for the scoring
+    /// methods of Bayespam and BigramBayespam.
+    public CompiledModel compiledModel() {
+        requireSingleOrder();
+        return new CompiledModel(vocab, regularProbabilities, spamProbabilities,
+                                 wordProbabilities, regularPrioriProbability,
+                                 spamPrioriProbability);
+    }
+
+    /// The class conditional log-probabilities by term, as they are
+    /// saved in a SpamModel.
+    public Hashtable<String, CategoricalProbabilities> getProbabilities() {
+        Hashtable<String, CategoricalProbabilities> probabilities =
+                new Hashtable<String, CategoricalProbabilities>();
+        for (int id = 0; id < vocab.size(); id++) {
+            probabilities.put(vocab.term(id), new CategoricalProbabilities(
+                    regularProbabilities[id], spamProbabilities[id]));
+        }
+        return probabilities;
+    }
+
+    /// Running score of one message, per order.
+    public class Score extends NGramConsumer {
+        final double[] wordProbability = new double[orders.length];
+        final double[] regularProbability = new double[orders.length];
+        final double[] spamProbability = new double[orders.length];
+
+        Score() {
+            super(orders);
+        }
+
+        /// N-grams that are not part of the vocabulary are skipped.
+        public void ngram(int order, char[] chars, int start, int length) {
+            int id = vocab.find(chars, start, length);
+
+            if (id >= 0) {
+                int o = termOrders[id];
+                regularProbability[o] += regularProbabilities[id];
+                spamProbability[o] += spamProbabilities[id];
+                wordProbability[o] += wordProbabilities[id];
+            }
+        }
+
+        /// True if the message is regular according to the n-grams of
+        /// orders[o] alone.
+        public boolean isRegular(int o) {
+            double probabilityRegular = (1 / wordProbability[o])
+                                        + regularPrioriProbability
+                                        + regularProbability[o];
+            double probabilitySpam = (1 / wordProbability[o])
+                                     + spamPrioriProbability
+                                     + spamProbability[o];
+
+            return probabilityRegular > probabilitySpam;
+        }
+
+        /// True if the message is regular according to all orders: the
+        /// log-likelihoods of the orders that know at least one n-gram
+        /// of the message are added up. A message without any known
+        /// n-gram is spam, as in the single classifiers.
+        public boolean isRegular() {
+            double probabilityRegular = regularPrioriProbability;
+            double probabilitySpam = spamPrioriProbability;
+            boolean known = false;
+
+            for (int o = 0; o < orders.length; o++) {
+                if (wordProbability[o] > 0) {
+                    probabilityRegular += regularProbability[o];
+                    probabilitySpam += spamProbability[o];
+                    known = true;
+                }
+            }
+            return known && probabilityRegular > probabilitySpam;
+        }
+    }
+
+    /// Score a message for all orders in one pass.
+    public Score score(File message) {
+        Score score = new Score();
+        Bayespam.tokenise(message, score);
+        return score;
+    }
+
+    /// The number of terms of orders[o] in the vocabulary.
+    public int size(int o) {
+        int nTerms = 0;
+        for (int id = 0; id < vocab.size(); id++) {
+            if (termOrders[id] == o) {
+                ++nTerms;
+            }
+        }
+        return nTerms;
+    }
+
+    public int[] getOrders() {
+        return orders.clone();
+    }
+
+    /// The counted terms, after compile() only the ones that are kept.
+    public TermTable getVocabulary() {
+        return vocab;
+    }
+
+    /// The number of regular words of orders[o], counted by compile().
+    public int getWordsRegular(int o) {
+        return nWordsRegular[o];
+    }
+
+    public int getWordsSpam(int o) {
+        return nWordsSpam[o];
+    }
+
+    public int getMessagesRegular() {
+        return nMessagesRegular;
+    }
+
+    public int getMessagesSpam() {
+        return nMessagesSpam;
+    }
+
+    /// The class conditional log-probabilities of the term with the
+    /// given id in the vocabulary, after compile().
+    public double getRegularProbability(int id) {
+        return regularProbabilities[id];
+    }
+
+    public double getSpamProbability(int id) {
+        return spamProbabilities[id];
+    }
+
+    public double getRegularPrioriProbability() {
+        return regularPrioriProbability;
+    }
+
+    public double getSpamPrioriProbability() {
+        return spamPrioriProbability;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("- Usage: java NGramModel <train dir> <test dir>"
+                               + " [orders]\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        int[] orders = { 1, 2, 3 };
+        NGramModel model = null;
+        try {
+            if (args.length > 2) {
+                String[] parts = args[2].split(",");
+                orders = new int[parts.length];
+                for (int i = 0; i < parts.length; i++) {
+                    orders[i] = Integer.parseInt(parts[i].trim());
+                }
+            }
+            model = new NGramModel(orders, defaultMinimalCounts(orders));
+        } catch (IllegalArgumentException iae) {
+            /// Also a NumberFormatException of a bad order.
+            System.out.println("- Error: " + iae.getMessage() + "\n");
+            Runtime.getRuntime().exit(0);
+        }
+
+        File dirLocation = new File(args[0]);
+        if (!dirLocation.isDirectory()) {
+            System.out.println("- Error: cmd line arg not a directory.\n");
+            Runtime.getRuntime().exit(0);
+        }
+        Bayespam.listDirs(dirLocation, true);
+        Bayespam.listDirs(new File(args[1]), false);
+
+        for (File message : Bayespam.listingRegular) {
+            model.addMessage(message, false);
+        }
+        for (File message : Bayespam.listingSpam) {
+            model.addMessage(message, true);
+        }
+        model.compile();
+
+        /// Classified as regular, per order and for all orders together
+        /// (the last column).
+        int[] trueNegatives = new int[orders.length + 1];
+        int[] falsePositives = new int[orders.length + 1];
+        for (File[] listing : new File[][] { Bayespam.testListingRegular,
+                                            Bayespam.testListingSpam }) {
+            int[] counts = (listing == Bayespam.testListingRegular)
+                           ? trueNegatives : falsePositives;
+            for (File message : listing) {
+                Score score = model.score(message);
+                for (int o = 0; o < orders.length; o++) {
+                    counts[o] += score.isRegular(o) ? 1 : 0;
+                }
+                counts[orders.length] += score.isRegular() ? 1 : 0;
+            }
+        }
+
+        int nMessagesRegular = Bayespam.testListingRegular.length;
+        int nMessagesSpam = Bayespam.testListingSpam.length;
+        for (int o = 0; o < orders.length; o++) {
+            int correct = trueNegatives[o] + nMessagesSpam - falsePositives[o];
+            System.out.printf("Order %d: %d terms, accuracy %.0f%%\n", orders[o],
+                    model.size(o), correct * 100 / (double) (nMessagesRegular + nMessagesSpam));
+        }
+        System.out.println("\nOrders " + Arrays.toString(orders) + " combined:\n");
+        Bayespam.printConfusionMatrix(trueNegatives[orders.length],
+                falsePositives[orders.length], nMessagesRegular, nMessagesSpam);
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/// A spam model that is kept outside the Java heap, for vocabularies of
+/// hundreds of millions of bigrams. The terms, their counts and their
+/// log-probabilities are written in the format of SpamModel into direct
+/// ByteBuffers, so the heap only holds a few objects per shard and the
+/// garbage collector has nothing to trace or copy for the model, however
+/// large it is.
+///
+/// A ByteBuffer holds at most 2 GB, so the terms are spread over 2^b shards
+/// by the top b bits of their hash, with b the smallest number of bits that
+/// keeps every shard under MAX_SHARD_SIZE. Every shard is a SpamModel with
+/// its own open addressing index, which is probed with the low bits of the
+/// same hash.
+///
+/// Direct buffers count against -XX:MaxDirectMemorySize, which is the
+/// maximal heap size by default. Run a small heap with a larger limit,
+/// for example -Xmx256m -XX:MaxDirectMemorySize=16g.
+public class OffHeapModel {
+    /// This defines the size a shard should stay under.
+    public final static int MAX_SHARD_SIZE = 1 << 30;
+
+    // The terms are first counted in 2^BUCKET_BITS buckets by their hash,
+    // a shard is made of whole buckets
+    private final static int BUCKET_BITS = 10;
+
+    private final SpamModel[] shards;
+    private final int shardBits;
+    private final double regularPrioriProbability;
+    private final double spamPrioriProbability;
+    private final int amountOfWords;
+
+    private OffHeapModel(SpamModel[] shards, int shardBits,
+            double regularPrioriProbability, double spamPrioriProbability,
+            int amountOfWords) {
+        this.shards = shards;
+        this.shardBits = shardBits;
+        this.regularPrioriProbability = regularPrioriProbability;
+        this.spamPrioriProbability = spamPrioriProbability;
+        this.amountOfWords = amountOfWords;
+    }
+
+    // Part of a hash in 2^bits parts, by its top bits
+    private static int part(int hash, int bits) {
+        return (int) ((hash & 0xffffffffL) >>> (32 - bits));
+    }
+
+    /// Write the terms of a compiled NGramModel of one order off the heap,
+    /// with their counts and the probabilities the model calculated. The
+    /// vocabulary is read twice, once to size the shards and once to fill
+    /// them, so that nothing more per term is kept on the heap in between.
+    public static OffHeapModel build(NGramModel model) {
+        if (model.getOrders().length != 1) {
+            throw new IllegalArgumentException("not a model of one order");
+        }
+        TermTable vocabulary = model.getVocabulary();
+        int nTerms = vocabulary.size();
+        int nWordsRegular = model.getWordsRegular(0);
+        int nWordsSpam = model.getWordsSpam(0);
+        double regularPrioriProbability = model.getRegularPrioriProbability();
+        double spamPrioriProbability = model.getSpamPrioriProbability();
+        int[] bucketTerms = new int[1 << BUCKET_BITS];
+        long[] bucketBytes = new long[1 << BUCKET_BITS];
+
+        for (int id = 0; id < nTerms; id++) {
+            String term = vocabulary.term(id);
+            int bucket = part(SpamModel.hash(term), BUCKET_BITS);
+            ++bucketTerms[bucket];
+            bucketBytes[bucket] += term.getBytes(StandardCharsets.UTF_8).length;
+        }
+
+        /// Use as few shards as possible.
+        int shardBits = 0;
+        long[] shardSizes = shardSizes(bucketTerms, bucketBytes, shardBits);
+        while (max(shardSizes) > MAX_SHARD_SIZE && shardBits < BUCKET_BITS) {
+            shardSizes = shardSizes(bucketTerms, bucketBytes, ++shardBits);
+        }
+        if (max(shardSizes) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The vocabulary does not fit in "
+                                               + (1 << BUCKET_BITS) + " shards.");
+        }
+
+        int nShards = 1 << shardBits;
+        int[] shardTerms = new int[nShards];
+        for (int bucket = 0; bucket < bucketTerms.length; bucket++) {
+            shardTerms[bucket >> (BUCKET_BITS - shardBits)] += bucketTerms[bucket];
+        }
+
+        SpamModel.Writer[] writers = new SpamModel.Writer[nShards];
+        for (int s = 0; s < nShards; s++) {
+            writers[s] = new SpamModel.Writer(
+                    ByteBuffer.allocateDirect((int) shardSizes[s]), shardTerms[s],
+                    regularPrioriProbability, spamPrioriProbability,
+                    nWordsRegular, nWordsSpam);
+        }
+
+        int amountOfWords = nWordsRegular + nWordsSpam;
+        for (int id = 0; id < nTerms; id++) {
+            String term = vocabulary.term(id);
+            writers[part(SpamModel.hash(term), shardBits)].add(term,
+                    model.getRegularProbability(id), model.getSpamProbability(id),
+                    vocabulary.getRegularCount(id), vocabulary.getSpamCount(id));
+        }
+
+        SpamModel[] shards = new SpamModel[nShards];
+        try {
+            for (int s = 0; s < nShards; s++) {
+                shards[s] = writers[s].finish();
+            }
+        } catch (IOException ioe) {
+            /// The header was written by the Writer itself.
+            throw new IllegalStateException(ioe);
+        }
+        return new OffHeapModel(shards, shardBits, regularPrioriProbability,
+                                spamPrioriProbability, amountOfWords);
+    }
+
+    // Bytes of every shard when the buckets are grouped into 2^bits shards
+    private static long[] shardSizes(int[] bucketTerms, long[] bucketBytes, int bits) {
+        int[] terms = new int[1 << bits];
+        long[] bytes = new long[1 << bits];
+        for (int bucket = 0; bucket < bucketTerms.length; bucket++) {
+            terms[bucket >> (BUCKET_BITS - bits)] += bucketTerms[bucket];
+            bytes[bucket >> (BUCKET_BITS - bits)] += bucketBytes[bucket];
+        }
+
+        long[] sizes = new long[1 << bits];
+        for (int s = 0; s < sizes.length; s++) {
+            sizes[s] = SpamModel.sizeOf(terms[s], bytes[s]);
+        }
+        return sizes;
+    }
+
+    private static long max(long[] values) {
+        long max = 0;
+        for (long value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    /// Running score of one message, computed like CompiledModel.Score.
+    public class Score {
+        double wordProbability = 0;
+        double regularProbability = 0;
+        double spamProbability = 0;
+
+        /// Add a term of the message. Terms that are not part of the
+        /// vocabulary are skipped.
+        public void add(char[] chars, int start, int length) {
+            int hash = SpamModel.hash(chars, start, length);
+            SpamModel shard = shards[part(hash, shardBits)];
+            int id = shard.lookup(hash, chars, start, length);
+
+            if (id >= 0) {
+                regularProbability += shard.getRegularProbability(id);
+                spamProbability += shard.getSpamProbability(id);
+                wordProbability += (shard.getRegularCount(id) + shard.getSpamCount(id))
+                                   / (double) amountOfWords;
+            }
+        }
+
+        /// True if the message is regular, false if it is spam.
+        public boolean isRegular() {
+            double probabilityRegular = (1 / wordProbability)
+                                        + regularPrioriProbability
+                                        + regularProbability;
+            double probabilitySpam = (1 / wordProbability)
+                                     + spamPrioriProbability
+                                     + spamProbability;
+
+            return probabilityRegular > probabilitySpam;
+        }
+
+        /// The log-probability of regular minus that of spam, negative
+        /// infinity if no term of the message is known.
+        public double margin() {
+            if (wordProbability == 0) {
+                return Double.NEGATIVE_INFINITY;
+            }
+            return (regularPrioriProbability + regularProbability)
+                   - (spamPrioriProbability + spamProbability);
+        }
+    }
+
+    public Score newScore() {
+        return new Score();
+    }
+
+    /// The number of terms in all shards.
+    public int size() {
+        int nTerms = 0;
+        for (SpamModel shard : shards) {
+            nTerms += shard.size();
+        }
+        return nTerms;
+    }
+
+    public int getShards() {
+        return shards.length;
+    }
+
+    /// Number of bytes of the direct buffers, outside the heap.
+    public long memoryFootprint() {
+        long bytes = 0;
+        for (SpamModel shard : shards) {
+            bytes += shard.memoryFootprint();
+        }
+        return bytes;
+    }
+}
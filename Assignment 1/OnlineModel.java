@@ -0,0 +1,230 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/// Spam model that learns one message at a time. Adding or removing a
+/// labelled message only changes the counts of its words, the total word
+/// counts and the message counts; the log-probabilities are calculated
+/// from the counts when a message is scored, with Bayespam.logProbability()
+/// as in Bayespam.calculateProbabilities(). Built from the same messages, it
+/// classifies the same as a model trained in one batch.
+///
+/// Updates and classification can run in several threads at once. The
+/// updates take a write lock and the scoring takes a read lock, so a
+/// classifier never sees a half applied update and classifiers do not wait
+/// for each other. Messages are tokenised before the lock is taken, so
+/// reading a message never holds up an update.
+public class OnlineModel {
+    private final TermTable vocabulary = new TermTable();
+    private int nMessagesRegular = 0;
+    private int nMessagesSpam = 0;
+    private int nWordsRegular = 0;
+    private int nWordsSpam = 0;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /// Every thread gets its own tokeniser, as it keeps its buffers.
+    private static ThreadLocal<Tokeniser> tokeniser = new ThreadLocal<Tokeniser>() {
+        protected Tokeniser initialValue() {
+            return new Tokeniser(Bayespam.MINIMAL_WORD_SIZE);
+        }
+    };
+
+    /// And its own buffer for the words of a message to classify.
+    private static ThreadLocal<Words> wordBuffer = new ThreadLocal<Words>() {
+        protected Words initialValue() {
+            return new Words();
+        }
+    };
+
+    /// The words of one message in the order of the message, with their
+    /// characters one after the other in a single buffer.
+    static class Words implements Tokeniser.TokenConsumer {
+        private char[] chars = new char[1024];
+        private int[] ends = new int[128];
+        private int nWords = 0;
+
+        void clear() {
+            nWords = 0;
+        }
+
+        public void token(char[] token, int start, int length) {
+            int offset = (nWords == 0) ? 0 : ends[nWords - 1];
+            if (offset + length > chars.length) {
+                chars = Arrays.copyOf(chars, 2 * (offset + length));
+            }
+            if (nWords == ends.length) {
+                ends = Arrays.copyOf(ends, 2 * nWords);
+            }
+            System.arraycopy(token, start, chars, offset, length);
+            ends[nWords++] = offset + length;
+        }
+
+        public void endOfLine() {
+        }
+
+        /// Pass the words on in the order they were read.
+        void replay(Tokeniser.TokenConsumer consumer) {
+            int start = 0;
+            for (int i = 0; i < nWords; i++) {
+                consumer.token(chars, start, ends[i] - start);
+                start = ends[i];
+            }
+        }
+    }
+
+    /// Count the words of a message in a table of its own.
+    static TermTable countWords(File message, final boolean spam) {
+        final TermTable words = new TermTable(256);
+
+        tokeniser.get().tokenise(message, new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                words.increment(chars, start, length, spam);
+            }
+
+            public void endOfLine() {
+            }
+        });
+        return words;
+    }
+
+    /// Learn a labelled message.
+    public void addMessage(File message, boolean spam) {
+        TermTable words = countWords(message, spam);
+        int nWords = totalWords(words);
+
+        lock.writeLock().lock();
+        try {
+            vocabulary.merge(words);
+            if (spam) {
+                ++nMessagesSpam;
+                nWordsSpam += nWords;
+            } else {
+                ++nMessagesRegular;
+                nWordsRegular += nWords;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /// Forget a labelled message that was added before, for example when
+    /// a user corrects its label. Throws IllegalArgumentException, and
+    /// changes nothing, if the message was not learned with this label.
+    public void removeMessage(File message, boolean spam) {
+        TermTable words = countWords(message, spam);
+        int nWords = totalWords(words);
+
+        lock.writeLock().lock();
+        try {
+            if ((spam ? nMessagesSpam : nMessagesRegular) == 0
+                    || !vocabulary.subtract(words)) {
+                throw new IllegalArgumentException("Message " + message
+                        + " was not learned as " + (spam ? "spam" : "regular"));
+            }
+            if (spam) {
+                --nMessagesSpam;
+                nWordsSpam -= nWords;
+            } else {
+                --nMessagesRegular;
+                nWordsRegular -= nWords;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Total number of words counted in a table
+    private static int totalWords(TermTable words) {
+        int nWords = 0;
+        for (int id = 0; id < words.size(); id++) {
+            nWords += words.getRegularCount(id) + words.getSpamCount(id);
+        }
+        return nWords;
+    }
+
+    /// Returns true if the message is regular, false if it is spam.
+    /// The words are collected before the read lock is taken and scored
+    /// under it in the order of the message, as in Bayespam.
+    public boolean classifyMessage(File message) {
+        Words messageWords = wordBuffer.get();
+        messageWords.clear();
+        tokeniser.get().tokenise(message, messageWords);
+
+        lock.readLock().lock();
+        try {
+            MessageScore score = new MessageScore();
+            messageWords.replay(score);
+
+            return score.isRegular();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /// Calculates the log-probabilities of the words of a message from
+    /// the current counts. Only used while the read lock is held.
+    private class MessageScore implements Tokeniser.TokenConsumer {
+        private final int amountOfWords = nWordsRegular + nWordsSpam;
+        double wordProbability = 0;
+        double regularProbability = 0;
+        double spamProbability = 0;
+
+        public void token(char[] chars, int start, int length) {
+            int id = vocabulary.find(chars, start, length);
+            if (id < 0) {
+                return;
+            }
+
+            int currentEntryRegular = vocabulary.getRegularCount(id);
+            int currentEntrySpam = vocabulary.getSpamCount(id);
+
+            /// Skip over words of messages that were all removed.
+            if (currentEntryRegular + currentEntrySpam == 0) {
+                return;
+            }
+
+            regularProbability += Bayespam.logProbability(currentEntryRegular,
+                    nWordsRegular, amountOfWords, Bayespam.EPSILON);
+            spamProbability += Bayespam.logProbability(currentEntrySpam,
+                    nWordsSpam, amountOfWords, Bayespam.EPSILON);
+
+            wordProbability += (currentEntryRegular + currentEntrySpam)
+                               / (double) amountOfWords;
+        }
+
+        public void endOfLine() {
+        }
+
+        boolean isRegular() {
+            int totalMessages = nMessagesRegular + nMessagesSpam;
+            double probabilityRegular = (1 / wordProbability)
+                    + Math.log(nMessagesRegular / (double) totalMessages)
+                    + regularProbability;
+            double probabilitySpam = (1 / wordProbability)
+                    + Math.log(nMessagesSpam / (double) totalMessages)
+                    + spamProbability;
+
+            return probabilityRegular > probabilitySpam;
+        }
+    }
+
+    public int getMessagesRegular() {
+        lock.readLock().lock();
+        try {
+            return nMessagesRegular;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getMessagesSpam() {
+        lock.readLock().lock();
+        try {
+            return nMessagesSpam;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/// Adds up the values of a batch of term ids from the arrays of a compiled
+/// model: the gather-and-sum at the heart of classification. The scalar
+/// kernel adds the values one id at a time. The vector kernel in vector/
+/// (VectorScoringKernel) gathers and adds several ids at once with the
+/// incubating Vector API, when it is built and the module is present:
+///
+///     mvn -Pvector compile
+///     java --add-modules jdk.incubator.vector -cp target/classes Bayespam ...
+///
+/// The vector kernel adds the values in a different order, so the sums
+/// can differ from the scalar ones in the last bits.
+public interface ScoringKernel {
+    /// Add regular[id], spam[id] and word[id] of ids[0 .. count) to
+    /// sums[0], sums[1] and sums[2].
+    void add(double[] regular, double[] spam, double[] word,
+             int[] ids, int count, double[] sums);
+
+    /// Short name of the kernel, "scalar" or "vector".
+    String name();
+
+    /// Adds the values one id at a time, in order, so the sums are the
+    /// same as those of CompiledModel.Score.add().
+    ScoringKernel SCALAR = new ScoringKernel() {
+        public void add(double[] regular, double[] spam, double[] word,
+                int[] ids, int count, double[] sums) {
+            double regularSum = sums[0];
+            double spamSum = sums[1];
+            double wordSum = sums[2];
+            for (int i = 0; i < count; i++) {
+                int id = ids[i];
+                regularSum += regular[id];
+                spamSum += spam[id];
+                wordSum += word[id];
+            }
+            sums[0] = regularSum;
+            sums[1] = spamSum;
+            sums[2] = wordSum;
+        }
+
+        public String name() {
+            return "scalar";
+        }
+    };
+
+    /// The vector kernel if it can be used in this JVM, the scalar one
+    /// if it is not compiled or jdk.incubator.vector is not loaded.
+    static ScoringKernel load() {
+        try {
+            return (ScoringKernel) Class.forName("VectorScoringKernel")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException roe) {
+            return SCALAR;
+        } catch (LinkageError le) {
+            /// NoClassDefFoundError when the module is not loaded.
+            return SCALAR;
+        }
+    }
+}
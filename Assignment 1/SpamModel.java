@@ -0,0 +1,379 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/// A trained spam model in a compact binary format. The model is written
+/// once after training and loaded with a read-only memory mapping, so a
+/// classifier does not need to train again and several processes on the
+/// same machine share the same pages of the file.
+///
+/// Layout of the file (big endian):
+///
+///     header     magic, version, number of terms, index capacity,
+///                a priori log-probabilities (regular, spam),
+///                total word counts (regular, spam)
+///     index      int[capacity], open addressing table of term id + 1
+///                (0 marks an empty slot)
+///     regular    double[terms], log-probabilities for regular messages
+///     spam       double[terms], log-probabilities for spam messages
+///     counts     int[terms] regular counts, int[terms] spam counts
+///     offsets    int[terms + 1], start of every term in the term bytes
+///     terms      UTF-8 bytes of all terms
+public class SpamModel {
+    /// This defines the magic number ("BSPM") and version of the format.
+    public final static int MAGIC = 0x4253504d;
+    public final static int VERSION = 1;
+
+    private final static int HEADER_SIZE = 48;
+
+    private final ByteBuffer buffer;
+    private final int nTerms;
+    private final int indexCapacity;
+    private final double regularPrioriProbability;
+    private final double spamPrioriProbability;
+    private final int nWordsRegular;
+    private final int nWordsSpam;
+
+    // Start of every section in the buffer
+    private final int indexStart;
+    private final int offsetsStart;
+    private final int regularStart;
+    private final int spamStart;
+    private final int countsStart;
+    private final int termsStart;
+
+    /// Wrap a buffer that contains a model in the binary format.
+    public SpamModel(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a spam model file.");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported spam model version "
+                                  + buffer.getInt(4) + ".");
+        }
+
+        nTerms = buffer.getInt(8);
+        indexCapacity = buffer.getInt(12);
+        regularPrioriProbability = buffer.getDouble(16);
+        spamPrioriProbability = buffer.getDouble(24);
+        nWordsRegular = buffer.getInt(32);
+        nWordsSpam = buffer.getInt(36);
+
+        indexStart = HEADER_SIZE;
+        regularStart = indexStart + 4 * indexCapacity;
+        spamStart = regularStart + 8 * nTerms;
+        countsStart = spamStart + 8 * nTerms;
+        offsetsStart = countsStart + 8 * nTerms;
+        termsStart = offsetsStart + 4 * (nTerms + 1);
+    }
+
+    /// Load a model through a read-only memory mapping of the file.
+    public static SpamModel load(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            return new SpamModel(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            /// The mapping stays valid after the file is closed.
+            in.close();
+        }
+    }
+
+    /// Write the trained vocabulary with its probabilities to a file.
+    public static void save(File file,
+            TermTable vocabulary,
+            Map<String, CategoricalProbabilities> probabilities,
+            double regularPrioriProbability,
+            double spamPrioriProbability,
+            int nWordsRegular,
+            int nWordsSpam) throws IOException {
+        int nTerms = probabilities.size();
+        String[] terms = probabilities.keySet().toArray(new String[nTerms]);
+        int[] regularCounts = new int[nTerms];
+        int[] spamCounts = new int[nTerms];
+        byte[][] termBytes = new byte[nTerms][];
+
+        for (int id = 0; id < nTerms; id++) {
+            int termId = vocabulary.find(terms[id]);
+            if (termId >= 0) {
+                regularCounts[id] = vocabulary.getRegularCount(termId);
+                spamCounts[id] = vocabulary.getSpamCount(termId);
+            }
+            termBytes[id] = terms[id].getBytes(StandardCharsets.UTF_8);
+        }
+
+        int indexCapacity = indexCapacity(nTerms);
+        int[] index = new int[indexCapacity];
+        for (int id = 0; id < nTerms; id++) {
+            int slot = hash(terms[id]) & (indexCapacity - 1);
+            while (index[slot] != 0) {
+                slot = (slot + 1) & (indexCapacity - 1);
+            }
+            index[slot] = id + 1;
+        }
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nTerms);
+            out.writeInt(indexCapacity);
+            out.writeDouble(regularPrioriProbability);
+            out.writeDouble(spamPrioriProbability);
+            out.writeInt(nWordsRegular);
+            out.writeInt(nWordsSpam);
+            out.writeLong(0);
+
+            for (int slot : index) {
+                out.writeInt(slot);
+            }
+            for (int id = 0; id < nTerms; id++) {
+                out.writeDouble(probabilities.get(terms[id]).getRegularProbability());
+            }
+            for (int id = 0; id < nTerms; id++) {
+                out.writeDouble(probabilities.get(terms[id]).getSpamProbability());
+            }
+            for (int id = 0; id < nTerms; id++) {
+                out.writeInt(regularCounts[id]);
+            }
+            for (int id = 0; id < nTerms; id++) {
+                out.writeInt(spamCounts[id]);
+            }
+
+            int offset = 0;
+            for (int id = 0; id < nTerms; id++) {
+                out.writeInt(offset);
+                offset += termBytes[id].length;
+            }
+            out.writeInt(offset);
+            for (int id = 0; id < nTerms; id++) {
+                out.write(termBytes[id]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /// Capacity of the open addressing index of a model of nTerms terms,
+    /// filled for at most half.
+    static int indexCapacity(int nTerms) {
+        return Integer.highestOneBit(Math.max(2 * nTerms, 1)) * 2;
+    }
+
+    /// Number of bytes of a model of nTerms terms with termBytes bytes
+    /// of UTF-8 text.
+    static long sizeOf(int nTerms, long termBytes) {
+        return HEADER_SIZE + 4L * indexCapacity(nTerms) + 28L * nTerms + 4
+               + termBytes;
+    }
+
+    /// Writes a model straight into a buffer of sizeOf() bytes, one term
+    /// at a time, so that a model can be built in memory (for example in a
+    /// direct buffer, see OffHeapModel) without collecting its terms and
+    /// probabilities on the heap first. The buffer must be zeroed, as new
+    /// buffers are.
+    static class Writer {
+        private final ByteBuffer buffer;
+        private final int nTerms;
+        private final int indexCapacity;
+        private final int regularStart;
+        private final int spamStart;
+        private final int countsStart;
+        private final int offsetsStart;
+        private final int termsStart;
+        // Cursor for the term bytes
+        private final ByteBuffer termBytes;
+        private int nAdded = 0;
+        private int termOffset = 0;
+
+        Writer(ByteBuffer buffer, int nTerms, double regularPrioriProbability,
+                double spamPrioriProbability, int nWordsRegular, int nWordsSpam) {
+            this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+            this.nTerms = nTerms;
+            this.indexCapacity = indexCapacity(nTerms);
+
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, nTerms);
+            buffer.putInt(12, indexCapacity);
+            buffer.putDouble(16, regularPrioriProbability);
+            buffer.putDouble(24, spamPrioriProbability);
+            buffer.putInt(32, nWordsRegular);
+            buffer.putInt(36, nWordsSpam);
+
+            regularStart = HEADER_SIZE + 4 * indexCapacity;
+            spamStart = regularStart + 8 * nTerms;
+            countsStart = spamStart + 8 * nTerms;
+            offsetsStart = countsStart + 8 * nTerms;
+            termsStart = offsetsStart + 4 * (nTerms + 1);
+            termBytes = buffer.duplicate();
+        }
+
+        /// Add the next term, it gets the next id.
+        void add(String term, double regularProbability, double spamProbability,
+                int regularCount, int spamCount) {
+            int id = nAdded++;
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+
+            int slot = hash(term) & (indexCapacity - 1);
+            while (buffer.getInt(HEADER_SIZE + 4 * slot) != 0) {
+                slot = (slot + 1) & (indexCapacity - 1);
+            }
+            buffer.putInt(HEADER_SIZE + 4 * slot, id + 1);
+
+            buffer.putDouble(regularStart + 8 * id, regularProbability);
+            buffer.putDouble(spamStart + 8 * id, spamProbability);
+            buffer.putInt(countsStart + 4 * id, regularCount);
+            buffer.putInt(countsStart + 4 * (nTerms + id), spamCount);
+            buffer.putInt(offsetsStart + 4 * id, termOffset);
+            termBytes.position(termsStart + termOffset);
+            termBytes.put(bytes);
+            termOffset += bytes.length;
+        }
+
+        /// The model, once all nTerms terms have been added.
+        SpamModel finish() throws IOException {
+            if (nAdded != nTerms) {
+                throw new IllegalStateException(nAdded + " of " + nTerms
+                                                + " terms added");
+            }
+            buffer.putInt(offsetsStart + 4 * nTerms, termOffset);
+            return new SpamModel(buffer);
+        }
+    }
+
+    /// Hash of a term, the same as String.hashCode() with the
+    /// bits spread for the power of two index.
+    static int hash(CharSequence term) {
+        int h = term.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    static int hash(char[] chars, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /// Find the id of a term, or -1 if it is not part of the vocabulary.
+    public int lookup(String term) {
+        return lookup(term.toCharArray(), 0, term.length());
+    }
+
+    /// Find the id of the term in chars[start..start + length).
+    public int lookup(char[] chars, int start, int length) {
+        return lookup(hash(chars, start, length), chars, start, length);
+    }
+
+    /// Same as lookup() above, with the hash of the term already known.
+    int lookup(int hash, char[] chars, int start, int length) {
+        int slot = hash & (indexCapacity - 1);
+        int entry;
+        while ((entry = buffer.getInt(indexStart + 4 * slot)) != 0) {
+            if (termEquals(entry - 1, chars, start, length)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & (indexCapacity - 1);
+        }
+        return -1;
+    }
+
+    // Compare the UTF-8 bytes of a stored term with the characters of term
+    private boolean termEquals(int id, char[] chars, int start, int length) {
+        int position = termsStart + buffer.getInt(offsetsStart + 4 * id);
+        int end = termsStart + buffer.getInt(offsetsStart + 4 * (id + 1));
+        int i = 0;
+
+        while (position < end) {
+            int b = buffer.get(position++);
+            int codePoint;
+            if (b >= 0) {
+                codePoint = b;
+            } else if ((b & 0xe0) == 0xc0) {
+                codePoint = ((b & 0x1f) << 6) | (buffer.get(position++) & 0x3f);
+            } else if ((b & 0xf0) == 0xe0) {
+                codePoint = ((b & 0x0f) << 12)
+                            | ((buffer.get(position++) & 0x3f) << 6)
+                            | (buffer.get(position++) & 0x3f);
+            } else {
+                codePoint = ((b & 0x07) << 18)
+                            | ((buffer.get(position++) & 0x3f) << 12)
+                            | ((buffer.get(position++) & 0x3f) << 6)
+                            | (buffer.get(position++) & 0x3f);
+            }
+
+            if (Character.isBmpCodePoint(codePoint)) {
+                if (i >= length || chars[start + i++] != codePoint) {
+                    return false;
+                }
+            } else {
+                if (i + 1 >= length
+                        || chars[start + i++] != Character.highSurrogate(codePoint)
+                        || chars[start + i++] != Character.lowSurrogate(codePoint)) {
+                    return false;
+                }
+            }
+        }
+        return i == length;
+    }
+
+    /// The term with the given id.
+    public String term(int id) {
+        int start = buffer.getInt(offsetsStart + 4 * id);
+        int end = buffer.getInt(offsetsStart + 4 * (id + 1));
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(termsStart + start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return nTerms;
+    }
+
+    /// Number of bytes of the model.
+    public long memoryFootprint() {
+        return buffer.capacity();
+    }
+
+    public double getRegularProbability(int id) {
+        return buffer.getDouble(regularStart + 8 * id);
+    }
+
+    public double getSpamProbability(int id) {
+        return buffer.getDouble(spamStart + 8 * id);
+    }
+
+    public int getRegularCount(int id) {
+        return buffer.getInt(countsStart + 4 * id);
+    }
+
+    public int getSpamCount(int id) {
+        return buffer.getInt(countsStart + 4 * (nTerms + id));
+    }
+
+    public double getRegularPrioriProbability() {
+        return regularPrioriProbability;
+    }
+
+    public double getSpamPrioriProbability() {
+        return spamPrioriProbability;
+    }
+
+    public int getWordsRegular() {
+        return nWordsRegular;
+    }
+
+    public int getWordsSpam() {
+        return nWordsSpam;
+    }
+}
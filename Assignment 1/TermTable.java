@@ -0,0 +1,367 @@
+import java.util.Arrays;
+
+/// Vocabulary with a regular and a spam counter per term. It replaces
+/// Hashtable<String, MultipleCounter>: every term gets an int id, the
+/// characters of all terms are stored UTF-8 encoded in one byte array and
+/// the counters are kept in parallel int arrays indexed by that id. The ids
+/// are found with an open addressing (linear probing) table, so adding a
+/// word is a single probe sequence without creating a String or a counter
+/// object.
+///
+/// Surrogate characters are encoded one by one (as three bytes each),
+/// so every char sequence can be stored and read back unchanged.
+///
+/// The table is not synchronized, it is meant to be filled by one thread.
+/// Once it is filled, find() can be called from several threads.
+public class TermTable {
+    /// This defines the initial number of terms and the maximal load
+    /// of the open addressing table.
+    public final static int DEFAULT_CAPACITY = 1024;
+    public final static double LOAD_FACTOR = 0.6;
+
+    // Open addressing table of term id + 1 (0 marks an empty slot)
+    private int[] slots;
+
+    // Term data, indexed by term id
+    private int[] hashes;
+    private int[] termOffsets;
+    private int[] regularCounts;
+    private int[] spamCounts;
+    private byte[] termBytes;
+
+    private int size = 0;
+    private int bytesUsed = 0;
+
+    // Encoded term of the current lookup
+    private byte[] scratch = new byte[64];
+
+    public TermTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /// Create a table with room for expectedTerms terms.
+    public TermTable(int expectedTerms) {
+        int capacity = Math.max(expectedTerms, 16);
+
+        slots = new int[slotsFor(capacity)];
+        hashes = new int[capacity];
+        termOffsets = new int[capacity + 1];
+        regularCounts = new int[capacity];
+        spamCounts = new int[capacity];
+        termBytes = new byte[8 * capacity];
+    }
+
+    // Smallest power of two that keeps terms entries under the load factor
+    private static int slotsFor(int terms) {
+        int nSlots = 16;
+        while (terms > nSlots * LOAD_FACTOR) {
+            nSlots *= 2;
+        }
+        return nSlots;
+    }
+
+    /// Encode chars[start..start + length) into the scratch buffer
+    /// and return the number of bytes.
+    private int encode(char[] chars, int start, int length) {
+        if (3 * length > scratch.length) {
+            scratch = new byte[3 * length];
+        }
+
+        int n = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                scratch[n++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[n++] = (byte) (0xc0 | (c >> 6));
+                scratch[n++] = (byte) (0x80 | (c & 0x3f));
+            } else {
+                scratch[n++] = (byte) (0xe0 | (c >> 12));
+                scratch[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                scratch[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return n;
+    }
+
+    /// Hash of an encoded term with the bits spread for
+    /// the power of two table.
+    static int hash(byte[] bytes, int start, int length) {
+        int h = 0;
+        for (int i = start; i < start + length; i++) {
+            h = 31 * h + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /// Find the id of the term in chars[start..start + length),
+    /// or -1 if it is not part of the vocabulary. The term is encoded
+    /// on the fly, so find() only reads the table and can be used by
+    /// several threads at once when no terms are added anymore.
+    public int find(char[] chars, int start, int length) {
+        int h = 0;
+        int n = 0;
+
+        for (int i = start; i < start + length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                h = 31 * h + (byte) c;
+                n += 1;
+            } else if (c < 0x800) {
+                h = 31 * h + (byte) (0xc0 | (c >> 6));
+                h = 31 * h + (byte) (0x80 | (c & 0x3f));
+                n += 2;
+            } else {
+                h = 31 * h + (byte) (0xe0 | (c >> 12));
+                h = 31 * h + (byte) (0x80 | ((c >> 6) & 0x3f));
+                h = 31 * h + (byte) (0x80 | (c & 0x3f));
+                n += 3;
+            }
+        }
+        h ^= h >>> 16;
+
+        int mask = slots.length - 1;
+        int entry;
+        for (int slot = h & mask; (entry = slots[slot]) != 0;
+                slot = (slot + 1) & mask) {
+            if (hashes[entry - 1] == h && termSize(entry - 1) == n
+                    && termEquals(entry - 1, chars, start, length)) {
+                return entry - 1;
+            }
+        }
+        return -1;
+    }
+
+    // Compare a stored term with characters that have the same encoded size
+    private boolean termEquals(int id, char[] chars, int start, int length) {
+        int p = termOffsets[id];
+
+        for (int i = start; i < start + length; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                if (termBytes[p++] != (byte) c) {
+                    return false;
+                }
+            } else if (c < 0x800) {
+                if (termBytes[p++] != (byte) (0xc0 | (c >> 6))
+                        || termBytes[p++] != (byte) (0x80 | (c & 0x3f))) {
+                    return false;
+                }
+            } else {
+                if (termBytes[p++] != (byte) (0xe0 | (c >> 12))
+                        || termBytes[p++] != (byte) (0x80 | ((c >> 6) & 0x3f))
+                        || termBytes[p++] != (byte) (0x80 | (c & 0x3f))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public int find(String term) {
+        return find(term.toCharArray(), 0, term.length());
+    }
+
+    /// Count one more occurrence of a term in a regular or spam message
+    /// and return its id. The term is added if it is new.
+    public int increment(char[] chars, int start, int length, boolean spam) {
+        return add(chars, start, length, spam ? 0 : 1, spam ? 1 : 0);
+    }
+
+    /// Add counts to a term and return its id. The term is added if it is new.
+    public int add(char[] chars, int start, int length,
+            int regularCount, int spamCount) {
+        int n = encode(chars, start, length);
+        return addEncoded(scratch, 0, n, regularCount, spamCount);
+    }
+
+    // Add counts to an encoded term
+    private int addEncoded(byte[] bytes, int start, int length,
+            int regularCount, int spamCount) {
+        int h = hash(bytes, start, length);
+        int mask = slots.length - 1;
+        int slot = h & mask;
+        int entry;
+
+        while ((entry = slots[slot]) != 0) {
+            if (hashes[entry - 1] == h && termEquals(entry - 1, bytes, start, length)) {
+                regularCounts[entry - 1] += regularCount;
+                spamCounts[entry - 1] += spamCount;
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int id = newTerm(h, bytes, start, length);
+        regularCounts[id] = regularCount;
+        spamCounts[id] = spamCount;
+        slots[slot] = id + 1;
+
+        if (size > slots.length * LOAD_FACTOR) {
+            rehash(2 * slots.length);
+        }
+        return id;
+    }
+
+    /// Add all counts of another table to this one.
+    public void merge(TermTable other) {
+        for (int id = 0; id < other.size; id++) {
+            addEncoded(other.termBytes, other.termOffsets[id], other.termSize(id),
+                       other.regularCounts[id], other.spamCounts[id]);
+        }
+    }
+
+    /// Take the counts of another table off this one. Returns false, and
+    /// changes nothing, if a term of other is counted more often there
+    /// than here. Terms whose counts drop to zero stay in the table.
+    public boolean subtract(TermTable other) {
+        int[] ids = new int[other.size];
+
+        for (int id = 0; id < other.size; id++) {
+            ids[id] = findEncoded(other.termBytes, other.termOffsets[id],
+                                  other.termSize(id));
+            if (ids[id] < 0
+                    || regularCounts[ids[id]] < other.regularCounts[id]
+                    || spamCounts[ids[id]] < other.spamCounts[id]) {
+                return false;
+            }
+        }
+        for (int id = 0; id < other.size; id++) {
+            regularCounts[ids[id]] -= other.regularCounts[id];
+            spamCounts[ids[id]] -= other.spamCounts[id];
+        }
+        return true;
+    }
+
+    // Find the id of an encoded term
+    private int findEncoded(byte[] bytes, int start, int length) {
+        int h = hash(bytes, start, length);
+        int mask = slots.length - 1;
+        int entry;
+
+        for (int slot = h & mask; (entry = slots[slot]) != 0;
+                slot = (slot + 1) & mask) {
+            if (hashes[entry - 1] == h && termEquals(entry - 1, bytes, start, length)) {
+                return entry - 1;
+            }
+        }
+        return -1;
+    }
+
+    /// Return a new table with only the terms that occur at least
+    /// minimalCount times (regular and spam together).
+    public TermTable filter(int minimalCount) {
+        int retained = 0;
+        for (int id = 0; id < size; id++) {
+            if (regularCounts[id] + spamCounts[id] >= minimalCount) {
+                ++retained;
+            }
+        }
+
+        TermTable filtered = new TermTable(retained);
+        for (int id = 0; id < size; id++) {
+            if (regularCounts[id] + spamCounts[id] >= minimalCount) {
+                filtered.addEncoded(termBytes, termOffsets[id], termSize(id),
+                                    regularCounts[id], spamCounts[id]);
+            }
+        }
+        return filtered;
+    }
+
+    // Store the bytes of a new term and return its id
+    private int newTerm(int h, byte[] bytes, int start, int length) {
+        if (size == hashes.length) {
+            int capacity = 2 * hashes.length;
+            hashes = Arrays.copyOf(hashes, capacity);
+            termOffsets = Arrays.copyOf(termOffsets, capacity + 1);
+            regularCounts = Arrays.copyOf(regularCounts, capacity);
+            spamCounts = Arrays.copyOf(spamCounts, capacity);
+        }
+        if (bytesUsed + length > termBytes.length) {
+            termBytes = Arrays.copyOf(termBytes,
+                    Math.max(2 * termBytes.length, bytesUsed + length));
+        }
+
+        System.arraycopy(bytes, start, termBytes, bytesUsed, length);
+        bytesUsed += length;
+
+        int id = size++;
+        hashes[id] = h;
+        termOffsets[id + 1] = bytesUsed;
+        return id;
+    }
+
+    // Rebuild the open addressing table with more slots
+    private void rehash(int nSlots) {
+        int mask = nSlots - 1;
+        slots = new int[nSlots];
+
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    private boolean termEquals(int id, byte[] bytes, int start, int length) {
+        int offset = termOffsets[id];
+
+        if (termOffsets[id + 1] - offset != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (termBytes[offset + i] != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Number of encoded bytes of a term
+    private int termSize(int id) {
+        return termOffsets[id + 1] - termOffsets[id];
+    }
+
+    /// The number of terms in the table, ids are 0 .. size() - 1.
+    public int size() {
+        return size;
+    }
+
+    /// The term with the given id.
+    public String term(int id) {
+        char[] chars = new char[termSize(id)];
+        int length = 0;
+
+        for (int i = termOffsets[id]; i < termOffsets[id + 1]; i++) {
+            int b = termBytes[i];
+            if (b >= 0) {
+                chars[length++] = (char) b;
+            } else if ((b & 0xe0) == 0xc0) {
+                chars[length++] = (char) (((b & 0x1f) << 6)
+                                          | (termBytes[++i] & 0x3f));
+            } else {
+                chars[length++] = (char) (((b & 0x0f) << 12)
+                                          | ((termBytes[++i] & 0x3f) << 6)
+                                          | (termBytes[++i] & 0x3f));
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    public int getRegularCount(int id) {
+        return regularCounts[id];
+    }
+
+    public int getSpamCount(int id) {
+        return spamCounts[id];
+    }
+
+    /// Approximate number of bytes used by the arrays of the table.
+    public long memoryFootprint() {
+        return 4L * (slots.length + hashes.length + termOffsets.length
+                     + regularCounts.length + spamCounts.length)
+               + termBytes.length + scratch.length;
+    }
+}
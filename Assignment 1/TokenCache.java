@@ -0,0 +1,357 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/// On-disk cache of tokenised messages. Every message is stored as a
+/// sequence of int token ids into a dictionary of the distinct tokens, with
+/// END_OF_LINE marking the line ends, and replaying a message passes the
+/// same tokens and line ends to a consumer as the Tokeniser would. Lines
+/// without tokens are not stored, consumers only use a line end to close
+/// the tokens before it.
+///
+/// A cache file belongs to one set of messages, such as the training or
+/// the test messages, and one set of tokeniser settings. Its name is the
+/// key of the directories of the messages followed by a fingerprint of the
+/// minimal and maximal word size, the platform charset and the path, size
+/// and modification time of every message. When a message changes, is
+/// added or is removed, the fingerprint changes and the cache of that set
+/// is built again; the caches of the other sets are kept. A new cache file
+/// replaces the older ones of the same directories.
+///
+/// A file that does not match its header, or with offsets or ids out of
+/// range, or with a wrong checksum, is built again.
+///
+/// Layout of the file (big endian):
+///
+///     header     magic, version, number of messages, number of terms,
+///                number of stored ids, number of term chars
+///     terms      int[terms + 1] offsets, UTF-16 chars of all terms
+///     messages   int[messages + 1] offsets, int[ids] token ids
+///     checksum   CRC-32 of everything before it
+public class TokenCache {
+    /// This defines the magic number ("BSTC") and version of the format.
+    public final static int MAGIC = 0x42535443;
+    public final static int VERSION = 2;
+
+    /// Marks the end of a line in the stored token ids.
+    public final static int END_OF_LINE = -1;
+
+    private final static int HEADER_SIZE = 24;
+
+    private final Map<File, Integer> index = new HashMap<File, Integer>();
+    private final char[] termChars;
+    private final int[] termOffsets;
+    private final int[] messageOffsets;
+    private final int[] tokens;
+
+    private TokenCache(File[] messages, char[] termChars, int[] termOffsets,
+            int[] messageOffsets, int[] tokens) {
+        for (int i = 0; i < messages.length; i++) {
+            index.put(messages[i], i);
+        }
+        this.termChars = termChars;
+        this.termOffsets = termOffsets;
+        this.messageOffsets = messageOffsets;
+        this.tokens = tokens;
+    }
+
+    /// Open the cache of messages in directory, or tokenise the messages
+    /// and write a new cache file if there is none for their fingerprint.
+    public static TokenCache open(File directory, File[] messages,
+            int minimalWordSize) throws IOException {
+        String key = key(messages);
+        File file = new File(directory, key + "-"
+                             + fingerprint(messages, minimalWordSize) + ".tokens");
+
+        if (file.isFile()) {
+            try {
+                return read(file, messages);
+            } catch (IOException ioe) {
+                /// A damaged cache file is built again.
+                System.err.println("- Warning: rebuilding token cache " + file
+                                   + ": " + ioe.getMessage());
+            }
+        }
+
+        TokenCache cache = build(messages, minimalWordSize);
+        directory.mkdirs();
+        cache.write(file);
+        prune(directory, key, file);
+        return cache;
+    }
+
+    // Delete the older cache files of the same directories as file
+    private static void prune(File directory, final String key, final File file) {
+        File[] stale = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(key + "-") && name.endsWith(".tokens")
+                       && !name.equals(file.getName());
+            }
+        });
+
+        for (File old : (stale == null) ? new File[0] : stale) {
+            if (!old.delete()) {
+                System.err.println("- Warning: could not delete stale token cache " + old);
+            }
+        }
+    }
+
+    /// Key of the directories that hold the messages, the same for every
+    /// version of a set of messages.
+    public static String key(File[] messages) {
+        TreeSet<String> directories = new TreeSet<String>();
+        for (File message : messages) {
+            directories.add(message.getAbsoluteFile().getParent());
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String directory : directories) {
+                digest.update(directory.getBytes("UTF-8"));
+                digest.update((byte) 0);
+            }
+            return hex(digest.digest()).substring(0, 16);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } catch (NoSuchAlgorithmException nsae) {
+            /// Every JVM has SHA-256.
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /// Fingerprint of the tokeniser settings and the messages.
+    public static String fingerprint(File[] messages, int minimalWordSize) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(VERSION);
+            out.writeInt(minimalWordSize);
+            out.writeInt(Tokeniser.MAXIMAL_WORD_SIZE);
+            out.writeUTF(Charset.defaultCharset().name());
+            for (File message : messages) {
+                out.writeUTF(message.getAbsolutePath());
+                out.writeLong(message.length());
+                out.writeLong(message.lastModified());
+            }
+            out.flush();
+
+            return hex(digest.digest(bytes.toByteArray()));
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        } catch (NoSuchAlgorithmException nsae) {
+            /// Every JVM has SHA-256.
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    // Lower case hex digits of bytes
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /// Tokenise the messages and keep the token ids in memory.
+    public static TokenCache build(File[] messages, int minimalWordSize) {
+        final TermTable terms = new TermTable();
+        final int[][] ids = { new int[1024] };
+        final int[] nIds = { 0 };
+        int[] messageOffsets = new int[messages.length + 1];
+        Tokeniser tokeniser = new Tokeniser(minimalWordSize);
+
+        Tokeniser.TokenConsumer consumer = new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                append(terms.add(chars, start, length, 0, 0));
+            }
+
+            public void endOfLine() {
+                if (nIds[0] > 0 && ids[0][nIds[0] - 1] != END_OF_LINE) {
+                    append(END_OF_LINE);
+                }
+            }
+
+            private void append(int id) {
+                if (nIds[0] == ids[0].length) {
+                    ids[0] = Arrays.copyOf(ids[0], 2 * nIds[0]);
+                }
+                ids[0][nIds[0]++] = id;
+            }
+        };
+
+        for (int i = 0; i < messages.length; i++) {
+            tokeniser.tokenise(messages[i], consumer);
+            messageOffsets[i + 1] = nIds[0];
+        }
+
+        StringBuilder chars = new StringBuilder();
+        int[] termOffsets = new int[terms.size() + 1];
+        for (int id = 0; id < terms.size(); id++) {
+            chars.append(terms.term(id));
+            termOffsets[id + 1] = chars.length();
+        }
+
+        char[] termChars = new char[chars.length()];
+        chars.getChars(0, chars.length(), termChars, 0);
+        return new TokenCache(messages, termChars, termOffsets, messageOffsets,
+                              Arrays.copyOf(ids[0], nIds[0]));
+    }
+
+    // Write the cache to a file, through a temporary file so that
+    // a cache file is always complete
+    private void write(File file) throws IOException {
+        File temporary = File.createTempFile("tokens", ".tmp", file.getParentFile());
+        CRC32 checksum = new CRC32();
+        OutputStream buffered = new BufferedOutputStream(new FileOutputStream(temporary));
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, checksum));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(messageOffsets.length - 1);
+            out.writeInt(termOffsets.length - 1);
+            out.writeInt(tokens.length);
+            out.writeInt(termChars.length);
+
+            for (int termOffset : termOffsets) {
+                out.writeInt(termOffset);
+            }
+            for (char c : termChars) {
+                out.writeChar(c);
+            }
+            for (int messageOffset : messageOffsets) {
+                out.writeInt(messageOffset);
+            }
+            for (int id : tokens) {
+                out.writeInt(id);
+            }
+            out.flush();
+            new DataOutputStream(buffered).writeInt((int) checksum.getValue());
+        } finally {
+            out.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Read a cache file of the given messages. Everything in the file is
+    // checked before it is used, a damaged file is an IOException.
+    private static TokenCache read(File file, File[] messages) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+
+        if (bytes.length < HEADER_SIZE + 4 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a token cache file.");
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("Unsupported token cache version.");
+        }
+        int nMessages = buffer.getInt();
+        int nTerms = buffer.getInt();
+        int nTokens = buffer.getInt();
+        int nTermChars = buffer.getInt();
+        if (nMessages != messages.length) {
+            throw new IOException("Token cache of " + nMessages + " messages.");
+        }
+        if (nTerms < 0 || nTokens < 0 || nTermChars < 0
+                || bytes.length != HEADER_SIZE + 4L * (nTerms + 1) + 2L * nTermChars
+                                   + 4L * (nMessages + 1) + 4L * nTokens + 4) {
+            throw new IOException("Truncated token cache file.");
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, 0, bytes.length - 4);
+        if ((int) checksum.getValue() != buffer.getInt(bytes.length - 4)) {
+            throw new IOException("Damaged token cache file.");
+        }
+
+        int[] termOffsets = new int[nTerms + 1];
+        buffer.asIntBuffer().get(termOffsets);
+        buffer.position(buffer.position() + 4 * termOffsets.length);
+        char[] termChars = new char[nTermChars];
+        buffer.asCharBuffer().get(termChars);
+        buffer.position(buffer.position() + 2 * termChars.length);
+        int[] messageOffsets = new int[nMessages + 1];
+        buffer.asIntBuffer().get(messageOffsets);
+        buffer.position(buffer.position() + 4 * messageOffsets.length);
+        int[] tokens = new int[nTokens];
+        buffer.asIntBuffer().get(tokens);
+
+        checkOffsets(termOffsets, nTermChars);
+        checkOffsets(messageOffsets, nTokens);
+        for (int id : tokens) {
+            if (id != END_OF_LINE && (id < 0 || id >= nTerms)) {
+                throw new IOException("Token id " + id + " out of range.");
+            }
+        }
+
+        return new TokenCache(messages, termChars, termOffsets, messageOffsets, tokens);
+    }
+
+    // Offsets must go from 0 up to end without going back
+    private static void checkOffsets(int[] offsets, int end) throws IOException {
+        if (offsets[0] != 0 || offsets[offsets.length - 1] != end) {
+            throw new IOException("Offsets out of range.");
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            if (offsets[i] < offsets[i - 1]) {
+                throw new IOException("Offsets out of order.");
+            }
+        }
+    }
+
+    /// Pass the tokens and line ends of a cached message to a consumer,
+    /// as Tokeniser.tokenise() does. Returns false if the message is not
+    /// part of the cache. Several threads can replay at the same time.
+    public boolean replay(File message, Tokeniser.TokenConsumer consumer) {
+        Integer i = index.get(message);
+        if (i == null) {
+            return false;
+        }
+
+        for (int t = messageOffsets[i]; t < messageOffsets[i + 1]; t++) {
+            int id = tokens[t];
+            if (id == END_OF_LINE) {
+                consumer.endOfLine();
+            } else {
+                consumer.token(termChars, termOffsets[id],
+                               termOffsets[id + 1] - termOffsets[id]);
+            }
+        }
+        /// A message always ends with a line end.
+        consumer.endOfLine();
+        return true;
+    }
+
+    /// Replay a message from the first of caches that has it, returns
+    /// false if none has it or caches is null.
+    public static boolean replay(TokenCache[] caches, File message,
+            Tokeniser.TokenConsumer consumer) {
+        if (caches != null) {
+            for (TokenCache cache : caches) {
+                if (cache.replay(message, consumer)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /// The number of distinct tokens.
+    public int size() {
+        return termOffsets.length - 1;
+    }
+}
@@ -0,0 +1,550 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+
+/// Single pass tokeniser for messages. It does the same as the earlier
+/// tokenisation (remove punctuation, convert to lower case, split on white
+/// space, drop short and numeric words) while reading the characters once,
+/// and hands every accepted token to a callback as a slice of its own
+/// buffer. No String is created for a token unless the callback makes one.
+///
+/// Lower case conversion is done per character, so the few characters
+/// that String.toLowerCase() maps to more than one character are kept
+/// as a single character.
+///
+/// Files are read in fixed-size chunks through a FileChannel and decoded
+/// chunk by chunk, so the memory used does not depend on the size of the
+/// message. Tokens longer than MAXIMAL_WORD_SIZE (base64 blobs and the
+/// like) are dropped, which keeps the token buffer bounded as well.
+///
+/// A consumer can stop the tokenisation of a message early with stop(), for
+/// example once it has seen enough, and remainingTokens() tells it how many
+/// tokens can still come.
+///
+/// A tokeniser keeps its buffers between messages, so it must not be
+/// shared between threads.
+public class Tokeniser {
+    /// Receives the tokens of a message.
+    public interface TokenConsumer {
+        /// Called for every accepted token. The characters are only
+        /// valid during the call.
+        void token(char[] chars, int start, int length);
+
+        /// Called at the end of every line of the message.
+        void endOfLine();
+    }
+
+    /// This defines the size of the read buffers and the longest token
+    /// that is passed on.
+    public final static int BUFFER_SIZE = 8192;
+    public final static int MAXIMAL_WORD_SIZE = 1024;
+
+    // Size of an input of which the size is not known
+    private final static long UNKNOWN_SIZE = Long.MAX_VALUE / 4;
+
+    // Classes of the ASCII characters for tokeniseBytes(), the same
+    // as the ones of tokenise(char[], ...)
+    private final static byte LINE = 0;
+    private final static byte SPACE = 1;
+    private final static byte PUNCTUATION = 2;
+    private final static byte DIGIT = 3;
+    private final static byte WORD = 4;
+    private final static byte[] ASCII_CLASSES = new byte[128];
+    private final static char[] ASCII_LOWER_CASE = new char[128];
+
+    static {
+        for (char c = 0; c < 128; c++) {
+            if (c == '\n' || c == '\r') {
+                ASCII_CLASSES[c] = LINE;
+            } else if (c == ' ' || c == '\t' || c == '\f') {
+                ASCII_CLASSES[c] = SPACE;
+            } else if (isPunctuation(c)) {
+                ASCII_CLASSES[c] = PUNCTUATION;
+            } else {
+                ASCII_CLASSES[c] = Character.isDigit(c) ? DIGIT : WORD;
+            }
+            ASCII_LOWER_CASE[c] = Character.toLowerCase(c);
+        }
+    }
+
+    /// True if the platform charset decodes every byte below 128 to the
+    /// ASCII character with that code, and such a byte is never part of
+    /// a longer character. That holds for UTF-8 and for the single byte
+    /// charsets such as the ISO-8859 and Windows code pages, but not for
+    /// Shift_JIS or UTF-16. Only then can tokeniseBytes() skip the
+    /// decoder for those bytes.
+    public final static boolean ASCII_COMPATIBLE = isAsciiCompatible(Charset.defaultCharset());
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        if (!charset.name().equals("UTF-8")
+                && (!charset.canEncode() || charset.newEncoder().maxBytesPerChar() != 1)) {
+            return false;
+        }
+
+        byte[] bytes = new byte[128];
+        char[] chars = new char[128];
+        for (int b = 0; b < 128; b++) {
+            bytes[b] = (byte) b;
+            chars[b] = (char) b;
+        }
+        return new String(bytes, charset).equals(new String(chars));
+    }
+
+    private final int minimalWordSize;
+    private final char[] readBuffer = new char[BUFFER_SIZE];
+    private final ByteBuffer byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer charBuffer = CharBuffer.wrap(readBuffer);
+    // View of the read buffer for decoding a run of non-ASCII bytes
+    private final ByteBuffer runBuffer = byteBuffer.duplicate();
+    private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final char[] tokenBuffer = new char[MAXIMAL_WORD_SIZE];
+    private int tokenLength = 0;
+    private boolean tokenNumeric = true;
+    private boolean tokenTooLong = false;
+
+    // Position in the current message for remainingTokens(): the bytes not
+    // read yet, an upper bound of the characters after the chunk that is
+    // tokenised and the position in that chunk (of bytes or characters)
+    private long unread = 0;
+    private long pending = 0;
+    private int chunkPosition = 0;
+    private int chunkEnd = 0;
+    private boolean stopped = false;
+
+    // Metrics of the current message, added to Metrics per message
+    private long readNanos = 0;
+    private int nTokens = 0;
+    private int nTooShort = 0;
+    private int nTooLong = 0;
+    private int nNumeric = 0;
+
+    /// Tokens shorter than minimalWordSize are not passed on.
+    public Tokeniser(int minimalWordSize) {
+        this.minimalWordSize = minimalWordSize;
+    }
+
+    /// Tokenise a message file, read with the platform charset.
+    public void tokenise(File message, TokenConsumer consumer) {
+        FileChannel channel = null;
+
+        try {
+            channel = FileChannel.open(message.toPath(), StandardOpenOption.READ);
+            tokenise(channel, consumer);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            /// Always close at the end, even if things go wrong.
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    /// Tokenise everything that can be read from a channel, one chunk at a
+    /// time. Bytes are decoded with the platform charset, malformed input
+    /// is replaced as InputStreamReader does.
+    public void tokenise(ReadableByteChannel channel, TokenConsumer consumer)
+            throws IOException {
+        boolean endOfInput = false;
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+
+        startMessage(sizeOf(channel));
+        while (!endOfInput && !stopped) {
+            long readStart = Metrics.ENABLED ? System.nanoTime() : 0;
+            endOfInput = read(channel);
+            if (Metrics.ENABLED) {
+                readNanos += System.nanoTime() - readStart;
+            }
+            decodeBytes(endOfInput, consumer);
+        }
+        endOfDecoding(consumer);
+        recordTimes(start, true);
+    }
+
+    /// Tokenise the remaining bytes of a buffer, such as a message in a
+    /// memory-mapped CorpusArchive. The bytes go through the read buffer
+    /// one chunk at a time, as the decoder is much faster on a heap
+    /// buffer than on a mapped one. The position of message is moved to
+    /// its limit, also when the consumer stops early.
+    public void tokenise(ByteBuffer message, TokenConsumer consumer) {
+        boolean endOfInput = false;
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+
+        startMessage(message.remaining());
+        while (!endOfInput && !stopped) {
+            endOfInput = read(message);
+            decodeBytes(endOfInput, consumer);
+        }
+        endOfDecoding(consumer);
+        /// Also after stop(): the rest of the message is skipped.
+        message.position(message.limit());
+        recordTimes(start, false);
+    }
+
+    // Get ready for the next message of the given size in bytes
+    private void startMessage(long size) {
+        resetToken();
+        decoder.reset();
+        byteBuffer.clear();
+        unread = size;
+        pending = size;
+        chunkPosition = 0;
+        chunkEnd = 0;
+        stopped = false;
+    }
+
+    // Bytes that can still be read from a channel, if it is a file
+    private static long sizeOf(ReadableByteChannel channel) throws IOException {
+        if (channel instanceof FileChannel) {
+            FileChannel file = (FileChannel) channel;
+            return Math.max(0, file.size() - file.position());
+        }
+        return UNKNOWN_SIZE;
+    }
+
+    // Read the next chunk of a channel into the read buffer,
+    // returns true at the end of the channel
+    private boolean read(ReadableByteChannel channel) throws IOException {
+        int n = channel.read(byteBuffer);
+        unread -= Math.max(n, 0);
+        return n == -1;
+    }
+
+    // Copy the next chunk of a buffer into the read buffer,
+    // returns true when nothing is left
+    private boolean read(ByteBuffer message) {
+        int n = Math.min(byteBuffer.remaining(), message.remaining());
+        byteBuffer.put(message.slice(message.position(), n));
+        message.position(message.position() + n);
+        unread -= n;
+        return !message.hasRemaining();
+    }
+
+    // Record the read time and the rest of the time since start as
+    // tokenise time of one message. The reads of a channel are timed
+    // chunk by chunk, as every one is a system call. A message in a buffer
+    // is already in memory: its copies are part of the tokenise time and
+    // it adds no file read.
+    private void recordTimes(long start, boolean fileRead) {
+        if (Metrics.ENABLED) {
+            long nanos = System.nanoTime() - start;
+            if (fileRead) {
+                Metrics.FILE_READ.record(readNanos);
+            }
+            Metrics.TOKENISE.record(nanos - readNanos);
+            readNanos = 0;
+        }
+    }
+
+    // Decode and tokenise the bytes in the read buffer, bytes of an
+    // incomplete character are kept for the next chunk
+    private void decodeBytes(boolean endOfInput, TokenConsumer consumer) {
+        byteBuffer.flip();
+
+        CoderResult result;
+        do {
+            result = decoder.decode(byteBuffer, charBuffer, endOfInput);
+            pending = unread + byteBuffer.remaining();
+            tokeniseDecoded(consumer);
+        } while (result.isOverflow() && !stopped);
+
+        byteBuffer.compact();
+    }
+
+    // Flush the decoder and finish the message
+    private void endOfDecoding(TokenConsumer consumer) {
+        pending = 0;
+        while (!stopped && decoder.flush(charBuffer).isOverflow()) {
+            tokeniseDecoded(consumer);
+        }
+        tokeniseDecoded(consumer);
+        endOfMessage(consumer);
+    }
+
+    // Tokenise the characters in the char buffer and empty it
+    private void tokeniseDecoded(TokenConsumer consumer) {
+        tokenise(readBuffer, 0, charBuffer.position(), consumer);
+        charBuffer.clear();
+    }
+
+    /// Tokenise a message file like tokenise(File, ...), but with the
+    /// ASCII fast path of tokeniseBytes().
+    public void tokeniseBytes(File message, TokenConsumer consumer) {
+        FileChannel channel = null;
+
+        try {
+            channel = FileChannel.open(message.toPath(), StandardOpenOption.READ);
+            tokeniseBytes(channel, consumer);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            /// Always close at the end, even if things go wrong.
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    /// Tokenise everything that can be read from a channel, as
+    /// tokenise(ReadableByteChannel, ...) does, but without decoding the
+    /// ASCII bytes: they are classified and lower-cased with a lookup table
+    /// straight from the read buffer. Only runs of non-ASCII bytes go
+    /// through the decoder of the platform charset. Falls back to
+    /// tokenise() when the charset is not ASCII_COMPATIBLE.
+    public void tokeniseBytes(ReadableByteChannel channel, TokenConsumer consumer)
+            throws IOException {
+        if (!ASCII_COMPATIBLE) {
+            tokenise(channel, consumer);
+            return;
+        }
+
+        boolean endOfInput = false;
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+
+        startMessage(sizeOf(channel));
+        while (!endOfInput && !stopped) {
+            long readStart = Metrics.ENABLED ? System.nanoTime() : 0;
+            endOfInput = read(channel);
+            if (Metrics.ENABLED) {
+                readNanos += System.nanoTime() - readStart;
+            }
+            scanBytes(endOfInput, consumer);
+        }
+        endOfMessage(consumer);
+        recordTimes(start, true);
+    }
+
+    /// Same as tokeniseBytes() above, for the remaining bytes of a buffer
+    /// such as a message of a CorpusArchive. The position of message is
+    /// moved to its limit, also when the consumer stops early.
+    public void tokeniseBytes(ByteBuffer message, TokenConsumer consumer) {
+        if (!ASCII_COMPATIBLE) {
+            tokenise(message, consumer);
+            return;
+        }
+
+        boolean endOfInput = false;
+        long start = Metrics.ENABLED ? System.nanoTime() : 0;
+
+        startMessage(message.remaining());
+        while (!endOfInput && !stopped) {
+            endOfInput = read(message);
+            scanBytes(endOfInput, consumer);
+        }
+        endOfMessage(consumer);
+        /// Also after stop(): the rest of the message is skipped.
+        message.position(message.limit());
+        recordTimes(start, false);
+    }
+
+    // Tokenise the bytes in the read buffer. The bytes of a character
+    // that is not complete yet are kept for the next chunk.
+    private void scanBytes(boolean endOfInput, TokenConsumer consumer) {
+        byte[] bytes = byteBuffer.array();
+        int end = byteBuffer.position();
+        int i = 0;
+
+        chunkEnd = end;
+        pending = unread;
+        while (i < end && !stopped) {
+            int b = bytes[i];
+
+            if (b < 0) {
+                /// A run of non-ASCII bytes, decoded as a whole.
+                int runEnd = i + 1;
+                while (runEnd < end && bytes[runEnd] < 0) {
+                    ++runEnd;
+                }
+                int decoded = decodeRun(i, runEnd, endOfInput || runEnd < end, consumer);
+                chunkEnd = end;
+                pending = unread;
+                if (decoded < runEnd) {
+                    i = decoded;
+                    break;
+                }
+                i = runEnd;
+                continue;
+            }
+
+            switch (ASCII_CLASSES[b]) {
+            case LINE:
+                chunkPosition = i;
+                endOfToken(consumer);
+                consumer.endOfLine();
+                break;
+            case SPACE:
+                chunkPosition = i;
+                endOfToken(consumer);
+                break;
+            case PUNCTUATION:
+                break;
+            default:
+                if (tokenLength == tokenBuffer.length) {
+                    tokenTooLong = true;
+                } else {
+                    tokenBuffer[tokenLength++] = ASCII_LOWER_CASE[b];
+                    tokenNumeric &= (ASCII_CLASSES[b] == DIGIT);
+                }
+            }
+            ++i;
+        }
+
+        byteBuffer.position(i);
+        byteBuffer.limit(end);
+        byteBuffer.compact();
+    }
+
+    // Decode and tokenise bytes[from..to) of the read buffer. If the run
+    // is complete (an ASCII byte or the end of the message follows) the
+    // decoder is flushed, otherwise the bytes of an incomplete character
+    // are left. Returns the end of the decoded bytes.
+    private int decodeRun(int from, int to, boolean complete, TokenConsumer consumer) {
+        runBuffer.limit(to);
+        runBuffer.position(from);
+
+        CoderResult result;
+        do {
+            result = decoder.decode(runBuffer, charBuffer, complete);
+            /// The characters of the run take at least as many bytes.
+            pending = unread + (byteBuffer.position() - runBuffer.position());
+            tokeniseDecoded(consumer);
+        } while (result.isOverflow() && !stopped);
+
+        if (complete) {
+            while (!stopped && decoder.flush(charBuffer).isOverflow()) {
+                tokeniseDecoded(consumer);
+            }
+            tokeniseDecoded(consumer);
+            decoder.reset();
+        }
+        return runBuffer.position();
+    }
+
+    /// Tokenise everything that can be read from in.
+    public void tokenise(Reader in, TokenConsumer consumer) throws IOException {
+        int read;
+
+        startMessage(UNKNOWN_SIZE);
+        while (!stopped && (read = in.read(readBuffer, 0, readBuffer.length)) != -1) {
+            tokenise(readBuffer, 0, read, consumer);
+        }
+        endOfMessage(consumer);
+    }
+
+    /// Tokenise a chunk of characters. A token may continue in the next
+    /// chunk, so endOfMessage() must be called after the last chunk.
+    public void tokenise(char[] chars, int start, int end,
+            TokenConsumer consumer) {
+        chunkEnd = end;
+        for (int i = start; i < end && !stopped; i++) {
+            char c = chars[i];
+
+            if (c == '\n' || c == '\r') {
+                chunkPosition = i;
+                endOfToken(consumer);
+                consumer.endOfLine();
+            } else if (c == ' ' || c == '\t' || c == '\f') {
+                chunkPosition = i;
+                endOfToken(consumer);
+            } else if (!isPunctuation(c)) {
+                if (tokenLength == tokenBuffer.length) {
+                    tokenTooLong = true;
+                } else {
+                    tokenBuffer[tokenLength++] = Character.toLowerCase(c);
+                    tokenNumeric &= Character.isDigit(c);
+                }
+            }
+        }
+    }
+
+    /// Finish the last token and line of a message. The last token is
+    /// dropped if the message was stopped.
+    public void endOfMessage(TokenConsumer consumer) {
+        pending = 0;
+        chunkPosition = chunkEnd;
+        if (stopped) {
+            resetToken();
+        } else {
+            endOfToken(consumer);
+        }
+        consumer.endOfLine();
+
+        if (Metrics.ENABLED) {
+            Metrics.TOKENS.add(nTokens);
+            Metrics.TOKENS_TOO_SHORT.add(nTooShort);
+            Metrics.TOKENS_TOO_LONG.add(nTooLong);
+            Metrics.TOKENS_NUMERIC.add(nNumeric);
+            nTokens = nTooShort = nTooLong = nNumeric = 0;
+        }
+    }
+
+    /// Stop tokenising the current message, meant to be called from
+    /// token(). No more tokens of the message are passed on, only the
+    /// endOfLine() of its end.
+    public void stop() {
+        stopped = true;
+    }
+
+    /// An upper bound of the number of tokens of the current message that
+    /// can still come, valid during token(). Every token takes at least
+    /// minimalWordSize characters and a separator, and every character at
+    /// least one byte. The bound is very large if the size of the message
+    /// is not known (when it is read from a Reader or from a channel that
+    /// is not a file).
+    public long remainingTokens() {
+        return (pending + chunkEnd - chunkPosition) / (minimalWordSize + 1);
+    }
+
+    // Pass on the current token if it is long enough, not too long
+    // and not numeric
+    private void endOfToken(TokenConsumer consumer) {
+        if (tokenLength >= minimalWordSize && !tokenNumeric && !tokenTooLong) {
+            consumer.token(tokenBuffer, 0, tokenLength);
+        }
+        if (Metrics.ENABLED && tokenLength > 0) {
+            countToken();
+        }
+        resetToken();
+    }
+
+    // Count a token and the reason it was dropped, if it was
+    private void countToken() {
+        ++nTokens;
+        if (tokenTooLong) {
+            ++nTooLong;
+        } else if (tokenLength < minimalWordSize) {
+            ++nTooShort;
+        } else if (tokenNumeric) {
+            ++nNumeric;
+        }
+    }
+
+    private void resetToken() {
+        tokenLength = 0;
+        tokenNumeric = true;
+        tokenTooLong = false;
+    }
+
+    /// The ASCII punctuation characters, the same as \p{Punct}.
+    public static boolean isPunctuation(char c) {
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@')
+               || (c >= '[' && c <= '`') || (c >= '{' && c <= '~');
+    }
+}
@@ -0,0 +1,99 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/// Implementation of the classification benchmarks (see
+/// bayespam.jmh.Classification).
+public class BayespamClassification implements bayespam.jmh.Classification {
+    private CompiledModel model;
+    private CompiledModel selected;
+    private File[] messages;
+    private boolean[] regular;
+    private Evaluator.TestSet testSet;
+    private Evaluator.Result reference;
+    private final Tokeniser tokeniser = new Tokeniser(Bayespam.MINIMAL_WORD_SIZE);
+    private boolean[] fullClasses;
+
+    public void setUp(File trainDir, File testDir, int copies) throws IOException {
+        Bayespam.listDirs(trainDir, true);
+        Bayespam.listDirs(testDir, false);
+        model = BayespamBenchmark.compileBayespam();
+
+        File[] testRegular = BayespamBenchmark.repeat(Bayespam.testListingRegular, copies);
+        File[] testSpam = BayespamBenchmark.repeat(Bayespam.testListingSpam, copies);
+        testSet = Evaluator.listings(testRegular, testSpam);
+        messages = new File[testRegular.length + testSpam.length];
+        regular = new boolean[messages.length];
+        System.arraycopy(testRegular, 0, messages, 0, testRegular.length);
+        System.arraycopy(testSpam, 0, messages, testRegular.length, testSpam.length);
+        Arrays.fill(regular, 0, testRegular.length, true);
+
+        reference = new Evaluator(model, 1).evaluate(testSet);
+        fullClasses = new boolean[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            CompiledModel.SequentialScore score =
+                    model.newSequentialScore(tokeniser, Double.POSITIVE_INFINITY);
+            Bayespam.tokenise(tokeniser, messages[i], score);
+            fullClasses[i] = score.isRegular();
+        }
+    }
+
+    public int evaluate(int nThreads) {
+        Evaluator.Result result = new Evaluator(model, nThreads).evaluate(testSet);
+        if (!result.sameCounts(reference)) {
+            throw new IllegalStateException(nThreads + " threads classify differently");
+        }
+        return result.getTrueNegatives() + result.getFalsePositives();
+    }
+
+    public long selectFeatures(String criterion, int k) {
+        TermTable vocab = Bayespam.vocab;
+        int nMessagesRegular = Bayespam.listingRegular.length;
+        int nMessagesSpam = Bayespam.listingSpam.length;
+        int nWordsRegular = 0;
+        int nWordsSpam = 0;
+        for (int id = 0; id < vocab.size(); id++) {
+            nWordsRegular += vocab.getRegularCount(id);
+            nWordsSpam += vocab.getSpamCount(id);
+        }
+
+        int[] ranked = FeatureSelection.rank(vocab, FeatureSelection.criterion(criterion));
+        TermTable reduced = FeatureSelection.select(vocab, ranked,
+                (k > 0) ? Math.min(k, vocab.size()) : vocab.size());
+        selected = CompiledModel.compile(reduced,
+                Bayespam.calculateProbabilities(reduced, nWordsRegular, nWordsSpam),
+                Math.log(nMessagesRegular / (double) (nMessagesRegular + nMessagesSpam)),
+                Math.log(nMessagesSpam / (double) (nMessagesRegular + nMessagesSpam)),
+                nWordsRegular + nWordsSpam);
+
+        long termBytes = 0;
+        for (int id = 0; id < reduced.size(); id++) {
+            termBytes += reduced.term(id).getBytes(StandardCharsets.UTF_8).length;
+        }
+        return SpamModel.sizeOf(reduced.size(), termBytes);
+    }
+
+    public int classifySelected() {
+        int correct = 0;
+        for (int i = 0; i < messages.length; i++) {
+            correct += (Bayespam.classifyMessage(messages[i], selected) == regular[i]) ? 1 : 0;
+        }
+        return correct;
+    }
+
+    public int classifyEarlyExit(double factor, long[] counts) {
+        int correct = 0;
+        Arrays.fill(counts, 0);
+        for (int i = 0; i < messages.length; i++) {
+            CompiledModel.SequentialScore score = model.newSequentialScore(tokeniser, factor);
+            Bayespam.tokenise(tokeniser, messages[i], score);
+            boolean isRegular = score.isRegular();
+
+            counts[0] += score.getTokens();
+            counts[1] += score.isStopped() ? 1 : 0;
+            counts[2] += (isRegular == fullClasses[i]) ? 1 : 0;
+            correct += (isRegular == regular[i]) ? 1 : 0;
+        }
+        return correct;
+    }
+}
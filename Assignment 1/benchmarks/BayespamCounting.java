@@ -0,0 +1,209 @@
+import java.io.*;
+import java.util.*;
+
+/// Implementation of the counting benchmarks (see bayespam.jmh.Counting).
+/// The words are counted from tokens kept in memory, the bigrams from the
+/// message files as in training.
+public class BayespamCounting implements bayespam.jmh.Counting {
+    private File[][] listings;
+    private char[][][] messages;
+    private boolean[] spam;
+    private long nTokens = 0;
+    private long nBigrams = 0;
+
+    public void setUp(File trainDir, int copies) throws IOException {
+        BigramBayespam.listDirs(trainDir, true);
+        BigramBayespam.listingRegular = BayespamBenchmark.repeat(
+                BigramBayespam.listingRegular, copies);
+        BigramBayespam.listingSpam = BayespamBenchmark.repeat(
+                BigramBayespam.listingSpam, copies);
+        listings = new File[][] { BigramBayespam.listingRegular,
+                                  BigramBayespam.listingSpam };
+
+        /// Tokenise once, so that the threads do nothing but count.
+        List<char[][]> tokenised = new ArrayList<char[][]>();
+        List<Boolean> isSpam = new ArrayList<Boolean>();
+        Tokeniser tokeniser = new Tokeniser(Bayespam.MINIMAL_WORD_SIZE);
+        for (File[] listing : listings) {
+            for (File message : listing) {
+                final List<char[]> tokens = new ArrayList<char[]>();
+                tokeniser.tokenise(message, new Tokeniser.TokenConsumer() {
+                    public void token(char[] chars, int start, int length) {
+                        tokens.add(Arrays.copyOfRange(chars, start, start + length));
+                    }
+
+                    public void endOfLine() {
+                    }
+                });
+                tokenised.add(tokens.toArray(new char[0][]));
+                isSpam.add(listing == BigramBayespam.listingSpam);
+                nTokens += tokens.size();
+            }
+        }
+        messages = tokenised.toArray(new char[0][][]);
+        spam = new boolean[isSpam.size()];
+        for (int m = 0; m < spam.length; m++) {
+            spam[m] = isSpam.get(m);
+        }
+
+        for (File[] listing : listings) {
+            for (File message : listing) {
+                BigramBayespam.tokenise(message, new BigramBayespam.BigramConsumer() {
+                    void bigram(char[] chars, int start, int length) {
+                        ++nBigrams;
+                    }
+                });
+            }
+        }
+
+        TermTable reference = new TermTable();
+        countTokens(0, messages.length, reference);
+        for (String table : new String[] { "locked", "striped", "merged" }) {
+            if (!BayespamBenchmark.sameVocabulary(reference, words(table, 4))) {
+                throw new IllegalStateException(table + " counts differ");
+            }
+        }
+        TermTable bigramReference = bigrams("strings");
+        for (String keys : new String[] { "text", "long" }) {
+            if (!BayespamBenchmark.sameVocabulary(bigramReference, bigrams(keys))) {
+                throw new IllegalStateException(keys + " bigram counts differ");
+            }
+        }
+    }
+
+    public int countWords(String table, int nThreads) {
+        return words(table, nThreads).size();
+    }
+
+    public int countBigrams(String keys) {
+        return bigrams(keys).size();
+    }
+
+    public long tokens() {
+        return nTokens;
+    }
+
+    public long bigrams() {
+        return nBigrams;
+    }
+
+    // Count the tokens with nThreads threads into the given kind of table
+    private TermTable words(String table, int nThreads) {
+        if (table.equals("locked")) {
+            final TermTable locked = new TermTable();
+            runCounters(nThreads, new CountTask() {
+                public void count(int from, int to) {
+                    for (int m = from; m < to; m++) {
+                        for (char[] token : messages[m]) {
+                            synchronized (locked) {
+                                locked.increment(token, 0, token.length, spam[m]);
+                            }
+                        }
+                    }
+                }
+            });
+            return locked;
+        } else if (table.equals("striped")) {
+            final ConcurrentTermTable striped = new ConcurrentTermTable();
+            runCounters(nThreads, new CountTask() {
+                public void count(int from, int to) {
+                    for (int m = from; m < to; m++) {
+                        for (char[] token : messages[m]) {
+                            striped.increment(token, 0, token.length, spam[m]);
+                        }
+                    }
+                }
+            });
+            return striped.toTermTable();
+        } else if (table.equals("merged")) {
+            final TermTable merged = new TermTable();
+            runCounters(nThreads, new CountTask() {
+                public void count(int from, int to) {
+                    TermTable partial = new TermTable();
+                    countTokens(from, to, partial);
+                    synchronized (merged) {
+                        merged.merge(partial);
+                    }
+                }
+            });
+            return merged;
+        }
+        throw new IllegalArgumentException("unknown table " + table);
+    }
+
+    // Counts a slice of the tokenised messages
+    private interface CountTask {
+        void count(int from, int to);
+    }
+
+    // Count the tokens of messages[from..to)
+    private void countTokens(int from, int to, TermTable table) {
+        for (int m = from; m < to; m++) {
+            for (char[] token : messages[m]) {
+                table.increment(token, 0, token.length, spam[m]);
+            }
+        }
+    }
+
+    // Split the messages over nThreads threads and wait for all of them
+    private void runCounters(int nThreads, final CountTask task) {
+        Thread[] threads = new Thread[nThreads];
+        int sliceSize = (messages.length + nThreads - 1) / nThreads;
+
+        for (int i = 0; i < nThreads; i++) {
+            final int from = Math.min(i * sliceSize, messages.length);
+            final int to = Math.min(from + sliceSize, messages.length);
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    task.count(from, to);
+                }
+            });
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Count and filter the bigrams of the messages with the given keys
+    private TermTable bigrams(String keys) {
+        if (keys.equals("strings")) {
+            TermTable counted = new TermTable();
+            for (File[] listing : listings) {
+                boolean isSpam = (listing == BigramBayespam.listingSpam);
+                for (File message : listing) {
+                    for (String bigram : BigramBayespam.tokeniseMessage(message)) {
+                        counted.increment(bigram.toCharArray(), 0, bigram.length(),
+                                          isSpam);
+                    }
+                }
+            }
+            return counted.filter(BigramBayespam.FREQUENCY_LIMIT);
+        } else if (keys.equals("text")) {
+            final TermTable counted = new TermTable();
+            for (File[] listing : listings) {
+                final boolean isSpam = (listing == BigramBayespam.listingSpam);
+                for (File message : listing) {
+                    BigramBayespam.tokenise(message, new BigramBayespam.BigramConsumer() {
+                        void bigram(char[] chars, int start, int length) {
+                            counted.increment(chars, start, length, isSpam);
+                        }
+                    });
+                }
+            }
+            return counted.filter(BigramBayespam.FREQUENCY_LIMIT);
+        } else if (keys.equals("long")) {
+            BigramBayespam.words = new TermTable();
+            BigramBayespam.bigrams = new LongCountTable();
+            BigramBayespam.readMessages(BigramBayespam.MessageType.NORMAL);
+            BigramBayespam.readMessages(BigramBayespam.MessageType.SPAM);
+            BigramBayespam.filterByFrequency();
+            return BigramBayespam.vocab;
+        }
+        throw new IllegalArgumentException("unknown keys " + keys);
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+
+/// Implementation of the decoding benchmark (see bayespam.jmh.Decoding).
+public class BayespamDecoding implements bayespam.jmh.Decoding {
+    /// This defines the words with non-ASCII characters of the variant
+    /// of the messages.
+    public final static String[] NON_ASCII_WORDS = {
+        "caf\u00e9", "na\u00efve", "gr\u00fc\u00dfe", "se\u00f1or",
+        "\u00e5ngstr\u00f6m", "\u20acuro"
+    };
+
+    private final Tokeniser tokeniser = new Tokeniser(Bayespam.MINIMAL_WORD_SIZE);
+    private final List<byte[]> messages = new ArrayList<byte[]>();
+    private long nBytes = 0;
+
+    public void setUp(File trainDir, int copies, boolean nonAscii) throws IOException {
+        Bayespam.listDirs(trainDir, true);
+        for (int copy = 0; copy < copies; copy++) {
+            for (File[] listing : new File[][] { Bayespam.listingRegular,
+                                                Bayespam.listingSpam }) {
+                for (File message : listing) {
+                    byte[] bytes = Files.readAllBytes(message.toPath());
+                    if (nonAscii) {
+                        bytes = withNonAsciiWords(bytes);
+                    }
+                    messages.add(bytes);
+                    nBytes += bytes.length;
+                }
+            }
+        }
+
+        long reference = tokenise("reader");
+        for (String path : new String[] { "decoder", "bytes" }) {
+            if (tokenise(path) != reference) {
+                throw new IllegalStateException("the " + path + " path gives other tokens");
+            }
+        }
+    }
+
+    // The message with every 16th word replaced by a non-ASCII word
+    private static byte[] withNonAsciiWords(byte[] message) throws IOException {
+        String[] parts = new String(message, "ISO-8859-1").split(" ", -1);
+        for (int i = 0; i < parts.length; i += 16) {
+            parts[i] = NON_ASCII_WORDS[(i / 16) % NON_ASCII_WORDS.length];
+        }
+        return String.join(" ", parts).getBytes(Charset.defaultCharset());
+    }
+
+    public long tokenise(String path) {
+        final long[] checksum = { 0 };
+        Tokeniser.TokenConsumer consumer = new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                checksum[0] = 31 * checksum[0] + HashedFeatureTable.hash(chars, start, length);
+            }
+
+            public void endOfLine() {
+                checksum[0] = 31 * checksum[0] + 1;
+            }
+        };
+
+        try {
+            for (byte[] message : messages) {
+                if (path.equals("reader")) {
+                    tokeniser.tokenise(new InputStreamReader(
+                            new ByteArrayInputStream(message)), consumer);
+                } else if (path.equals("decoder")) {
+                    tokeniser.tokenise(ByteBuffer.wrap(message), consumer);
+                } else if (path.equals("bytes")) {
+                    tokeniser.tokeniseBytes(ByteBuffer.wrap(message), consumer);
+                } else {
+                    throw new IllegalArgumentException("unknown path " + path);
+                }
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        return checksum[0];
+    }
+
+    public long bytes() {
+        return nBytes;
+    }
+}
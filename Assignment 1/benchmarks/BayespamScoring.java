@@ -0,0 +1,87 @@
+import java.io.*;
+import java.util.*;
+
+/// Implementation of the scoring benchmark (see bayespam.jmh.Scoring).
+/// The word ids of the test messages are looked up once, so the
+/// benchmark measures only the gather-and-sum of the kernels.
+public class BayespamScoring implements bayespam.jmh.Scoring {
+    /// This defines the minimal number of words of the long message.
+    public final static int LONG_MESSAGE_WORDS = 1 << 20;
+
+    private CompiledModel model;
+    private int[][] messages;
+    private ScoringKernel vector;
+
+    public void setUp(File trainDir, File testDir, String shape) throws IOException {
+        Bayespam.listDirs(trainDir, true);
+        Bayespam.listDirs(testDir, false);
+        model = BayespamBenchmark.compileBayespam();
+
+        List<int[]> ids = new ArrayList<int[]>();
+        for (File[] listing : new File[][] { Bayespam.testListingRegular,
+                                            Bayespam.testListingSpam }) {
+            for (File message : listing) {
+                ids.add(wordIds(message));
+            }
+        }
+
+        if (shape.equals("long")) {
+            int[] words = new int[LONG_MESSAGE_WORDS];
+            int nWords = 0;
+            while (nWords < LONG_MESSAGE_WORDS) {
+                for (int[] message : ids) {
+                    int copied = Math.min(message.length, words.length - nWords);
+                    System.arraycopy(message, 0, words, nWords, copied);
+                    nWords += copied;
+                }
+            }
+            messages = new int[][] { words };
+        } else {
+            messages = ids.toArray(new int[ids.size()][]);
+        }
+
+        vector = ScoringKernel.load();
+    }
+
+    // The vocabulary ids of the known words of a message
+    private int[] wordIds(File message) {
+        final TermTable vocabulary = model.getVocabulary();
+        final int[][] ids = { new int[64] };
+        final int[] nIds = { 0 };
+
+        Bayespam.tokenise(message, new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                int id = vocabulary.find(chars, start, length);
+                if (id >= 0) {
+                    if (nIds[0] == ids[0].length) {
+                        ids[0] = Arrays.copyOf(ids[0], 2 * nIds[0]);
+                    }
+                    ids[0][nIds[0]++] = id;
+                }
+            }
+
+            public void endOfLine() {
+            }
+        });
+        return Arrays.copyOf(ids[0], nIds[0]);
+    }
+
+    public int score(String kernel) {
+        ScoringKernel scoringKernel = ScoringKernel.SCALAR;
+        if (kernel.equals("vector")) {
+            if (vector == ScoringKernel.SCALAR) {
+                throw new IllegalStateException("the vector kernel is not available,"
+                        + " build with -Pvector and run with jdk.incubator.vector");
+            }
+            scoringKernel = vector;
+        }
+
+        int regular = 0;
+        for (int[] message : messages) {
+            CompiledModel.BatchScore score = model.newBatchScore(scoringKernel);
+            score.add(message, message.length);
+            regular += score.isRegular() ? 1 : 0;
+        }
+        return regular;
+    }
+}
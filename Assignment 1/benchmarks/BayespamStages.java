@@ -0,0 +1,228 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+
+/// Implementation of the benchmarked stages (see bayespam.jmh.Stages).
+/// The messages are kept in memory so the benchmarks measure the
+/// processing and not the file system.
+public class BayespamStages implements bayespam.jmh.Stages {
+    /// This defines how many words of a copy of the corpus get a variant
+    /// (one in WORD_VARIANT_RATE), which adds new terms for every copy.
+    public final static int WORD_VARIANT_RATE = 8;
+
+    private char[][] trainMessages;
+    private boolean[] trainSpam;
+    private char[][] testMessages;
+    private int scale;
+    private boolean bigrams;
+
+    private final Tokeniser tokeniser = 
+            new Tokeniser(BigramBayespam.MINIMAL_WORD_SIZE);
+    private TermTable vocabulary = new TermTable();
+    private CompiledModel model;
+
+    public void setUp(File trainDir, File testDir, int scale, boolean bigrams)
+            throws IOException {
+        this.scale = scale;
+        this.bigrams = bigrams;
+
+        List<char[]> messages = new ArrayList<char[]>();
+        List<Boolean> spam = new ArrayList<Boolean>();
+        readCorpus(trainDir, messages, spam);
+        trainMessages = messages.toArray(new char[messages.size()][]);
+        trainSpam = new boolean[spam.size()];
+        for (int i = 0; i < trainSpam.length; i++) {
+            trainSpam[i] = spam.get(i);
+        }
+
+        messages.clear();
+        readCorpus(testDir, messages, new ArrayList<Boolean>());
+        testMessages = messages.toArray(new char[messages.size()][]);
+
+        train();
+        compile();
+    }
+
+    // Read the regular/ and spam/ subdirectories of a corpus
+    private static void readCorpus(File dir, List<char[]> messages,
+            List<Boolean> spam) throws IOException {
+        for (String type : new String[] { "regular", "spam" }) {
+            File[] listing = new File(dir, type).listFiles();
+            Arrays.sort(listing);
+            for (File message : listing) {
+                messages.add(new String(Files.readAllBytes(message.toPath()),
+                                        Charset.defaultCharset()).toCharArray());
+                spam.add(type.equals("spam"));
+            }
+        }
+    }
+
+    /// Passes the tokens of a copy of the corpus on, with a variant of
+    /// every WORD_VARIANT_RATE-th word (by hash) for copies after the first.
+    private class CopyConsumer implements Tokeniser.TokenConsumer {
+        private final Tokeniser.TokenConsumer target;
+        private char[] variant = new char[64];
+        private char[] suffix = new char[0];
+        private int copy = 0;
+
+        CopyConsumer(Tokeniser.TokenConsumer target) {
+            this.target = target;
+        }
+
+        /// Start the given copy of the corpus.
+        void setCopy(int copy) {
+            this.copy = copy;
+            this.suffix = Integer.toString(copy, 36).toCharArray();
+        }
+
+        public void token(char[] chars, int start, int length) {
+            if (copy == 0 
+                    || Math.floorMod(SpamModel.hash(chars, start, length) + copy,
+                                     WORD_VARIANT_RATE) != 0) {
+                target.token(chars, start, length);
+                return;
+            }
+
+            if (length + suffix.length > variant.length) {
+                variant = new char[2 * (length + suffix.length)];
+            }
+            System.arraycopy(chars, start, variant, 0, length);
+            System.arraycopy(suffix, 0, variant, length, suffix.length);
+            target.token(variant, 0, length + suffix.length);
+        }
+
+        public void endOfLine() {
+            target.endOfLine();
+        }
+    }
+
+    /// Tokenise all copies of a set of messages, the sink is told
+    /// where every message starts and ends.
+    private void tokeniseCorpus(char[][] messages, CopyConsumer consumer,
+            MessageSink sink) {
+        for (int copy = 0; copy < scale; copy++) {
+            consumer.setCopy(copy);
+            for (int i = 0; i < messages.length; i++) {
+                sink.startMessage(i);
+                tokeniser.tokenise(messages[i], 0, messages[i].length, consumer);
+                tokeniser.endOfMessage(consumer);
+                sink.endMessage(i);
+            }
+        }
+    }
+
+    /// Is told where every message starts and ends.
+    private static class MessageSink {
+        void startMessage(int message) {
+        }
+
+        void endMessage(int message) {
+        }
+    }
+
+    // Wrap a consumer of words in a bigram consumer when needed
+    private Tokeniser.TokenConsumer terms(final TermConsumer target) {
+        if (!bigrams) {
+            return new Tokeniser.TokenConsumer() {
+                public void token(char[] chars, int start, int length) {
+                    target.term(chars, start, length);
+                }
+
+                public void endOfLine() {
+                }
+            };
+        }
+        return new BigramBayespam.BigramConsumer() {
+            void bigram(char[] chars, int start, int length) {
+                target.term(chars, start, length);
+            }
+        };
+    }
+
+    /// Receives the unigrams or bigrams of the corpus.
+    private interface TermConsumer {
+        void term(char[] chars, int start, int length);
+    }
+
+    public long tokenise() {
+        final long[] nTokens = new long[1];
+        tokeniseCorpus(trainMessages, new CopyConsumer(terms(new TermConsumer() {
+            public void term(char[] chars, int start, int length) {
+                ++nTokens[0];
+            }
+        })), new MessageSink());
+        return nTokens[0];
+    }
+
+    public int train() {
+        final TermTable table = new TermTable();
+        final boolean[] spam = new boolean[1];
+
+        tokeniseCorpus(trainMessages, new CopyConsumer(terms(new TermConsumer() {
+            public void term(char[] chars, int start, int length) {
+                table.increment(chars, start, length, spam[0]);
+            }
+        })), new MessageSink() {
+            void startMessage(int message) {
+                spam[0] = trainSpam[message];
+            }
+        });
+
+        vocabulary = table;
+        return table.size();
+    }
+
+    public int filter() {
+        return vocabulary.filter(BigramBayespam.FREQUENCY_LIMIT).size();
+    }
+
+    // Compile the trained vocabulary for the classify() benchmark
+    private void compile() {
+        int nMessagesSpam = 0;
+        for (boolean spam : trainSpam) {
+            nMessagesSpam += spam ? 1 : 0;
+        }
+        int nMessagesRegular = trainSpam.length - nMessagesSpam;
+        int nWordsRegular = 0;
+        int nWordsSpam = 0;
+        for (int id = 0; id < vocabulary.size(); id++) {
+            nWordsRegular += vocabulary.getRegularCount(id);
+            nWordsSpam += vocabulary.getSpamCount(id);
+        }
+
+        model = CompiledModel.compile(vocabulary,
+                Bayespam.calculateProbabilities(vocabulary, nWordsRegular, nWordsSpam),
+                Math.log(nMessagesRegular / (double) trainSpam.length),
+                Math.log(nMessagesSpam / (double) trainSpam.length),
+                nWordsRegular + nWordsSpam);
+    }
+
+    public int classify() {
+        final CompiledModel.Score[] score = new CompiledModel.Score[1];
+        final int[] nRegular = new int[1];
+
+        tokeniseCorpus(testMessages, new CopyConsumer(terms(new TermConsumer() {
+            public void term(char[] chars, int start, int length) {
+                score[0].add(chars, start, length);
+            }
+        })), new MessageSink() {
+            void startMessage(int message) {
+                score[0] = model.newScore();
+            }
+
+            void endMessage(int message) {
+                nRegular[0] += score[0].isRegular() ? 1 : 0;
+            }
+        });
+        return nRegular[0];
+    }
+
+    public int vocabularySize() {
+        return vocabulary.size();
+    }
+
+    public long vocabularyBytes() {
+        return vocabulary.memoryFootprint();
+    }
+}
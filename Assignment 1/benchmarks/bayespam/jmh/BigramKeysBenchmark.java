@@ -0,0 +1,53 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/// JMH comparison of the keys of the bigrams while training: a String per
+/// bigram (BigramBayespam.tokeniseMessage()), the text of the bigram in a
+/// TermTable and a long key of two word ids in a LongCountTable (what
+/// BigramBayespam does). The messages are read from the files, as in
+/// training. The allocations per bigram are the point, so run it with
+/// the gc profiler and divide gc.alloc.rate.norm by bigramsPerOp:
+///
+///     java -jar target/benchmarks.jar BigramKeys -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BigramKeysBenchmark {
+    @Param({"spam-filter/train"})
+    public String trainDir;
+
+    @Param({"20"})
+    public int copies;
+
+    @Param({"strings", "text", "long"})
+    public String keys;
+
+    private Counting counting;
+
+    /// Bigrams of the training set, per operation.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Bigrams {
+        public long bigramsPerOp;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        counting = Counting.load();
+        counting.setUp(new File(trainDir), copies);
+    }
+
+    @Benchmark
+    public int count(Bigrams bigrams) {
+        bigrams.bigramsPerOp = counting.bigrams();
+        return counting.countBigrams(keys);
+    }
+}
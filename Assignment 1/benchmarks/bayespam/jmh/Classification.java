@@ -0,0 +1,48 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+
+/// The ways of classifying the test set that are benchmarked: with
+/// several threads, with a model of the best K words and with an early
+/// exit. Implemented by BayespamClassification in the default package and
+/// loaded by name, like Stages.
+public interface Classification {
+    /// Train the unigram model and list the test set, repeated copies
+    /// times.
+    void setUp(File trainDir, File testDir, int copies) throws IOException;
+
+    /// Classify the test set with an Evaluator of nThreads threads and
+    /// return the number of messages classified as regular. Throws
+    /// IllegalStateException if the confusion matrix and the margin
+    /// histograms are not the same as with one thread.
+    int evaluate(int nThreads);
+
+    /// Keep the best k words of the vocabulary by the "ig" or "llr"
+    /// criterion (see FeatureSelection), all words if k is 0, for
+    /// classifySelected(). Returns the bytes of the reduced model in the
+    /// SpamModel format.
+    long selectFeatures(String criterion, int k);
+
+    /// Classify the test set with the model of selectFeatures() and
+    /// return the number of messages classified correctly.
+    int classifySelected();
+
+    /// Classify the test set with the early exit of
+    /// CompiledModel.SequentialScore for the given bound factor (infinite
+    /// for none) and return the number of messages classified correctly.
+    /// Fills counts with the tokens scored, the messages that stopped
+    /// early and the messages classified as without an early exit.
+    int classifyEarlyExit(double factor, long[] counts);
+
+    /// Load the implementation from the default package.
+    static Classification load() {
+        try {
+            return (Classification) Class.forName("BayespamClassification")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException(
+                    "BayespamClassification is not on the class path", roe);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/// JMH comparison of the vocabularies several training threads can count
+/// into: one TermTable behind a single lock, a ConcurrentTermTable and
+/// per-thread TermTables that are merged at the end. The training set is
+/// tokenised into memory first, so the threads do nothing but count. The
+/// tokens counted per second are reported as countedTokens:
+///
+///     java -jar target/benchmarks.jar Contention
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentionBenchmark {
+    @Param({"spam-filter/train"})
+    public String trainDir;
+
+    @Param({"10"})
+    public int copies;
+
+    @Param({"1", "4", "16", "64"})
+    public int threads;
+
+    @Param({"locked", "striped", "merged"})
+    public String table;
+
+    private Counting counting;
+
+    /// Tokens counted, as a rate.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Tokens {
+        public long countedTokens;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        counting = Counting.load();
+        counting.setUp(new File(trainDir), copies);
+    }
+
+    @Benchmark
+    public int count(Tokens tokens) {
+        int size = counting.countWords(table, threads);
+        tokens.countedTokens += counting.tokens();
+        return size;
+    }
+}
@@ -0,0 +1,40 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+
+/// The ways of counting the terms of the training set that are
+/// benchmarked: words into a vocabulary shared by several threads, and
+/// bigrams with three kinds of keys. Implemented by BayespamCounting in
+/// the default package and loaded by name, like Stages.
+public interface Counting {
+    /// Read the training set, repeated copies times, and tokenise it into
+    /// memory. Checks that every way of counting gives the same vocabulary
+    /// as counting in one thread, and throws IllegalStateException if not.
+    void setUp(File trainDir, int copies) throws IOException;
+
+    /// Count the tokens of the training set with nThreads threads into a
+    /// "locked" TermTable, a "striped" ConcurrentTermTable or "merged"
+    /// per-thread tables, and return the size of the vocabulary.
+    int countWords(String table, int nThreads);
+
+    /// Count the bigrams of the training set as "strings", as "text" in a
+    /// TermTable or as "long" keys of two word ids, filter them by
+    /// frequency and return the size of the filtered vocabulary.
+    int countBigrams(String keys);
+
+    /// The number of tokens and of bigrams of the training set.
+    long tokens();
+
+    long bigrams();
+
+    /// Load the implementation from the default package.
+    static Counting load() {
+        try {
+            return (Counting) Class.forName("BayespamCounting")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException("BayespamCounting is not on the class path", roe);
+        }
+    }
+}
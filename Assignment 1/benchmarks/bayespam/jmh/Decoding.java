@@ -0,0 +1,34 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+
+/// The paths from the bytes of a message to its tokens that are
+/// benchmarked. Implemented by BayespamDecoding in the default package
+/// and loaded by name, like Stages.
+public interface Decoding {
+    /// Read the training set, repeated copies times, into memory. With
+    /// nonAscii every 16th word is replaced by a word with non-ASCII
+    /// characters. Checks that all paths give the same tokens, and throws
+    /// IllegalStateException if not.
+    void setUp(File trainDir, int copies, boolean nonAscii) throws IOException;
+
+    /// Tokenise all messages through an InputStreamReader ("reader"), the
+    /// chunked decoder of Tokeniser.tokenise() ("decoder") or the ASCII
+    /// fast path of Tokeniser.tokeniseBytes() ("bytes"), and return a
+    /// checksum of the tokens and line ends.
+    long tokenise(String path);
+
+    /// The number of bytes of all messages.
+    long bytes();
+
+    /// Load the implementation from the default package.
+    static Decoding load() {
+        try {
+            return (Decoding) Class.forName("BayespamDecoding")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException("BayespamDecoding is not on the class path", roe);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/// JMH comparison of the decoding paths of the tokeniser on the training
+/// set held in memory, as it is and with non-ASCII words. The bytes
+/// tokenised per second are reported as decodedBytes. The fast path only
+/// skips the decoder when the platform charset is ASCII compatible; run
+/// with -Dfile.encoding=UTF-8 (passed to the fork with -jvmArgsAppend) to
+/// measure UTF-8:
+///
+///     java -jar target/benchmarks.jar Decoding -jvmArgsAppend -Dfile.encoding=UTF-8
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodingBenchmark {
+    @Param({"spam-filter/train"})
+    public String trainDir;
+
+    @Param({"20"})
+    public int copies;
+
+    @Param({"ascii", "non-ascii"})
+    public String text;
+
+    @Param({"reader", "decoder", "bytes"})
+    public String path;
+
+    private Decoding decoding;
+
+    /// Bytes tokenised, as a rate.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long decodedBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        decoding = Decoding.load();
+        decoding.setUp(new File(trainDir), copies, text.equals("non-ascii"));
+    }
+
+    @Benchmark
+    public long tokenise(Bytes bytes) {
+        long checksum = decoding.tokenise(path);
+        bytes.decodedBytes += decoding.bytes();
+        return checksum;
+    }
+}
@@ -0,0 +1,66 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/// JMH benchmark of classifying the test set with every word ("none") and
+/// with the early exit of CompiledModel.SequentialScore for bound factors
+/// 1, 0.5, 0.25 and 0.1. The tokens that were scored, the messages that
+/// stopped early, the messages classified as without the early exit and
+/// the messages classified correctly are reported per run:
+///
+///     java -jar target/benchmarks.jar EarlyExit
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EarlyExitBenchmark {
+    @Param({"spam-filter/train"})
+    public String trainDir;
+
+    @Param({"spam-filter/test"})
+    public String testDir;
+
+    @Param({"20"})
+    public int copies;
+
+    @Param({"none", "1", "0.5", "0.25", "0.1"})
+    public String factor;
+
+    private Classification classification;
+    private double boundFactor;
+    private final long[] counts = new long[3];
+
+    /// What the early exit did in the last run.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class EarlyExit {
+        public long scoredTokens;
+        public long stoppedMessages;
+        public long sameMessages;
+        public long correctMessages;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        classification = Classification.load();
+        classification.setUp(new File(trainDir), new File(testDir), copies);
+        boundFactor = factor.equals("none") ? Double.POSITIVE_INFINITY
+                                            : Double.parseDouble(factor);
+    }
+
+    @Benchmark
+    public int classify(EarlyExit earlyExit) {
+        int correct = classification.classifyEarlyExit(boundFactor, counts);
+        earlyExit.scoredTokens = counts[0];
+        earlyExit.stoppedMessages = counts[1];
+        earlyExit.sameMessages = counts[2];
+        earlyExit.correctMessages = correct;
+        return correct;
+    }
+}
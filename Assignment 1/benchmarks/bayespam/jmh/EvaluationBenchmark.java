@@ -0,0 +1,45 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/// JMH benchmark of the parallel classification of the test set by an
+/// Evaluator of 1, 2 and 4 threads. Every run checks that the merged
+/// confusion matrix and margin histograms are the same as with one thread:
+///
+///     java -jar target/benchmarks.jar Evaluation
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluationBenchmark {
+    @Param({"spam-filter/train"})
+    public String trainDir;
+
+    @Param({"spam-filter/test"})
+    public String testDir;
+
+    @Param({"20"})
+    public int copies;
+
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    private Classification classification;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        classification = Classification.load();
+        classification.setUp(new File(trainDir), new File(testDir), copies);
+    }
+
+    @Benchmark
+    public int evaluate() {
+        return classification.evaluate(threads);
+    }
+}
@@ -0,0 +1,61 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/// JMH benchmark of classifying the test set with only the best K words,
+/// ranked by information gain and by log-likelihood ratio (see
+/// FeatureSelection), K = 0 being the whole vocabulary. The bytes of the
+/// reduced model in the SpamModel format and the messages classified
+/// correctly are reported as modelBytes and correctMessages, to plot the
+/// accuracy against K:
+///
+///     java -jar target/benchmarks.jar FeatureSelection -rf csv
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeatureSelectionBenchmark {
+    @Param({"spam-filter/train"})
+    public String trainDir;
+
+    @Param({"spam-filter/test"})
+    public String testDir;
+
+    @Param({"ig", "llr"})
+    public String criterion;
+
+    @Param({"10", "20", "50", "100", "200", "500", "1000", "2000", "5000", "0"})
+    public int k;
+
+    private Classification classification;
+    private long modelBytes;
+
+    /// Size and accuracy of the reduced model.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Model {
+        public long modelBytes;
+        public long correctMessages;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        classification = Classification.load();
+        classification.setUp(new File(trainDir), new File(testDir), 1);
+        modelBytes = classification.selectFeatures(criterion, k);
+    }
+
+    @Benchmark
+    public int classify(Model model) {
+        int correct = classification.classifySelected();
+        model.modelBytes = modelBytes;
+        model.correctMessages = correct;
+        return correct;
+    }
+}
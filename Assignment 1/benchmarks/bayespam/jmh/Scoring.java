@@ -0,0 +1,28 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+
+/// The scoring kernels that are benchmarked, on word ids that are already
+/// looked up. Implemented by BayespamScoring in the default package and
+/// loaded by name, like Stages.
+public interface Scoring {
+    /// Train the unigram model and look up the word ids of the test set.
+    /// With shape "long" all ids form one message of at least a million
+    /// words, with "short" every test message is scored on its own.
+    void setUp(File trainDir, File testDir, String shape) throws IOException;
+
+    /// Score all messages with the "scalar" or "vector" kernel and return
+    /// the number of messages classified as regular.
+    int score(String kernel);
+
+    /// Load the implementation from the default package.
+    static Scoring load() {
+        try {
+            return (Scoring) Class.forName("BayespamScoring")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException("BayespamScoring is not on the class path", roe);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/// JMH comparison of the scalar and the vector ScoringKernel: adding up
+/// the log-probabilities of word ids that are already looked up, for one
+/// long message and for the short messages of the test set. The vector
+/// kernel is only there when the sources are built with the vector
+/// profile as well:
+///
+///     mvn -Pbenchmarks,vector package
+///     java --add-modules jdk.incubator.vector -jar target/benchmarks.jar Scoring
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ScoringBenchmark {
+    @Param({"spam-filter/train"})
+    public String trainDir;
+
+    @Param({"spam-filter/test"})
+    public String testDir;
+
+    @Param({"long", "short"})
+    public String shape;
+
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    private Scoring scoring;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        scoring = Scoring.load();
+        scoring.setUp(new File(trainDir), new File(testDir), shape);
+    }
+
+    @Benchmark
+    public int score() {
+        return scoring.score(kernel);
+    }
+}
@@ -0,0 +1,78 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/// JMH benchmarks of the stages of the spam filter: tokenisation, training
+/// (adding words to the vocabulary), filtering by frequency and
+/// classification. They run on the bundled corpus (scale 1) and on
+/// synthetic corpora of 100 and 1000 times its size, for unigrams and
+/// bigrams. Run them from the "Assignment 1" directory:
+///
+///     mvn -Pbenchmarks package
+///     java -jar target/benchmarks.jar -prof gc
+///
+/// The train() benchmark also reports the size of the vocabulary it built
+/// (vocabularyTerms, vocabularyBytes).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark {
+    @Param({"spam-filter/train"})
+    public String trainDir;
+
+    @Param({"spam-filter/test"})
+    public String testDir;
+
+    @Param({"1", "100", "1000"})
+    public int scale;
+
+    @Param({"unigram", "bigram"})
+    public String ngram;
+
+    private Stages stages;
+
+    /// Size of the vocabulary built by train(), as extra results.
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Vocabulary {
+        public long vocabularyTerms;
+        public long vocabularyBytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        stages = Stages.load();
+        stages.setUp(new File(trainDir), new File(testDir), scale,
+                     ngram.equals("bigram"));
+    }
+
+    @Benchmark
+    public long tokenise() {
+        return stages.tokenise();
+    }
+
+    @Benchmark
+    public int train(Vocabulary vocabulary) {
+        int size = stages.train();
+        vocabulary.vocabularyTerms = stages.vocabularySize();
+        vocabulary.vocabularyBytes = stages.vocabularyBytes();
+        return size;
+    }
+
+    @Benchmark
+    public int filter() {
+        return stages.filter();
+    }
+
+    @Benchmark
+    public int classify() {
+        return stages.classify();
+    }
+}
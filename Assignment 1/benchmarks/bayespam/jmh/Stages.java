@@ -0,0 +1,46 @@
+package bayespam.jmh;
+
+import java.io.File;
+import java.io.IOException;
+
+/// The stages of the spam filter that are benchmarked. The classifier is
+/// written in the default package, which cannot be imported from a named
+/// package, and JMH does not accept benchmarks in the default package. So
+/// the stages are implemented by BayespamStages (in the default package)
+/// and loaded by name.
+public interface Stages {
+    /// Read the corpora into memory. The training and test sets are
+    /// repeated scale times, every copy with its own variants of part of
+    /// the words, so the vocabulary grows with the corpus.
+    void setUp(File trainDir, File testDir, int scale, boolean bigrams)
+            throws IOException;
+
+    /// Tokenise the training set and return the number of tokens.
+    long tokenise();
+
+    /// Build a new vocabulary from the training set and return its size.
+    int train();
+
+    /// Filter the trained vocabulary by frequency and return the number
+    /// of terms that are left.
+    int filter();
+
+    /// Classify the test set with the compiled model and return the
+    /// number of messages classified as regular.
+    int classify();
+
+    /// Number of terms and approximate bytes of the last vocabulary.
+    int vocabularySize();
+
+    long vocabularyBytes();
+
+    /// Load the implementation from the default package.
+    static Stages load() {
+        try {
+            return (Stages) Class.forName("BayespamStages")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException("BayespamStages is not on the class path", roe);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import org.junit.Test;
+
+/// The classifiers of Bayespam and BigramBayespam against the confusion
+/// matrices of the classifiers before the optimisations.
+public class BayespamTest {
+    @Test
+    public void baselineConfusionMatrix() {
+        final NGramModel model = Corpus.words();
+        int[] confusion = Corpus.confusion(new Corpus.Classifier() {
+            boolean isRegular(File message) {
+                return Corpus.baselineIsRegular(message, model);
+            }
+        });
+
+        assertEquals(Corpus.BAYESPAM_TRUE_NEGATIVES, confusion[0]);
+        assertEquals(Corpus.BAYESPAM_FALSE_POSITIVES, confusion[1]);
+    }
+
+    @Test
+    public void compiledModelClassifiesLikeTheBaseline() {
+        NGramModel model = Corpus.words();
+        CompiledModel compiled = model.compiledModel();
+
+        for (String type : new String[] { "regular", "spam" }) {
+            for (File message : Corpus.listing(Corpus.TEST, type)) {
+                assertEquals(message.toString(), Corpus.baselineIsRegular(message, model),
+                             Bayespam.classifyMessage(message, compiled));
+            }
+        }
+    }
+
+    @Test
+    public void bigramConfusionMatrix() {
+        final CompiledModel compiled = Corpus.bigrams().compiledModel();
+        int[] confusion = Corpus.confusion(new Corpus.Classifier() {
+            boolean isRegular(File message) {
+                return BigramBayespam.classifyMessage(message, compiled);
+            }
+        });
+
+        assertEquals(Corpus.BIGRAM_TRUE_NEGATIVES, confusion[0]);
+        assertEquals(Corpus.BIGRAM_FALSE_POSITIVES, confusion[1]);
+    }
+}
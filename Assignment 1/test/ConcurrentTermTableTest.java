@@ -0,0 +1,53 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ConcurrentTermTableTest {
+    @Test
+    public void countsLikeATermTableFromManyThreads() throws InterruptedException {
+        final ConcurrentTermTable concurrent = new ConcurrentTermTable(4);
+        final int nTerms = 1000;
+        Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            final boolean spam = (t % 2) == 1;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < nTerms; i++) {
+                        char[] term = ("term" + i).toCharArray();
+                        concurrent.increment(term, 0, term.length, spam);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        TermTable table = concurrent.toTermTable();
+        assertEquals(nTerms, concurrent.size());
+        assertEquals(nTerms, table.size());
+        for (int i = 0; i < nTerms; i++) {
+            int id = table.find("term" + i);
+            assertEquals(2, table.getRegularCount(id));
+            assertEquals(2, table.getSpamCount(id));
+        }
+    }
+
+    /// Counting the corpus with a CorpusIngester into a ConcurrentTermTable
+    /// gives the vocabulary of the sequential readMessages().
+    @Test
+    public void countsTheCorpusLikeReadMessages() {
+        TermTable expected = Corpus.words().getVocabulary();
+
+        Bayespam.vocab = new TermTable();
+        Bayespam.ingestMessages(4);
+        assertTrue(BayespamBenchmark.sameVocabulary(expected, Bayespam.vocab));
+
+        Bayespam.vocab = new TermTable();
+        Bayespam.readMessages(Bayespam.MessageType.NORMAL, 3);
+        Bayespam.readMessages(Bayespam.MessageType.SPAM, 3);
+        assertTrue(BayespamBenchmark.sameVocabulary(expected, Bayespam.vocab));
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.File;
+import java.util.Hashtable;
+
+/// The bundled corpus in spam-filter/ and the models that Bayespam and
+/// BigramBayespam train on it. The training is done once and shared by
+/// all tests, they must not change the models.
+class Corpus {
+    final static File TRAIN = new File("spam-filter/train");
+    final static File TEST = new File("spam-filter/test");
+
+    /// The confusion matrix of the classifiers before the optimisations,
+    /// the number of regular test messages that are classified regular and
+    /// the number of spam test messages that are classified regular.
+    final static int BAYESPAM_TRUE_NEGATIVES = 26;
+    final static int BAYESPAM_FALSE_POSITIVES = 8;
+    final static int BIGRAM_TRUE_NEGATIVES = 25;
+    final static int BIGRAM_FALSE_POSITIVES = 0;
+
+    private static NGramModel words = null;
+    private static NGramModel bigrams = null;
+
+    /// Decides whether a message is regular.
+    static abstract class Classifier {
+        abstract boolean isRegular(File message);
+    }
+
+    /// The model of the words of the training set, trained like Bayespam.
+    static synchronized NGramModel words() {
+        if (words == null) {
+            Bayespam.listDirs(TRAIN, true);
+            Bayespam.listDirs(TEST, false);
+
+            Bayespam.vocab = new TermTable();
+            Bayespam.readMessages(Bayespam.MessageType.NORMAL);
+            Bayespam.readMessages(Bayespam.MessageType.SPAM);
+
+            NGramModel model = new NGramModel(new int[] { 1 },
+                                              new int[] { Bayespam.FREQUENCY_LIMIT });
+            model.addCounts(Bayespam.vocab, Bayespam.listingRegular.length,
+                            Bayespam.listingSpam.length);
+            model.compile();
+            words = model;
+        }
+        return words;
+    }
+
+    /// The model of the bigrams of the training set, trained like
+    /// BigramBayespam.
+    static synchronized NGramModel bigrams() {
+        if (bigrams == null) {
+            countBigrams(0);
+
+            NGramModel model = new NGramModel(new int[] { 2 }, new int[] { 1 });
+            model.addCounts(BigramBayespam.vocab, BigramBayespam.listingRegular.length,
+                            BigramBayespam.listingSpam.length);
+            model.compile();
+            bigrams = model;
+        }
+        return bigrams;
+    }
+
+    /// Count and filter the bigrams of the training set like BigramBayespam,
+    /// with a sketch of 2^sketchBits cells per row or without one if 0.
+    /// Returns the filtered vocabulary.
+    static synchronized TermTable countBigrams(int sketchBits) {
+        BigramBayespam.listDirs(TRAIN, true);
+        BigramBayespam.words = new TermTable();
+        BigramBayespam.bigrams = new LongCountTable();
+        BigramBayespam.vocab = new TermTable();
+
+        CountMinSketch sketch = (sketchBits > 0)
+                                ? BigramBayespam.sketchBigrams(sketchBits) : null;
+        BigramBayespam.readMessages(BigramBayespam.MessageType.NORMAL, sketch);
+        BigramBayespam.readMessages(BigramBayespam.MessageType.SPAM, sketch);
+        BigramBayespam.filterByFrequency();
+        return BigramBayespam.vocab;
+    }
+
+    /// Classify the words of a message with the classifier of Bayespam
+    /// before the optimisations, the Hashtable of probabilities.
+    static boolean baselineIsRegular(File message, NGramModel model) {
+        Hashtable<String, CategoricalProbabilities> probabilities = model.getProbabilities();
+        return Bayespam.classifyMessage(message, probabilities, model.getVocabulary(),
+                                        model.getRegularPrioriProbability(),
+                                        model.getSpamPrioriProbability(),
+                                        model.getWordsRegular(0) + model.getWordsSpam(0));
+    }
+
+    /// The number of regular and of spam test messages that the
+    /// classifier classifies regular.
+    static int[] confusion(Classifier classifier) {
+        int trueNegatives = 0;
+        int falsePositives = 0;
+
+        for (File message : listing(TEST, "regular")) {
+            trueNegatives += classifier.isRegular(message) ? 1 : 0;
+        }
+        for (File message : listing(TEST, "spam")) {
+            falsePositives += classifier.isRegular(message) ? 1 : 0;
+        }
+        return new int[] { trueNegatives, falsePositives };
+    }
+
+    /// The messages in one of the subdirectories of a corpus.
+    static File[] listing(File corpus, String type) {
+        return new File(corpus, type).listFiles();
+    }
+}
@@ -0,0 +1,47 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class CountMinSketchTest {
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTooManyBits() {
+        new CountMinSketch(29);
+    }
+
+    @Test
+    public void neverUnderestimates() {
+        /// 64 cells per row for 1000 items, so there are collisions.
+        CountMinSketch sketch = new CountMinSketch(6);
+        int[] counts = new int[1000];
+        for (int i = 0; i < 5000; i++) {
+            int item = (i * 7919) % counts.length;
+            ++counts[item];
+            assertTrue(sketch.add(item) >= counts[item]);
+        }
+
+        for (int item = 0; item < counts.length; item++) {
+            assertTrue(sketch.estimate(item) >= counts[item]);
+        }
+    }
+
+    @Test
+    public void isExactWithoutCollisions() {
+        CountMinSketch sketch = new CountMinSketch(16);
+        for (int i = 0; i < 3; i++) {
+            sketch.add(42);
+        }
+        assertEquals(3, sketch.estimate(42));
+        assertEquals(0, sketch.estimate(43));
+    }
+
+    /// A sketch in front of the bigram table drops only bigrams that the
+    /// filter drops anyway, even a small one with many collisions.
+    @Test
+    public void keepsTheBigramsOfTheCorpus() {
+        TermTable expected = Corpus.countBigrams(0);
+        for (int bits : new int[] { 8, 16 }) {
+            TermTable sketched = Corpus.countBigrams(bits);
+            assertTrue(BayespamBenchmark.sameVocabulary(expected, sketched));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import org.junit.Test;
+
+/// The early exit of CompiledModel.SequentialScore against the scoring of
+/// every word.
+public class EarlyExitTest {
+    // Score a message with the early exit
+    private static CompiledModel.SequentialScore score(File message, CompiledModel model,
+            double factor) {
+        Tokeniser tokeniser = new Tokeniser(Bayespam.MINIMAL_WORD_SIZE);
+        CompiledModel.SequentialScore score = model.newSequentialScore(tokeniser, factor);
+        Bayespam.tokenise(tokeniser, message, score);
+        return score;
+    }
+
+    // Score a message without the early exit
+    private static CompiledModel.Score fullScore(File message, CompiledModel model) {
+        final CompiledModel.Score score = model.newScore();
+        Bayespam.tokenise(new Tokeniser(Bayespam.MINIMAL_WORD_SIZE), message,
+                new Tokeniser.TokenConsumer() {
+            public void token(char[] chars, int start, int length) {
+                score.add(chars, start, length);
+            }
+
+            public void endOfLine() {
+            }
+        });
+        return score;
+    }
+
+    /// With a factor of 1 the early exit classifies every message of the
+    /// test set like the baseline classifier.
+    @Test
+    public void keepsTheClassification() {
+        NGramModel model = Corpus.words();
+        CompiledModel compiled = model.compiledModel();
+
+        for (String type : new String[] { "regular", "spam" }) {
+            for (File message : Corpus.listing(Corpus.TEST, type)) {
+                assertEquals(message.toString(), Corpus.baselineIsRegular(message, model),
+                             score(message, compiled, 1).isRegular());
+            }
+        }
+    }
+
+    /// Without a bound nothing stops, and the score is the same as the one
+    /// of every word.
+    @Test
+    public void scoresEveryWordWithoutABound() {
+        CompiledModel compiled = Corpus.words().compiledModel();
+
+        for (String type : new String[] { "regular", "spam" }) {
+            for (File message : Corpus.listing(Corpus.TEST, type)) {
+                CompiledModel.SequentialScore score =
+                        score(message, compiled, Double.POSITIVE_INFINITY);
+                assertFalse(score.isStopped());
+                assertEquals(Bayespam.tokeniseMessage(message).size(), score.getTokens());
+                assertEquals(fullScore(message, compiled).margin(), score.margin(), 0);
+            }
+        }
+    }
+
+    /// A smaller factor stops sooner, but never scores more words.
+    @Test
+    public void stopsSoonerWithASmallerFactor() {
+        CompiledModel compiled = Corpus.words().compiledModel();
+        int nStopped = 0;
+
+        for (String type : new String[] { "regular", "spam" }) {
+            for (File message : Corpus.listing(Corpus.TEST, type)) {
+                CompiledModel.SequentialScore exact = score(message, compiled, 1);
+                CompiledModel.SequentialScore loose = score(message, compiled, 0.1);
+                assertTrue(loose.getTokens() <= exact.getTokens());
+                nStopped += loose.isStopped() ? 1 : 0;
+            }
+        }
+        assertTrue(nStopped > 0);
+    }
+}
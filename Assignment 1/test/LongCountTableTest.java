@@ -0,0 +1,86 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Hashtable;
+import org.junit.Test;
+
+public class LongCountTableTest {
+    @Test
+    public void pairsKeepBothInts() {
+        long key = LongCountTable.pair(7, -1);
+        assertEquals(7, (int) (key >>> 32));
+        assertEquals(-1, (int) key);
+        assertTrue(LongCountTable.pair(1, 2) != LongCountTable.pair(2, 1));
+    }
+
+    @Test
+    public void countsKeysByClass() {
+        LongCountTable table = new LongCountTable();
+        int id = table.increment(LongCountTable.pair(1, 2), true);
+        table.increment(LongCountTable.pair(2, 1), false);
+        assertEquals(id, table.increment(LongCountTable.pair(1, 2), false));
+        table.add(LongCountTable.pair(1, 2), 2, 3);
+
+        assertEquals(2, table.size());
+        assertEquals(id, table.find(LongCountTable.pair(1, 2)));
+        assertEquals(LongCountTable.pair(1, 2), table.getKey(id));
+        assertEquals(3, table.getRegularCount(id));
+        assertEquals(4, table.getSpamCount(id));
+        assertEquals(-1, table.find(LongCountTable.pair(3, 4)));
+    }
+
+    @Test
+    public void growsAndFilters() {
+        LongCountTable table = new LongCountTable(4);
+        int n = 10 * LongCountTable.DEFAULT_CAPACITY;
+        for (int i = 0; i < n; i++) {
+            table.add(LongCountTable.pair(i, i + 1), i % 3, 0);
+        }
+        assertEquals(n, table.size());
+
+        LongCountTable filtered = table.filter(2);
+        for (int i = 0; i < n; i++) {
+            int id = filtered.find(LongCountTable.pair(i, i + 1));
+            if (i % 3 == 2) {
+                assertEquals(2, filtered.getRegularCount(id));
+            } else {
+                assertEquals(-1, id);
+            }
+        }
+    }
+
+    /// The filtered bigrams of BigramBayespam have the counts of a
+    /// Hashtable of the bigrams of BigramBayespam.tokeniseMessage().
+    @Test
+    public void countsTheCorpusLikeAHashtable() {
+        Hashtable<String, int[]> expected = new Hashtable<String, int[]>();
+        for (String type : new String[] { "regular", "spam" }) {
+            for (File message : Corpus.listing(Corpus.TRAIN, type)) {
+                for (String bigram : BigramBayespam.tokeniseMessage(message)) {
+                    int[] counts = expected.get(bigram);
+                    if (counts == null) {
+                        counts = new int[2];
+                        expected.put(bigram, counts);
+                    }
+                    ++counts[type.equals("spam") ? 1 : 0];
+                }
+            }
+        }
+
+        TermTable vocab = Corpus.bigrams().getVocabulary();
+        int nFrequent = 0;
+        for (String bigram : expected.keySet()) {
+            int[] counts = expected.get(bigram);
+            int id = vocab.find(bigram);
+            if (counts[0] + counts[1] < BigramBayespam.FREQUENCY_LIMIT) {
+                assertEquals(bigram, -1, id);
+                continue;
+            }
+            ++nFrequent;
+            assertTrue(bigram, id >= 0);
+            assertEquals(bigram, counts[0], vocab.getRegularCount(id));
+            assertEquals(bigram, counts[1], vocab.getSpamCount(id));
+        }
+        assertEquals(nFrequent, vocab.size());
+    }
+}
@@ -0,0 +1,114 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class NGramConsumerTest {
+    /// Collects the n-grams of every order as text, and as the lengths of
+    /// their words from the ints.
+    private static class Collector extends NGramConsumer {
+        final List<List<String>> ngrams = new ArrayList<List<String>>();
+        final List<List<String>> lengths = new ArrayList<List<String>>();
+
+        Collector(int... orders) {
+            super(orders);
+            for (int i = 0; i <= 3; i++) {
+                ngrams.add(new ArrayList<String>());
+                lengths.add(new ArrayList<String>());
+            }
+        }
+
+        public int word(char[] chars, int start, int length) {
+            return length;
+        }
+
+        public void ngram(int order, char[] chars, int start, int length) {
+            ngrams.get(order).add(new String(chars, start, length));
+        }
+
+        public void ngram(int order, int[] words, int first) {
+            lengths.get(order).add(Arrays.toString(
+                    Arrays.copyOfRange(words, first, first + order)));
+        }
+    }
+
+    // Tokenise a text with words of any length
+    private static Collector collect(String text, int... orders) throws IOException {
+        Collector collector = new Collector(orders);
+        new Tokeniser(1).tokenise(new StringReader(text), collector);
+        return collector;
+    }
+
+    @Test
+    public void groupsWordsWithinALine() throws IOException {
+        Collector collector = collect("one two three four five six seven\neight nine",
+                                      1, 2, 3);
+
+        assertEquals(Arrays.asList("one", "two", "three", "four", "five", "six",
+                                   "seven", "eight", "nine"),
+                     collector.ngrams.get(1));
+        assertEquals(Arrays.asList("one two", "three four", "five six", "eight nine"),
+                     collector.ngrams.get(2));
+        assertEquals(Arrays.asList("one two three", "four five six"),
+                     collector.ngrams.get(3));
+        assertEquals(Arrays.asList("[3, 3, 5]", "[4, 4, 3]"), collector.lengths.get(3));
+    }
+
+    @Test
+    public void ordersDoNotDependOnEachOther() throws IOException {
+        String text = "a bb ccc dddd eeeee ffffff\ng hh iii\njjjj kkkkk llllll mmmmmmm";
+        Collector all = collect(text, 3, 1, 2);
+
+        for (int order = 1; order <= 3; order++) {
+            Collector single = collect(text, order);
+            assertEquals(single.ngrams.get(order), all.ngrams.get(order));
+            assertEquals(single.lengths.get(order), all.lengths.get(order));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicateOrders() {
+        new Collector(2, 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOrderZero() {
+        new Collector(0);
+    }
+
+    /// The bigrams of BigramBayespam are the pairs of words of a line,
+    /// the way they were made from the words of Bayespam before.
+    @Test
+    public void pairsTheWordsOfTheCorpus() {
+        for (String type : new String[] { "regular", "spam" }) {
+            for (File message : Corpus.listing(Corpus.TEST, type)) {
+                final List<String> expected = new ArrayList<String>();
+                Bayespam.tokenise(message, new Tokeniser.TokenConsumer() {
+                    String first = null;
+
+                    public void token(char[] chars, int start, int length) {
+                        String word = new String(chars, start, length);
+                        if (first == null) {
+                            first = word;
+                        } else {
+                            expected.add(first + " " + word);
+                            first = null;
+                        }
+                    }
+
+                    public void endOfLine() {
+                        first = null;
+                    }
+                });
+
+                assertEquals(message.toString(), expected,
+                             BigramBayespam.tokeniseMessage(message));
+            }
+        }
+    }
+}
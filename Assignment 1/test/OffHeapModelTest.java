@@ -0,0 +1,40 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import org.junit.Test;
+
+public class OffHeapModelTest {
+    @Test
+    public void classifiesLikeTheCompiledModel() {
+        NGramModel model = Corpus.bigrams();
+        CompiledModel compiled = model.compiledModel();
+        final OffHeapModel offHeap = OffHeapModel.build(model);
+
+        assertEquals(compiled.size(), offHeap.size());
+        for (String type : new String[] { "regular", "spam" }) {
+            for (File message : Corpus.listing(Corpus.TEST, type)) {
+                assertEquals(message.toString(),
+                             BigramBayespam.classifyMessage(message, compiled),
+                             BigramBayespam.classifyMessage(message, offHeap));
+            }
+        }
+
+        int[] confusion = Corpus.confusion(new Corpus.Classifier() {
+            boolean isRegular(File message) {
+                return BigramBayespam.classifyMessage(message, offHeap);
+            }
+        });
+        assertEquals(Corpus.BIGRAM_TRUE_NEGATIVES, confusion[0]);
+        assertEquals(Corpus.BIGRAM_FALSE_POSITIVES, confusion[1]);
+    }
+
+    @Test
+    public void scoresUnknownTermsAsSpam() {
+        OffHeapModel offHeap = OffHeapModel.build(Corpus.bigrams());
+        OffHeapModel.Score score = offHeap.newScore();
+        char[] chars = "notaword notaword".toCharArray();
+        score.add(chars, 0, chars.length);
+
+        assertEquals(Double.NEGATIVE_INFINITY, score.margin(), 0);
+    }
+}
@@ -0,0 +1,80 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpamModelTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Save the model of the words of the corpus and load it again
+    private SpamModel roundTrip(NGramModel model) throws IOException {
+        File file = folder.newFile("words.model");
+        SpamModel.save(file, model.getVocabulary(), model.getProbabilities(),
+                       model.getRegularPrioriProbability(),
+                       model.getSpamPrioriProbability(),
+                       model.getWordsRegular(0), model.getWordsSpam(0));
+        return SpamModel.load(file);
+    }
+
+    @Test
+    public void keepsTermsCountsAndProbabilities() throws IOException {
+        NGramModel model = Corpus.words();
+        SpamModel loaded = roundTrip(model);
+        TermTable vocab = model.getVocabulary();
+
+        assertEquals(vocab.size(), loaded.size());
+        assertEquals(model.getWordsRegular(0), loaded.getWordsRegular());
+        assertEquals(model.getWordsSpam(0), loaded.getWordsSpam());
+        assertEquals(model.getRegularPrioriProbability(),
+                     loaded.getRegularPrioriProbability(), 0);
+        assertEquals(model.getSpamPrioriProbability(),
+                     loaded.getSpamPrioriProbability(), 0);
+
+        for (int id = 0; id < vocab.size(); id++) {
+            String term = vocab.term(id);
+            int loadedId = loaded.lookup(term);
+            assertTrue(term, loadedId >= 0);
+            assertEquals(term, loaded.term(loadedId));
+            assertEquals(vocab.getRegularCount(id), loaded.getRegularCount(loadedId));
+            assertEquals(vocab.getSpamCount(id), loaded.getSpamCount(loadedId));
+            assertEquals(model.getRegularProbability(id),
+                         loaded.getRegularProbability(loadedId), 0);
+            assertEquals(model.getSpamProbability(id),
+                         loaded.getSpamProbability(loadedId), 0);
+        }
+        assertEquals(-1, loaded.lookup("notaword"));
+    }
+
+    @Test
+    public void classifiesLikeTheBaseline() throws IOException {
+        final NGramModel model = Corpus.words();
+        final SpamModel loaded = roundTrip(model);
+
+        for (String type : new String[] { "regular", "spam" }) {
+            for (File message : Corpus.listing(Corpus.TEST, type)) {
+                assertEquals(message.toString(), Corpus.baselineIsRegular(message, model),
+                             Bayespam.classifyMessage(message, loaded));
+            }
+        }
+
+        int[] confusion = Corpus.confusion(new Corpus.Classifier() {
+            boolean isRegular(File message) {
+                return Bayespam.classifyMessage(message, loaded);
+            }
+        });
+        assertEquals(Corpus.BAYESPAM_TRUE_NEGATIVES, confusion[0]);
+        assertEquals(Corpus.BAYESPAM_FALSE_POSITIVES, confusion[1]);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        File file = folder.newFile("other.model");
+        Files.write(file.toPath(), new byte[64]);
+        SpamModel.load(file);
+    }
+}
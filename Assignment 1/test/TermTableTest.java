@@ -0,0 +1,129 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Hashtable;
+import org.junit.Test;
+
+public class TermTableTest {
+    // Add a term from a String
+    private static int increment(TermTable table, String term, boolean spam) {
+        return table.increment(term.toCharArray(), 0, term.length(), spam);
+    }
+
+    @Test
+    public void countsTermsByClass() {
+        TermTable table = new TermTable();
+        int free = increment(table, "free", true);
+        increment(table, "meeting", false);
+        assertEquals(free, increment(table, "free", true));
+        increment(table, "free", false);
+
+        assertEquals(2, table.size());
+        assertEquals(free, table.find("free"));
+        assertEquals("free", table.term(free));
+        assertEquals(1, table.getRegularCount(free));
+        assertEquals(2, table.getSpamCount(free));
+        assertEquals(-1, table.find("money"));
+    }
+
+    @Test
+    public void findsTermsInsideLargerArrays() {
+        TermTable table = new TermTable();
+        char[] chars = "xxfreexx".toCharArray();
+        int id = table.increment(chars, 2, 4, false);
+
+        assertEquals(id, table.find("free"));
+        assertEquals(id, table.find(chars, 2, 4));
+        assertEquals(-1, table.find(chars, 1, 4));
+    }
+
+    @Test
+    public void keepsNonAsciiTerms() {
+        TermTable table = new TermTable();
+        String term = "gr\u00fc\u00dfe\u20ac";
+        int id = increment(table, term, true);
+
+        assertEquals(term, table.term(id));
+        assertEquals(id, table.find(term));
+    }
+
+    @Test
+    public void growsPastTheInitialCapacity() {
+        TermTable table = new TermTable(4);
+        for (int i = 0; i < 10 * TermTable.DEFAULT_CAPACITY; i++) {
+            increment(table, "term" + i, (i % 2) == 0);
+        }
+
+        assertEquals(10 * TermTable.DEFAULT_CAPACITY, table.size());
+        for (int i = 0; i < 10 * TermTable.DEFAULT_CAPACITY; i++) {
+            int id = table.find("term" + i);
+            assertEquals("term" + i, table.term(id));
+            assertEquals((i % 2) == 0 ? 1 : 0, table.getSpamCount(id));
+        }
+    }
+
+    @Test
+    public void mergesAndSubtractsCounts() {
+        TermTable a = new TermTable();
+        increment(a, "free", true);
+        increment(a, "meeting", false);
+        TermTable b = new TermTable();
+        increment(b, "free", true);
+        increment(b, "money", true);
+
+        a.merge(b);
+        assertEquals(3, a.size());
+        assertEquals(2, a.getSpamCount(a.find("free")));
+        assertEquals(1, a.getSpamCount(a.find("money")));
+
+        assertTrue(a.subtract(b));
+        assertEquals(1, a.getSpamCount(a.find("free")));
+        assertEquals(0, a.getSpamCount(a.find("money")));
+
+        /// Nothing changes if other has more of a term.
+        b.merge(b);
+        assertFalse(a.subtract(b));
+        assertEquals(1, a.getSpamCount(a.find("free")));
+    }
+
+    @Test
+    public void filtersByTheCountOfBothClasses() {
+        TermTable table = new TermTable();
+        increment(table, "free", true);
+        increment(table, "free", false);
+        increment(table, "money", true);
+
+        TermTable filtered = table.filter(2);
+        assertEquals(1, filtered.size());
+        assertEquals(1, filtered.getRegularCount(filtered.find("free")));
+        assertEquals(-1, filtered.find("money"));
+    }
+
+    /// The vocabulary of Bayespam has the counts of a Hashtable of the
+    /// words of Bayespam.tokeniseMessage(), the way it was counted before.
+    @Test
+    public void countsTheCorpusLikeAHashtable() {
+        Hashtable<String, int[]> expected = new Hashtable<String, int[]>();
+        for (String type : new String[] { "regular", "spam" }) {
+            for (File message : Corpus.listing(Corpus.TRAIN, type)) {
+                for (String word : Bayespam.tokeniseMessage(message)) {
+                    int[] counts = expected.get(word);
+                    if (counts == null) {
+                        counts = new int[2];
+                        expected.put(word, counts);
+                    }
+                    ++counts[type.equals("spam") ? 1 : 0];
+                }
+            }
+        }
+
+        TermTable vocab = Corpus.words().getVocabulary();
+        assertEquals(expected.size(), vocab.size());
+        for (String word : expected.keySet()) {
+            int id = vocab.find(word);
+            assertTrue(word, id >= 0);
+            assertEquals(word, expected.get(word)[0], vocab.getRegularCount(id));
+            assertEquals(word, expected.get(word)[1], vocab.getSpamCount(id));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/// ScoringKernel that gathers the values of SPECIES.length() ids at a time
+/// with the Vector API and keeps one vector sum per array. It needs the
+/// jdk.incubator.vector module to compile and to run, so it is only built
+/// with the vector profile and loaded by name (see ScoringKernel.load()).
+public class VectorScoringKernel implements ScoringKernel {
+    private final static VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    public void add(double[] regular, double[] spam, double[] word,
+            int[] ids, int count, double[] sums) {
+        DoubleVector regularSum = DoubleVector.zero(SPECIES);
+        DoubleVector spamSum = DoubleVector.zero(SPECIES);
+        DoubleVector wordSum = DoubleVector.zero(SPECIES);
+
+        int i = 0;
+        for (int bound = SPECIES.loopBound(count); i < bound; i += SPECIES.length()) {
+            regularSum = regularSum.add(DoubleVector.fromArray(SPECIES, regular, 0, ids, i));
+            spamSum = spamSum.add(DoubleVector.fromArray(SPECIES, spam, 0, ids, i));
+            wordSum = wordSum.add(DoubleVector.fromArray(SPECIES, word, 0, ids, i));
+        }
+
+        double regularTotal = regularSum.reduceLanes(VectorOperators.ADD);
+        double spamTotal = spamSum.reduceLanes(VectorOperators.ADD);
+        double wordTotal = wordSum.reduceLanes(VectorOperators.ADD);
+        for (; i < count; i++) {
+            regularTotal += regular[ids[i]];
+            spamTotal += spam[ids[i]];
+            wordTotal += word[ids[i]];
+        }
+
+        sums[0] += regularTotal;
+        sums[1] += spamTotal;
+        sums[2] += wordTotal;
+    }
+
+    public String name() {
+        return "vector";
+    }
+}